@@ -23,26 +23,47 @@ package net.briac.omegat.plugin.odtreview;
 import java.awt.BorderLayout;
 import java.awt.Dimension;
 import java.io.File;
+import java.util.BitSet;
 import java.util.List;
 import java.util.Locale;
+import java.util.concurrent.ExecutionException;
+import java.util.function.Supplier;
+import java.util.stream.Collectors;
 
+import javax.swing.JButton;
 import javax.swing.JFileChooser;
 import javax.swing.JLabel;
 import javax.swing.JPanel;
 import javax.swing.JScrollPane;
 import javax.swing.JTable;
+import javax.swing.JTextField;
+import javax.swing.SwingWorker;
+import javax.swing.UIManager;
+import javax.swing.event.DocumentEvent;
+import javax.swing.event.DocumentListener;
 import javax.swing.filechooser.FileFilter;
 import javax.swing.table.TableColumn;
 import javax.swing.table.TableColumnModel;
 
+import org.omegat.core.data.IProject.FileInfo;
+
 public final class ExportOdtFileChooser extends JFileChooser {
     private static final long serialVersionUID = -5208753817437732831L;
     private SourceFileSelectionModel tableModel;
+    private JLabel labelSourceFiles;
+    private JLabel labelEstimate;
+    private List<ReviewEstimate.FileCost> fileCosts;
 
-    public ExportOdtFileChooser(File baseDirectory, List<String> sourceFiles, String dialogTitle) {
+    /**
+     * @param projectFiles
+     *            returns the project files; it's called outside of the Swing
+     *            thread so the dialog can be displayed at once.
+     */
+    public ExportOdtFileChooser(File baseDirectory, Supplier<List<FileInfo>> projectFiles,
+            String dialogTitle) {
         super(baseDirectory);
 
-        setAccessory(createSourceFilePicker(sourceFiles));
+        setAccessory(createSourceFilePicker(projectFiles));
 
         setApproveButtonText(ODTReviewPlugin.res.getString("odt.chooser.button.export"));
         setApproveButtonToolTipText(ODTReviewPlugin.res.getString("odt.chooser.button.export.tooltip"));
@@ -51,27 +72,56 @@ public final class ExportOdtFileChooser extends JFileChooser {
         setFileSelectionMode(FILES_ONLY);
         setDialogTitle(dialogTitle);
         setAcceptAllFileFilterUsed(false);
-        addChoosableFileFilter(new FileFilter() {
-
-            @Override
-            public String getDescription() {
-                return ODTReviewPlugin.res.getString("odt.chooser.filter");
-            }
+        FileFilter odtFilter = new ReviewFileFilter("odt.chooser.filter", ODTReviewPlugin.ODT_EXTENSION);
+        addChoosableFileFilter(odtFilter);
+        addChoosableFileFilter(new ReviewFileFilter("odt.chooser.filter.ods", ODTReviewPlugin.ODS_EXTENSION));
+        setFileFilter(odtFilter);
 
-            @Override
-            public boolean accept(File f) {
-                return f.isFile()
-                        && f.getName().toLowerCase(Locale.ENGLISH).endsWith(ODTReviewPlugin.ODT_EXTENSION);
+        // Switching between text document and spreadsheet updates the
+        // extension of the review file
+        addPropertyChangeListener(FILE_FILTER_CHANGED_PROPERTY, e -> {
+            File selected = getSelectedFile();
+            if (selected == null || !(e.getNewValue() instanceof ReviewFileFilter)) {
+                return;
             }
+            String extension = ((ReviewFileFilter) e.getNewValue()).extension;
+            String name = selected.getName();
+            int dot = name.lastIndexOf('.');
+            String baseName = dot > 0 ? name.substring(0, dot) : name;
+            setSelectedFile(new File(selected.getParentFile(), baseName + extension));
+            updateEstimate();
         });
     }
 
-    private JPanel createSourceFilePicker(List<String> sourceFiles) {
+    private static final class ReviewFileFilter extends FileFilter {
+        private final String descriptionKey;
+        private final String extension;
+
+        ReviewFileFilter(String descriptionKey, String extension) {
+            this.descriptionKey = descriptionKey;
+            this.extension = extension;
+        }
+
+        @Override
+        public String getDescription() {
+            return ODTReviewPlugin.res.getString(descriptionKey);
+        }
+
+        @Override
+        public boolean accept(File f) {
+            return f.isDirectory()
+                    || f.isFile() && f.getName().toLowerCase(Locale.ENGLISH).endsWith(extension);
+        }
+    }
+
+    private JPanel createSourceFilePicker(Supplier<List<FileInfo>> projectFiles) {
         JPanel panel = new JPanel(new BorderLayout());
 
-        panel.add(new JLabel(ODTReviewPlugin.res.getString("odt.chooser.source.label")), BorderLayout.NORTH);
+        labelSourceFiles = new JLabel(ODTReviewPlugin.res.getString("odt.chooser.source.loading"));
+        panel.add(labelSourceFiles, BorderLayout.NORTH);
 
-        tableModel = new SourceFileSelectionModel(sourceFiles);
+        tableModel = new SourceFileSelectionModel();
+        tableModel.addTableModelListener(e -> updateEstimate());
         JTable tableFileSelection = new JTable(tableModel);
         tableFileSelection.setPreferredScrollableViewportSize(new Dimension(500, 70));
         tableFileSelection.setFillsViewportHeight(true);
@@ -85,18 +135,135 @@ public final class ExportOdtFileChooser extends JFileChooser {
         tableFileSelection.setRowSelectionAllowed(false);
         JScrollPane tablePane = new JScrollPane(tableFileSelection);
         panel.add(tablePane);
+
+        JPanel filterPanel = new JPanel(new BorderLayout(5, 0));
+        filterPanel.add(new JLabel(ODTReviewPlugin.res.getString("odt.chooser.source.filter")),
+                BorderLayout.WEST);
+        JTextField filterField = new JTextField();
+        filterField.setToolTipText(ODTReviewPlugin.res.getString("odt.chooser.source.filter.tooltip"));
+        filterField.getDocument().addDocumentListener(new DocumentListener() {
+            @Override
+            public void insertUpdate(DocumentEvent e) {
+                tableModel.setFilter(filterField.getText());
+            }
+
+            @Override
+            public void removeUpdate(DocumentEvent e) {
+                tableModel.setFilter(filterField.getText());
+            }
+
+            @Override
+            public void changedUpdate(DocumentEvent e) {
+                tableModel.setFilter(filterField.getText());
+            }
+        });
+        filterPanel.add(filterField);
+
+        JPanel selectionPanel = new JPanel();
+        selectionPanel.add(createSelectionButton("odt.chooser.source.all",
+                () -> tableModel.setVisibleSelected(true)));
+        selectionPanel.add(createSelectionButton("odt.chooser.source.none",
+                () -> tableModel.setVisibleSelected(false)));
+        selectionPanel.add(createSelectionButton("odt.chooser.source.invert",
+                () -> tableModel.invertVisibleSelection()));
+        filterPanel.add(selectionPanel, BorderLayout.EAST);
+
+        JPanel southPanel = new JPanel(new BorderLayout());
+        southPanel.add(filterPanel, BorderLayout.NORTH);
+        labelEstimate = new JLabel(" ");
+        southPanel.add(labelEstimate, BorderLayout.SOUTH);
+        panel.add(southPanel, BorderLayout.SOUTH);
+
+        loadSourceFiles(projectFiles);
         return panel;
     }
 
+    private JButton createSelectionButton(String key, Runnable action) {
+        JButton button = new JButton(ODTReviewPlugin.res.getString(key));
+        button.setToolTipText(ODTReviewPlugin.res.getString(key + ".tooltip"));
+        button.addActionListener(e -> action.run());
+        return button;
+    }
+
+    private void loadSourceFiles(Supplier<List<FileInfo>> projectFiles) {
+        new SwingWorker<List<FileInfo>, Void>() {
+            private List<ReviewEstimate.FileCost> costs;
+
+            @Override
+            protected List<FileInfo> doInBackground() {
+                List<FileInfo> files = projectFiles.get();
+                costs = ReviewEstimate.measure(files);
+                return files;
+            }
+
+            @Override
+            protected void done() {
+                try {
+                    List<FileInfo> files = get();
+                    fileCosts = costs;
+                    tableModel.setFiles(files.stream().map(f -> f.filePath).collect(Collectors.toList()));
+                    labelSourceFiles.setText(ODTReviewPlugin.res.getString("odt.chooser.source.label"));
+                } catch (InterruptedException e) {
+                    Thread.currentThread().interrupt();
+                } catch (ExecutionException e) {
+                    labelSourceFiles.setText(e.getCause().getLocalizedMessage());
+                }
+            }
+        }.execute();
+    }
+
+    /** Show the cost of exporting the selected files in the selected format. */
+    private void updateEstimate() {
+        if (labelEstimate == null || fileCosts == null) {
+            return;
+        }
+        BitSet selection = tableModel.getSelection();
+        if (selection.isEmpty()) {
+            labelEstimate.setText(ODTReviewPlugin.res.getString("odt.chooser.source.empty"));
+            return;
+        }
+        ReviewFormat format = getFileFilter() instanceof ReviewFileFilter
+                && ODTReviewPlugin.ODS_EXTENSION.equals(((ReviewFileFilter) getFileFilter()).extension)
+                        ? ReviewFormat.ODS
+                        : ReviewFormat.ODT;
+        labelEstimate.setText(ReviewEstimate.of(fileCosts, selection, format).describe(format));
+    }
+
+    /**
+     * Saving before the project files are loaded, or without any selected
+     * file, would write an empty review.
+     */
+    @Override
+    public void approveSelection() {
+        if (fileCosts == null || tableModel.getSelection().isEmpty()) {
+            UIManager.getLookAndFeel().provideErrorFeedback(this);
+            return;
+        }
+        super.approveSelection();
+    }
+
     @Override
     public boolean accept(File f) {
         if (f.isDirectory()) {
             return true;
         }
-        return f.isFile() && f.getName().toLowerCase(Locale.ENGLISH).endsWith(ODTReviewPlugin.ODT_EXTENSION);
+        return ODTReviewPlugin.isReviewFile(f);
     }
 
     public List<String> getSelectedSourceFiles() {
         return tableModel.getSelectedSourceFiles();
     }
+
+    /**
+     * Segment count and source length of each project file, measured while
+     * the files were loaded. The chooser can't be approved before.
+     */
+    List<ReviewEstimate.FileCost> getFileCosts() {
+        return fileCosts;
+    }
+
+    /** Positions of the selected files in the project file list. */
+    public BitSet getSelectedSourceFileIndexes() {
+        return tableModel.getSelection();
+    }
 }
\ No newline at end of file
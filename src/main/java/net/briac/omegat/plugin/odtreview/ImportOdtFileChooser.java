@@ -21,7 +21,6 @@
 package net.briac.omegat.plugin.odtreview;
 
 import java.io.File;
-import java.util.Locale;
 
 import javax.swing.JFileChooser;
 import javax.swing.filechooser.FileFilter;
@@ -43,13 +42,12 @@ public final class ImportOdtFileChooser extends JFileChooser {
 
             @Override
             public String getDescription() {
-                return ODTReviewPlugin.res.getString("odt.chooser.filter");
+                return ODTReviewPlugin.res.getString("odt.chooser.filter.all");
             }
 
             @Override
             public boolean accept(File f) {
-                return f.isFile()
-                        && f.getName().toLowerCase(Locale.ENGLISH).endsWith(ODTReviewPlugin.ODT_EXTENSION);
+                return f.isDirectory() || ODTReviewPlugin.isReviewFile(f);
             }
         });
     }
@@ -59,6 +57,6 @@ public final class ImportOdtFileChooser extends JFileChooser {
         if (f.isDirectory()) {
             return true;
         }
-        return f.isFile() && f.getName().toLowerCase(Locale.ENGLISH).endsWith(ODTReviewPlugin.ODT_EXTENSION);
+        return ODTReviewPlugin.isReviewFile(f);
     }
 }
\ No newline at end of file
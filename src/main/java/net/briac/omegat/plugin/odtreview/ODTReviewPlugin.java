@@ -23,30 +23,56 @@ package net.briac.omegat.plugin.odtreview;
 import static org.omegat.core.Core.getMainWindow;
 
 import java.awt.Cursor;
+import java.awt.GridLayout;
+import java.io.BufferedOutputStream;
+import java.io.ByteArrayInputStream;
+import java.io.ByteArrayOutputStream;
 import java.io.File;
+import java.io.FileOutputStream;
 import java.io.IOException;
+import java.io.InputStream;
+import java.io.OutputStream;
+import java.nio.file.Files;
+import java.nio.file.StandardCopyOption;
+import java.security.DigestInputStream;
+import java.security.MessageDigest;
 import java.text.SimpleDateFormat;
+import java.time.Clock;
+import java.time.ZonedDateTime;
 import java.util.ArrayList;
+import java.util.BitSet;
 import java.util.Collections;
 import java.util.Date;
+import java.util.GregorianCalendar;
 import java.util.Iterator;
+import java.util.LinkedHashMap;
 import java.util.List;
-import java.util.ListIterator;
 import java.util.Locale;
 import java.util.Map;
+import java.util.Objects;
 import java.util.Optional;
 import java.util.ResourceBundle;
+import java.util.function.Consumer;
 import java.util.function.Function;
+import java.util.function.IntConsumer;
+import java.util.function.Supplier;
+import java.util.zip.ZipEntry;
+import java.util.zip.ZipFile;
+import java.util.zip.ZipInputStream;
 import java.util.logging.Level;
-import java.util.logging.LogRecord;
 import java.util.logging.Logger;
 import java.util.stream.Collectors;
 
+import javax.swing.JComboBox;
 import javax.swing.JFileChooser;
+import javax.swing.JLabel;
 import javax.swing.JMenu;
 import javax.swing.JMenuItem;
 import javax.swing.JOptionPane;
+import javax.swing.JPanel;
 import javax.swing.JPopupMenu;
+import javax.swing.JSpinner;
+import javax.swing.SpinnerNumberModel;
 
 import org.odftoolkit.odfdom.dom.OdfDocumentNamespace;
 import org.odftoolkit.odfdom.dom.attribute.fo.FoFontStyleAttribute;
@@ -59,6 +85,7 @@ import org.odftoolkit.odfdom.dom.element.style.StyleParagraphPropertiesElement;
 import org.odftoolkit.odfdom.dom.element.style.StyleTextPropertiesElement;
 import org.odftoolkit.odfdom.dom.style.OdfStyleFamily;
 import org.odftoolkit.odfdom.incubator.doc.office.OdfOfficeStyles;
+import org.odftoolkit.odfdom.incubator.doc.style.OdfDefaultStyle;
 import org.odftoolkit.odfdom.incubator.doc.style.OdfStyle;
 import org.odftoolkit.odfdom.incubator.doc.style.OdfStylePageLayout;
 import org.odftoolkit.odfdom.pkg.OdfName;
@@ -75,8 +102,6 @@ import org.odftoolkit.simple.text.Section;
 import org.omegat.core.Core;
 import org.omegat.core.CoreEvents;
 import org.omegat.core.data.IProject;
-import org.omegat.core.data.IProject.FileInfo;
-import org.omegat.core.data.PrepareTMXEntry;
 import org.omegat.core.data.ProjectProperties;
 import org.omegat.core.data.SourceTextEntry;
 import org.omegat.core.data.TMXEntry;
@@ -84,18 +109,17 @@ import org.omegat.core.events.IApplicationEventListener;
 import org.omegat.gui.editor.IEditor;
 import org.omegat.gui.main.IMainMenu;
 import org.omegat.gui.main.IMainWindow;
-import org.omegat.util.FileUtil;
 import org.omegat.util.Log;
-import org.omegat.util.StreamUtil;
-import org.omegat.util.TMXProp;
 import org.omegat.util.gui.UIThreadsUtil;
 import org.openide.awt.Mnemonics;
 
+import net.briac.omegat.plugin.odtreview.ReviewSnapshot.FileSnapshot;
+
 //@SuppressWarnings({ "java:S2142", "java:S1192" })
 public class ODTReviewPlugin {
 
     /** Id of the reviewer used when updating translations. */
-    private static final String ODT_REVIEWER_ID = "odt-review";
+    static final String ODT_REVIEWER_ID = "odt-review";
 
     private static final String STYLE_WARNING_PARA = "odt-review-warning";
     private static final String STYLE_WARNING_GRADIENT = "odt-review-warning-gradient";
@@ -106,7 +130,7 @@ public class ODTReviewPlugin {
     private static final String STYLE_HEADER_TEXT = "odt-review-header";
     private static final String STYLE_FILE = "odt-review-file";
 
-    private static final int TABLE_COLUMNS_COUNT = 4;
+    static final int TABLE_COLUMNS_COUNT = 4;
 
     private static final int COL_INDEX = 0;
     private static final int COL_SOURCE = 1;
@@ -117,8 +141,24 @@ public class ODTReviewPlugin {
     private static final int SIZE_COL_SOURCE = 90;
     private static final int SIZE_COL_TARGET = 90;
     private static final int SIZE_COL_NOTE = 65;
+    private static final int SIZE_COL_EXTRA = 40;
     private static final int SIZE_COL_REVIEWER = 30;
 
+    /**
+     * Compact markup is the default, <code>-Dodtreview.markup.compact=false</code>
+     * writes the verbose markup of the ODF toolkit for comparison.
+     */
+    static final String PROPERTY_COMPACT_MARKUP = "odtreview.markup.compact";
+
+    /** <code>-Dodtreview.reproducible=true</code> makes all exports reproducible. */
+    static final String PROPERTY_REPRODUCIBLE = "odtreview.reproducible";
+
+    /**
+     * <code>-Dodtreview.import.trackedChanges=true</code> only imports the rows
+     * of a text document with a tracked change.
+     */
+    static final String PROPERTY_TRACKED_CHANGES = "odtreview.import.trackedChanges";
+
     // Switch off cell protection for debugging
     private static final boolean PROTECT_CELLS = true;
     private static final OdfName PROTECTED_CELL = OdfName.newName(OdfDocumentNamespace.TABLE, "protected");
@@ -131,26 +171,59 @@ public class ODTReviewPlugin {
     protected static final ResourceBundle res = ResourceBundle.getBundle(ODT_REVIEWER_ID,
             Locale.getDefault());
     protected static final String ODT_EXTENSION = ".odt";
+    private static final String ODT_MIMETYPE = "application/vnd.oasis.opendocument.text";
+    protected static final String ODS_EXTENSION = ".ods";
 
-    private static final String REVIEWER_INFO = "omt-reviewer";
+    static final String REVIEWER_INFO = "omt-reviewer";
 
     // ODT Metadata
-    private static final String METADATA_PROJECT = "omt-projectName";
-    private static final String METADATA_TARGET = "omt-targetLanguage";
-    private static final String METADATA_SOURCE = "omt-sourceLanguage";
-
-    // ProjectTMX.PROP_ORIGIN
-    private static final String REVIEWED_PROPERTIES = "origin";
+    static final String METADATA_PROJECT = "omt-projectName";
+    static final String METADATA_TARGET = "omt-targetLanguage";
+    static final String METADATA_SOURCE = "omt-sourceLanguage";
 
     private static JMenuItem importODTReview;
     private static JMenuItem exportODTReview;
+    private static JMenuItem quickExportFile;
+    private static JMenuItem quickExportEntries;
+    private static JMenuItem quickExportReviewed;
+    private static ReviewInbox inbox;
+    // Only one export runs at a time, accessed from the Swing thread
+    private static boolean exportRunning;
+
+    // The text document set up for the last exported project, each export
+    // starts from a copy
+    private static volatile Skeleton skeleton;
 
     private IProject project;
     private List<Integer> changedEntries = new ArrayList<>();
     private int updatedTranslations = 0;
     private int updatedComments = 0;
+    private int reanchoredRows = 0;
+    private List<Integer> ambiguousRows = new ArrayList<>();
+    private List<Integer> rejectedRows = new ArrayList<>();
     private String reviewDate;
     private String reviewerName;
+    // SHA-256 of the review file being imported, for the review history
+    private byte[] reviewFileHash;
+    private long reviewTime;
+    // Compared with the project, not applied yet
+    private List<ReviewDiff.Change> pendingChanges = Collections.emptyList();
+    private List<ReviewTags.Rejection> pendingRejections = Collections.emptyList();
+
+    private boolean interactive = true;
+    private boolean reproducible = Boolean.getBoolean(PROPERTY_REPRODUCIBLE);
+    private boolean trackedChangesOnly = Boolean.getBoolean(PROPERTY_TRACKED_CHANGES);
+    // null to choose the layout of each export
+    private ReviewLayout layout = ReviewLayout.configured();
+    private boolean compactMarkup = Boolean
+            .parseBoolean(System.getProperty(PROPERTY_COMPACT_MARKUP, Boolean.TRUE.toString()));
+    private int exportWorkers = ReviewShards.configuredWorkers();
+    private boolean instrumented = true;
+    private Clock clock = Clock.systemDefaultZone();
+    private int deflateThreads = ParallelZipOutputStream.configuredThreads();
+    // Set while exporting a text document in compact markup
+    private boolean defaultParagraphLanguage;
+    private String[] columnCellStyles = new String[TABLE_COLUMNS_COUNT];
 
     public ODTReviewPlugin(IProject project) {
         this.project = project;
@@ -160,8 +233,22 @@ public class ODTReviewPlugin {
      * Plugin loader.
      */
     public static void loadPlugins() {
-        CoreEvents.registerProjectChangeListener(
-                e -> onProjectStatusChanged(Core.getProject().isProjectLoaded()));
+        CoreEvents.registerProjectChangeListener(e -> {
+            onProjectStatusChanged(Core.getProject().isProjectLoaded());
+            switch (e) {
+            case CREATE:
+            case LOAD:
+                watchInbox(true);
+                ReviewWarmUp.start(Core.getProject());
+                break;
+            case CLOSE:
+                watchInbox(false);
+                break;
+            default:
+                // The inbox keeps watching while the project is saved
+                break;
+            }
+        });
 
         CoreEvents.registerApplicationEventListener(new IApplicationEventListener() {
 
@@ -174,15 +261,24 @@ public class ODTReviewPlugin {
 
                 exportODTReview = new JMenuItem();
                 Mnemonics.setLocalizedText(exportODTReview, res.getString("odt.menu.export"));
-                exportODTReview.addActionListener(e -> {
-                    try {
-                        projectExportODTReview();
-                    } catch (IOException ex) {
-                        Log.logErrorRB(ex, res.getString("odt.error.export"));
-                    }
-                });
+                exportODTReview.addActionListener(e -> projectExportODTReview());
                 projectMenu.add(exportODTReview, startMenuIndex++);
 
+                quickExportFile = new JMenuItem();
+                Mnemonics.setLocalizedText(quickExportFile, res.getString("odt.menu.export.file"));
+                quickExportFile.addActionListener(e -> quickExportCurrentFile());
+                projectMenu.add(quickExportFile, startMenuIndex++);
+
+                quickExportEntries = new JMenuItem();
+                Mnemonics.setLocalizedText(quickExportEntries, res.getString("odt.menu.export.entries"));
+                quickExportEntries.addActionListener(e -> quickExportEntries());
+                projectMenu.add(quickExportEntries, startMenuIndex++);
+
+                quickExportReviewed = new JMenuItem();
+                Mnemonics.setLocalizedText(quickExportReviewed, res.getString("odt.menu.export.reviewed"));
+                quickExportReviewed.addActionListener(e -> quickExportReviewed());
+                projectMenu.add(quickExportReviewed, startMenuIndex++);
+
                 importODTReview = new JMenuItem();
                 Mnemonics.setLocalizedText(importODTReview, res.getString("odt.menu.import"));
                 importODTReview.addActionListener(e -> projectImportODTReview());
@@ -193,7 +289,7 @@ public class ODTReviewPlugin {
                 onProjectStatusChanged(false);
             }
 
-            private void projectExportODTReview() throws IOException {
+            private void projectExportODTReview() {
                 // Deactivate current segment
                 UIThreadsUtil.mustBeSwingThread();
                 Core.getEditor().commitAndDeactivate();
@@ -209,17 +305,10 @@ public class ODTReviewPlugin {
                 ODTReviewPlugin odtPlugin = new ODTReviewPlugin(currentProject);
                 File rootDir = props.getProjectRootDir();
 
-                // Get the source files (same as
-                // org.omegat.core.data.RealProject.loadSourceFiles())
-                File root = new File(props.getSourceRoot());
-                List<String> srcPathList = FileUtil
-                        .buildRelativeFilesList(root, Collections.emptyList(), props.getSourceRootExcludes())
-                        .stream().sorted(StreamUtil.comparatorByList(currentProject.getSourceFilesOrder()))
-                        .collect(Collectors.toList());
-
                 // The file chooser includes a separate panel to select source
-                // files to include for review
-                ExportOdtFileChooser efc = new ExportOdtFileChooser(rootDir, srcPathList,
+                // files to include for review. The loaded project files are
+                // already sorted in the project order.
+                ExportOdtFileChooser efc = new ExportOdtFileChooser(rootDir, currentProject::getProjectFiles,
                         res.getString("odt.chooser.export"));
                 efc.setSelectedFile(new File(defaultFilename));
                 int efcResult = efc.showSaveDialog(Core.getMainWindow().getApplicationFrame());
@@ -229,8 +318,138 @@ public class ODTReviewPlugin {
                 }
 
                 final File odtFile = efc.getSelectedFile();
+                BitSet selection = efc.getSelectedSourceFileIndexes();
+                if (selection.isEmpty()) {
+                    return;
+                }
 
-                odtPlugin.exportODT(odtFile, efc.getSelectedSourceFiles());
+                // A text document too large for the heap is split, or written
+                // as a spreadsheet. The files were measured in the background
+                // by the chooser.
+                ReviewFormat format = ReviewFormat.of(odtFile);
+                ReviewEstimate estimate = ReviewEstimate.of(efc.getFileCosts(), selection, format);
+                log(Level.INFO, () -> estimate.describe(format));
+
+                // Capture the selected entries, then let the translator work
+                // while the review file is rendered from the snapshot.
+                Map<File, ReviewSnapshot> outputs = new LinkedHashMap<>();
+                List<BitSet> parts = estimate.getParts();
+                for (int part = 0; part < parts.size(); part++) {
+                    outputs.put(outputFile(odtFile, estimate.getFormat(), parts.size() > 1 ? part + 1 : 0),
+                            ReviewSnapshot.take(currentProject, parts.get(part)));
+                }
+                Core.getEditor().activateEntry();
+
+                startExport(odtPlugin, outputs);
+            }
+
+            /** Export the file of the current entry, without any chooser. */
+            private void quickExportCurrentFile() {
+                UIThreadsUtil.mustBeSwingThread();
+                String currentFile = Core.getEditor().getCurrentFile();
+                if (currentFile == null) {
+                    return;
+                }
+                Core.getEditor().commitAndDeactivate();
+                IProject currentProject = Core.getProject();
+                ReviewSnapshot snapshot = ReviewSnapshot.take(currentProject,
+                        Collections.singletonList(currentFile));
+                Core.getEditor().activateEntry();
+                quickExport(currentProject, snapshot);
+            }
+
+            /** Export a range of entries, by default the current one. */
+            private void quickExportEntries() {
+                UIThreadsUtil.mustBeSwingThread();
+                int current = Core.getEditor().getCurrentEntryNumber();
+                Object answer = JOptionPane.showInputDialog(Core.getMainWindow().getApplicationFrame(),
+                        res.getString("odt.quick.range"), res.getString("dialog.export.title"),
+                        JOptionPane.QUESTION_MESSAGE, null, null, current + "-" + current);
+                if (answer == null) {
+                    return;
+                }
+                int[] range = parseEntryRange(answer.toString());
+                if (range == null) {
+                    JOptionPane.showMessageDialog(Core.getMainWindow().getApplicationFrame(),
+                            String.format(res.getString("odt.quick.range.invalid"), answer),
+                            res.getString("dialog.export.title"), JOptionPane.ERROR_MESSAGE);
+                    return;
+                }
+                Core.getEditor().commitAndDeactivate();
+                IProject currentProject = Core.getProject();
+                ReviewSnapshot snapshot = ReviewSnapshot.take(currentProject, range[0], range[1]);
+                Core.getEditor().activateEntry();
+                quickExport(currentProject, snapshot);
+            }
+
+            /**
+             * Export the entries changed by a reviewer, or by all of them, in
+             * the last rounds of the review history.
+             */
+            private void quickExportReviewed() {
+                UIThreadsUtil.mustBeSwingThread();
+                IProject currentProject = Core.getProject();
+                ReviewHistory history = ReviewHistory.of(currentProject);
+                List<ReviewHistory.Round> rounds;
+                try {
+                    rounds = history.getRounds();
+                } catch (IOException e) {
+                    Log.logErrorRB(e, res.getString("odt.error.export"));
+                    JOptionPane.showMessageDialog(Core.getMainWindow().getApplicationFrame(),
+                            String.format(res.getString("odt.history.error"), e.getMessage()),
+                            res.getString("dialog.export.title"), JOptionPane.ERROR_MESSAGE);
+                    return;
+                }
+                if (rounds.isEmpty()) {
+                    JOptionPane.showMessageDialog(Core.getMainWindow().getApplicationFrame(),
+                            res.getString("odt.quick.reviewed.none"), res.getString("dialog.export.title"),
+                            JOptionPane.INFORMATION_MESSAGE);
+                    return;
+                }
+
+                // The reviewers of the most recent rounds first
+                List<String> reviewers = new ArrayList<>();
+                reviewers.add(null);
+                for (int i = rounds.size() - 1; i >= 0; i--) {
+                    if (!reviewers.contains(rounds.get(i).getReviewer())) {
+                        reviewers.add(rounds.get(i).getReviewer());
+                    }
+                }
+                JComboBox<String> reviewerBox = new JComboBox<>(reviewers.stream()
+                        .map(reviewer -> reviewer == null ? res.getString("odt.quick.reviewed.all")
+                                : reviewer.isEmpty() ? res.getString("odt.metadata.unknown") : reviewer)
+                        .toArray(String[]::new));
+                JSpinner roundsSpinner = new JSpinner(new SpinnerNumberModel(1, 1, rounds.size(), 1));
+                JPanel panel = new JPanel(new GridLayout(2, 2, 5, 5));
+                panel.add(new JLabel(res.getString("odt.quick.reviewed.reviewer")));
+                panel.add(reviewerBox);
+                panel.add(new JLabel(res.getString("odt.quick.reviewed.rounds")));
+                panel.add(roundsSpinner);
+                if (JOptionPane.showConfirmDialog(Core.getMainWindow().getApplicationFrame(), panel,
+                        res.getString("dialog.export.title"), JOptionPane.OK_CANCEL_OPTION,
+                        JOptionPane.QUESTION_MESSAGE) != JOptionPane.OK_OPTION) {
+                    return;
+                }
+
+                BitSet entries;
+                try {
+                    entries = history.getEntries(reviewers.get(reviewerBox.getSelectedIndex()),
+                            (Integer) roundsSpinner.getValue(),
+                            ReviewHistory.TRANSLATION | ReviewHistory.NOTE | ReviewHistory.REJECTED);
+                } catch (IOException e) {
+                    Log.logErrorRB(e, res.getString("odt.error.export"));
+                    return;
+                }
+                if (entries.isEmpty()) {
+                    JOptionPane.showMessageDialog(Core.getMainWindow().getApplicationFrame(),
+                            res.getString("odt.quick.reviewed.empty"), res.getString("dialog.export.title"),
+                            JOptionPane.INFORMATION_MESSAGE);
+                    return;
+                }
+                Core.getEditor().commitAndDeactivate();
+                ReviewSnapshot snapshot = ReviewSnapshot.take(currentProject, entries::get);
+                Core.getEditor().activateEntry();
+                quickExport(currentProject, snapshot);
             }
 
             private void projectImportODTReview() {
@@ -279,19 +498,70 @@ public class ODTReviewPlugin {
     }
 
     /**
-     * Export the segments in an ODT file, with the source, target and notes.
+     * Write a few entries in a text document next to the project, named after
+     * the range of the entries, with a number if such a document already
+     * exists. The document starts from the skeleton kept from the previous
+     * export.
      */
-    public void exportODT(File output, List<String> selectedSourceFiles) {
-        log(Level.INFO, res.getString("odt.file.saving"));
-        try (TextDocument odt = TextDocument.newTextDocument()) {
+    private static void quickExport(IProject project, ReviewSnapshot snapshot) {
+        if (snapshot.getEntryCount() == 0) {
+            JOptionPane.showMessageDialog(Core.getMainWindow().getApplicationFrame(),
+                    res.getString("odt.quick.empty"), res.getString("dialog.export.title"),
+                    JOptionPane.INFORMATION_MESSAGE);
+            return;
+        }
+        List<FileSnapshot> files = snapshot.getFiles();
+        FileSnapshot lastFile = files.get(files.size() - 1);
+        ProjectProperties props = project.getProjectProperties();
+        String name = String.format("%s_%s-%s_review_%d-%d%s", props.getProjectName(),
+                props.getSourceLanguage(), props.getTargetLanguage(), files.get(0).getEntry(0).entryNum(),
+                lastFile.getEntry(lastFile.size() - 1).entryNum(), ODT_EXTENSION);
+        File output = ReviewInbox.uniqueTarget(props.getProjectRootDir().toPath(), name).toFile();
+        startExport(new ODTReviewPlugin(project), Collections.singletonMap(output, snapshot));
+    }
 
-            setupDocument(odt);
+    /**
+     * Render the outputs in the background. The exports are disabled until
+     * it's done, even if the project is saved in the meantime.
+     */
+    private static void startExport(ODTReviewPlugin plugin, Map<File, ReviewSnapshot> outputs) {
+        exportRunning = true;
+        setExportEnabled(false);
+        new ReviewExportWorker(plugin, outputs, () -> {
+            exportRunning = false;
+            onProjectStatusChanged(Core.getProject().isProjectLoaded());
+        }).execute();
+    }
 
-            // For each selected project files, add the entries
-            exportSourceFiles(selectedSourceFiles, odt);
+    /**
+     * Parse a range of entry numbers, such as <code>12-40</code>, or a single
+     * entry number.
+     *
+     * @return the first and last entry numbers, or <code>null</code> if the
+     *         range is not valid
+     */
+    static int[] parseEntryRange(String text) {
+        String[] bounds = text.trim().split("\\s*-\\s*", -1);
+        if (bounds.length > 2) {
+            return null;
+        }
+        try {
+            int first = Integer.parseInt(bounds[0]);
+            int last = bounds.length == 2 ? Integer.parseInt(bounds[1]) : first;
+            return first > 0 && first <= last ? new int[] { first, last } : null;
+        } catch (NumberFormatException e) {
+            return null;
+        }
+    }
 
-            odt.save(output);
-            log(Level.INFO, String.format(res.getString("odt.file.saved"), output.getAbsolutePath()));
+    /**
+     * Export the segments in an ODT file, with the source, target and notes.
+     */
+    public void exportODT(File output, List<String> selectedSourceFiles) {
+        try {
+            writeReview(output, ReviewSnapshot.take(project, selectedSourceFiles), percent -> {
+                /* empty */
+            });
 
             JOptionPane.showMessageDialog(JOptionPane.getRootFrame(),
                     String.format(res.getString("odt.file.saved"), output.getAbsolutePath()),
@@ -306,49 +576,291 @@ public class ODTReviewPlugin {
         }
     }
 
-    private void exportSourceFiles(List<String> filePaths, TextDocument odt) {
+    /**
+     * Render a snapshot of the project in a review file, either a text document
+     * or a spreadsheet depending on the extension of the output file.
+     *
+     * @param progress
+     *            receives the percentage of exported entries
+     */
+    public void writeReview(File output, ReviewSnapshot snapshot, IntConsumer progress) throws Exception {
+        try (OutputStream out = new BufferedOutputStream(new FileOutputStream(output))) {
+            writeReview(out, ReviewFormat.of(output), snapshot, progress);
+        }
+        log(Level.INFO, () -> String.format(res.getString("odt.file.saved"), output.getAbsolutePath()));
+    }
+
+    /**
+     * Render a snapshot of the project directly in a stream, e.g. an HTTP
+     * response. The stream is not closed.
+     *
+     * @param progress
+     *            receives the percentage of exported entries
+     */
+    public void writeReview(OutputStream output, ReviewFormat format, ReviewSnapshot snapshot,
+            IntConsumer progress) throws Exception {
+        log(Level.INFO, () -> res.getString("odt.file.saving"));
+        render(output, format, snapshot, progress);
+    }
+
+    /**
+     * Render several snapshots, e.g. the volumes of a split export, on the
+     * worker processes if any, otherwise one after the other.
+     *
+     * @param progress
+     *            receives the percentage of exported entries
+     */
+    public void writeReviews(Map<File, ReviewSnapshot> outputs, IntConsumer progress) throws Exception {
+        ReviewShards shards = shards(outputs.values().stream().mapToInt(ReviewSnapshot::getEntryCount).sum());
+        if (shards != null && outputs.size() > 1) {
+            log(Level.INFO, () -> res.getString("odt.file.saving"));
+            shards.writeVolumes(outputs, progress);
+            for (File output : outputs.keySet()) {
+                log(Level.INFO,
+                        () -> String.format(res.getString("odt.file.saved"), output.getAbsolutePath()));
+            }
+            return;
+        }
+        int totalEntries = Math.max(1,
+                outputs.values().stream().mapToInt(ReviewSnapshot::getEntryCount).sum());
+        int exportedEntries = 0;
+        for (Map.Entry<File, ReviewSnapshot> output : outputs.entrySet()) {
+            int done = exportedEntries;
+            int entries = output.getValue().getEntryCount();
+            writeReview(output.getKey(), output.getValue(),
+                    percent -> progress.accept((done + entries * percent / 100) * 100 / totalEntries));
+            exportedEntries += entries;
+        }
+    }
+
+    /**
+     * The worker processes rendering an export of this number of entries,
+     * <code>null</code> to render it here.
+     */
+    private ReviewShards shards(int entries) {
+        return ReviewShards.isEnabled(exportWorkers, entries)
+                ? new ReviewShards(exportWorkers, reproducible, layout, compactMarkup)
+                : null;
+    }
+
+    /** Render a snapshot in a stream, without logging it. */
+    void render(OutputStream output, ReviewFormat format, ReviewSnapshot snapshot, IntConsumer progress)
+            throws Exception {
+        if (format == ReviewFormat.ODS) {
+            ReviewLayout snapshotLayout = layoutOf(snapshot);
+            OdsReviewWriter writer = new OdsReviewWriter(snapshot, snapshotLayout, reproducible);
+            writer.setInstrumented(instrumented);
+            writer.setClock(clock);
+            writer.setDeflateThreads(deflateThreads);
+            ReviewShards shards = shards(snapshot.getEntryCount());
+            if (shards != null && snapshot.getFiles().size() > 1) {
+                // The sheets are rendered by the workers, and copied here
+                try (ReviewShards.Blocks blocks = shards.startBlocks(snapshot, snapshotLayout,
+                        writer.sheetNames())) {
+                    writer.setBlocks(blocks);
+                    writer.write(output, progress);
+                }
+            } else {
+                writer.write(output, progress);
+            }
+        } else {
+            writeODT(output, snapshot, progress);
+        }
+        output.flush();
+    }
+
+    /**
+     * Export the current translations of the selected source files in a
+     * stream, without any dialog. The stream is not closed.
+     */
+    public void exportReview(OutputStream output, ReviewFormat format, List<String> selectedSourceFiles)
+            throws Exception {
+        writeReview(output, format, ReviewSnapshot.take(project, selectedSourceFiles), progress -> {
+            /* empty */
+        });
+    }
+
+    /**
+     * The file to write in the given format, numbered when an export is split.
+     *
+     * @param part
+     *            0 if the export is not split
+     */
+    static File outputFile(File selected, ReviewFormat format, int part) {
+        String name = selected.getName();
+        int dot = name.lastIndexOf('.');
+        String baseName = dot > 0 ? name.substring(0, dot) : name;
+        String suffix = part > 0 ? String.format("_%d", part) : "";
+        return new File(selected.getParentFile(), baseName + suffix + format.getExtension());
+    }
 
-        // Get the FileInfo from the selected files in the export dialog.
-        List<FileInfo> selectedFiles = project.getProjectFiles().stream()
-                .filter(f -> filePaths.contains(f.filePath)).collect(Collectors.toList());
+    /** Review spreadsheets have the <code>.ods</code> extension. */
+    static boolean isSpreadsheet(File file) {
+        return ReviewFormat.of(file) == ReviewFormat.ODS;
+    }
+
+    static boolean isReviewFile(File file) {
+        String name = file.getName().toLowerCase(Locale.ENGLISH);
+        return file.isFile() && (name.endsWith(ODT_EXTENSION) || name.endsWith(ODS_EXTENSION));
+    }
+
+    /**
+     * Render a snapshot of the project in an ODT file. This doesn't access the
+     * project nor the UI, so it can safely be run outside of the Swing thread.
+     *
+     * @param progress
+     *            receives the percentage of exported entries
+     */
+    public void writeODT(File output, ReviewSnapshot snapshot, IntConsumer progress) throws Exception {
+        try (OutputStream out = new BufferedOutputStream(new FileOutputStream(output))) {
+            log(Level.INFO, () -> res.getString("odt.file.saving"));
+            writeODT(out, snapshot, progress);
+        }
+        log(Level.INFO, () -> String.format(res.getString("odt.file.saved"), output.getAbsolutePath()));
+    }
+
+    private void writeODT(OutputStream output, ReviewSnapshot snapshot, IntConsumer progress)
+            throws Exception {
+        try (TextDocument odt = newDocument(snapshot);
+                RowTrace trace = instrumented ? RowTrace.start("export") : RowTrace.DISABLED;
+                ReviewColumns columns = instrumented ? ReviewColumns.start(snapshot) : ReviewColumns.NONE) {
+
+            // The skeleton was created by an earlier export
+            new Meta(odt.getMetaDom()).setCreationDate(GregorianCalendar.from(ZonedDateTime.now(clock)));
+
+            // For each selected project files, add the entries
+            exportSourceFiles(snapshot, columns, odt, progress, trace);
+
+            if (reproducible) {
+                // The package saved by the toolkit is rewritten entry by
+                // entry from a temporary file
+                File saved = File.createTempFile("odt-review", ODT_EXTENSION);
+                try {
+                    odt.save(saved);
+                    ReproduciblePackage.copy(saved, output, ODT_MIMETYPE, deflateThreads);
+                } finally {
+                    Files.deleteIfExists(saved.toPath());
+                }
+            } else {
+                // The ODF toolkit closes the stream it saves to
+                odt.save(OdfXml.nonClosing(output));
+            }
+        }
+    }
+
+    private void exportSourceFiles(ReviewSnapshot snapshot, ReviewColumns columns, TextDocument odt,
+            IntConsumer progress, RowTrace trace) {
+        List<FileSnapshot> selectedFiles = snapshot.getFiles();
+        int totalEntries = Math.max(1, snapshot.getEntryCount());
+        int exportedEntries = 0;
+        String emptyTranslation = res.getString("empty.translation");
+        boolean singleTable = layoutOf(snapshot) == ReviewLayout.SINGLE_TABLE;
+
+        // All the files are in one table, each one starting with a row
+        // holding its path
+        Table table = null;
+        int rowIndex = 0;
+        if (singleTable) {
+            table = createTable(odt, snapshot, columns, snapshot.getEntryCount() + selectedFiles.size(),
+                    ReviewLayout.SINGLE_TABLE_NAME);
+        }
 
         for (int fileIndex = 0; fileIndex < selectedFiles.size(); fileIndex++) {
-            if (fileIndex > 0) {
-                odt.addParagraph("");
-                odt.addPageBreak();
-            }
-
-            FileInfo currentFile = selectedFiles.get(fileIndex);
-
-            List<SourceTextEntry> fileEntries = currentFile.entries;
-            int numberOfEntries = fileEntries.size();
-            log(Level.INFO, String.format(res.getString("odt.file"), currentFile.filePath, numberOfEntries));
-            Table table = createTable(odt, fileIndex, numberOfEntries, currentFile.filePath);
-            int rowIndex = 1;
-            for (SourceTextEntry ste : fileEntries) {
-                TMXEntry en = project.getTranslationInfo(ste);
-                int entryNumber = ste.entryNum();
-                String sourceText = ste.getSrcText();
-                String translation = en != null ? en.translation : null;
-                if (translation != null && translation.isEmpty()) {
-                    translation = res.getString("empty.translation");
+            FileSnapshot currentFile = selectedFiles.get(fileIndex);
+
+            int numberOfEntries = currentFile.size();
+            log(Level.INFO, () -> String.format(res.getString("odt.file"), currentFile.getFilePath(),
+                    numberOfEntries));
+            if (singleTable) {
+                addFileRow(table, ++rowIndex, currentFile.getFilePath());
+            } else {
+                if (fileIndex > 0) {
+                    odt.addParagraph("");
+                    odt.addPageBreak();
                 }
-                String note = en != null ? en.note : "";
-                addSegment(table, rowIndex++, entryNumber, sourceText, translation, note);
+                table = createFileTable(odt, snapshot, columns, fileIndex, numberOfEntries,
+                        currentFile.getFilePath());
+                rowIndex = 0;
             }
+            String[][] extraValues = columns.get(fileIndex, numberOfEntries);
+            for (int entryIndex = 0; entryIndex < numberOfEntries; entryIndex++) {
+                long start = trace.startRow();
+                int entryNumber = addEntry(table, ++rowIndex, currentFile, entryIndex, emptyTranslation);
+                for (int extra = 0; extra < extraValues.length; extra++) {
+                    addExtraCell(table, rowIndex, TABLE_COLUMNS_COUNT + extra,
+                            extraValues[extra][entryIndex]);
+                }
+                trace.row(exportedEntries + entryIndex, entryNumber, start, RowTrace.ROW_EXPORTED);
+            }
+            exportedEntries += numberOfEntries;
+            progress.accept(exportedEntries * 100 / totalEntries);
+        }
+    }
+
+    /**
+     * Add the segment row of an entry of a file.
+     *
+     * @return the number of the entry
+     */
+    private int addEntry(Table table, int rowIndex, FileSnapshot file, int entryIndex,
+            String emptyTranslation) {
+        SourceTextEntry ste = file.getEntry(entryIndex);
+        String translation = file.getTranslationText(entryIndex);
+        if (translation != null && translation.isEmpty()) {
+            translation = emptyTranslation;
+        }
+        String note = file.getNote(entryIndex);
+        addSegment(table, rowIndex, ste.entryNum(), ste.getSrcText(), translation, note);
+        return ste.entryNum();
+    }
+
+    /** The layout chosen for an export, unless one was set. */
+    private ReviewLayout layoutOf(ReviewSnapshot snapshot) {
+        return layout != null ? layout : ReviewLayout.of(snapshot);
+    }
+
+    /**
+     * A copy of the document set up for the project, before any file is
+     * added. Loading it is faster than creating the styles, headers and
+     * metadata again.
+     */
+    private TextDocument newDocument(ReviewSnapshot snapshot) throws Exception {
+        Skeleton current = skeleton;
+        if (current == null || !current.key.equals(skeletonKey(snapshot))) {
+            current = warmSkeleton(snapshot);
         }
+        defaultParagraphLanguage = current.defaultParagraphLanguage;
+        return TextDocument.loadDocument(new ByteArrayInputStream(current.document));
     }
 
-    private void setupDocument(TextDocument odt) throws Exception {
+    /** Set up and cache the skeleton of the text documents of a project. */
+    Skeleton warmSkeleton(ReviewSnapshot snapshot) throws Exception {
+        ByteArrayOutputStream document = new ByteArrayOutputStream();
+        try (TextDocument odt = TextDocument.newTextDocument()) {
+            setupDocument(odt, snapshot);
+            odt.save(document);
+        }
+        Skeleton current = new Skeleton(skeletonKey(snapshot), document.toByteArray(),
+                defaultParagraphLanguage);
+        skeleton = current;
+        return current;
+    }
+
+    /** The skeleton depends on the project and on the markup. */
+    private String skeletonKey(ReviewSnapshot snapshot) {
+        return String.join("\n", snapshot.getProjectName(), snapshot.getSourceLanguage().toString(),
+                snapshot.getTargetLanguage().toString(), Boolean.toString(compactMarkup));
+    }
+
+    private void setupDocument(TextDocument odt, ReviewSnapshot snapshot) throws Exception {
         OdfOfficeStyles styles = odt.getOrCreateDocumentStyles();
 
-        ProjectProperties props = project.getProjectProperties();
         Meta metadata = new Meta(odt.getMetaDom());
         metadata.setUserDefinedData(METADATA_SOURCE, Value.STRING.toString(),
-                props.getSourceLanguage().toString());
+                snapshot.getSourceLanguage().toString());
         metadata.setUserDefinedData(METADATA_TARGET, Value.STRING.toString(),
-                props.getTargetLanguage().toString());
-        metadata.setUserDefinedData(METADATA_PROJECT, Value.STRING.toString(), props.getProjectName());
+                snapshot.getTargetLanguage().toString());
+        metadata.setUserDefinedData(METADATA_PROJECT, Value.STRING.toString(), snapshot.getProjectName());
 
         // Simple ODF creates a useless empty paragraph by default
         Paragraph firstPara = odt.getParagraphByIndex(0, false);
@@ -366,8 +878,8 @@ public class ODTReviewPlugin {
         protectCell(cellLeft);
 
         Cell cellRight = tableHeader.getCellByPosition(1, 0);
-        p = cellRight
-                .addParagraph(String.format(res.getString("table.header.project"), props.getProjectName()));
+        p = cellRight.addParagraph(
+                String.format(res.getString("table.header.project"), snapshot.getProjectName()));
         setParaLanguage(p, STYLE_DEFAULT_LANG);
         protectCell(cellRight);
         cellRight.setHorizontalAlignment(HorizontalAlignmentType.RIGHT);
@@ -444,11 +956,20 @@ public class ODTReviewPlugin {
 
         style = styles.newStyle(STYLE_SOURCE_LANG, OdfStyleFamily.Paragraph);
         setParaLanguage(style.newStyleTextPropertiesElement(STYLE_SOURCE_LANG + STYLE_TEXT_SUFFIX),
-                props.getSourceLanguage().getLocale());
+                snapshot.getSourceLanguage().getLocale());
 
         style = styles.newStyle(STYLE_TARGET_LANG, OdfStyleFamily.Paragraph);
         setParaLanguage(style.newStyleTextPropertiesElement(STYLE_TARGET_LANG + STYLE_TEXT_SUFFIX),
-                props.getTargetLanguage().getLocale());
+                snapshot.getTargetLanguage().getLocale());
+
+        // The notes inherit the language of the default paragraph style
+        OdfDefaultStyle defaultStyle = compactMarkup ? styles.getDefaultStyle(OdfStyleFamily.Paragraph)
+                : null;
+        defaultParagraphLanguage = defaultStyle != null;
+        if (defaultParagraphLanguage) {
+            defaultStyle.setProperty(StyleTextPropertiesElement.Language, DEFAULT_LOCALE.getLanguage());
+            defaultStyle.setProperty(StyleTextPropertiesElement.Country, DEFAULT_LOCALE.getCountry());
+        }
 
         // Reviewer info
         Table tableReviewerInfo = odt.addTable(1, 2);
@@ -497,7 +1018,38 @@ public class ODTReviewPlugin {
 
         Cell cellNote = table.getCellByPosition(COL_NOTE, rowIndex);
         para = cellNote.addParagraph(note);
-        setParaLanguage(para, STYLE_DEFAULT_LANG);
+        if (!defaultParagraphLanguage) {
+            setParaLanguage(para, STYLE_DEFAULT_LANG);
+        }
+
+        if (compactMarkup) {
+            useColumnStyle(cellId, COL_INDEX);
+            useColumnStyle(cellSource, COL_SOURCE);
+            useColumnStyle(cellTarget, COL_TARGET);
+            useColumnStyle(cellNote, COL_NOTE);
+        }
+    }
+
+    private void addExtraCell(Table table, int rowIndex, int col, String value) {
+        Cell cell = table.getCellByPosition(col, rowIndex);
+        protectCell(cell);
+        Paragraph para = cell.addParagraph(value);
+        if (!defaultParagraphLanguage) {
+            setParaLanguage(para, STYLE_DEFAULT_LANG);
+        }
+        if (compactMarkup) {
+            useColumnStyle(cell, col);
+        }
+    }
+
+    /**
+     * The ODF toolkit gives a style to each cell, drop it when it's the
+     * default cell style of the column.
+     */
+    private void useColumnStyle(Cell cell, int col) {
+        if (columnCellStyles[col] != null && columnCellStyles[col].equals(cell.getStyleName())) {
+            cell.getOdfElement().removeAttributeNS(OdfDocumentNamespace.TABLE.getUri(), "style-name");
+        }
     }
 
     private void protectCell(Cell cellSource) {
@@ -508,8 +1060,9 @@ public class ODTReviewPlugin {
         cellSource.getListContainerElement().setOdfAttributeValue(PROTECTED_CELL, TRUE);
     }
 
-    /** Create a table for each source file. */
-    private Table createTable(TextDocument odt, int index, int maxSegments, String sourceFile) {
+    /** Create a table for each source file, in its own section. */
+    private Table createFileTable(TextDocument odt, ReviewSnapshot snapshot, ReviewColumns columns, int index,
+            int maxSegments, String sourceFile) {
         Section fileSection = odt.appendSection("odt-review-file-" + index);
         Paragraph paraFile = fileSection
                 .addParagraph(String.format(res.getString("table.header.file"), sourceFile));
@@ -517,26 +1070,65 @@ public class ODTReviewPlugin {
         if (PROTECT_CELLS) {
             fileSection.setProtected(true);
         }
+        return createTable(odt, snapshot, columns, maxSegments, sourceFile);
+    }
 
-        Table table = odt.addTable(maxSegments + 1, TABLE_COLUMNS_COUNT);
-        table.setTableName(sourceFile);
+    /**
+     * Create a table with its header row.
+     *
+     * @param rowCount
+     *            number of rows after the header
+     */
+    private Table createTable(TextDocument odt, ReviewSnapshot snapshot, ReviewColumns columns, int rowCount,
+            String tableName) {
+        int columnCount = TABLE_COLUMNS_COUNT + columns.size();
+        Table table = odt.addTable(rowCount + 1, columnCount);
+        table.setTableName(tableName);
 
-        ProjectProperties projectProperties = project.getProjectProperties();
         setHeaderCell(table, COL_INDEX, 0, res.getString("table.header.id"));
         setHeaderCell(table, COL_SOURCE, 0,
-                String.format(res.getString("table.header.source"), projectProperties.getSourceLanguage()));
+                String.format(res.getString("table.header.source"), snapshot.getSourceLanguage()));
         setHeaderCell(table, COL_TARGET, 0,
-                String.format(res.getString("table.header.target"), projectProperties.getTargetLanguage()));
+                String.format(res.getString("table.header.target"), snapshot.getTargetLanguage()));
         setHeaderCell(table, COL_NOTE, 0, res.getString("table.header.note"));
 
         table.getColumnByIndex(COL_INDEX).setWidth(SIZE_COL_INDEX);
         table.getColumnByIndex(COL_SOURCE).setWidth(SIZE_COL_SOURCE);
         table.getColumnByIndex(COL_TARGET).setWidth(SIZE_COL_TARGET);
         table.getColumnByIndex(COL_NOTE).setWidth(SIZE_COL_NOTE);
+        for (int extra = 0; extra < columns.size(); extra++) {
+            setHeaderCell(table, TABLE_COLUMNS_COUNT + extra, 0, columns.getHeader(extra));
+            table.getColumnByIndex(TABLE_COLUMNS_COUNT + extra).setWidth(SIZE_COL_EXTRA);
+        }
+
+        // The segment rows all have the same cell styles, which become the
+        // default cell styles of the columns
+        columnCellStyles = new String[columnCount];
+        for (int col = 0; col < columnCount; col++) {
+            if (compactMarkup && rowCount > 0) {
+                columnCellStyles[col] = table.getCellByPosition(col, 1).getStyleName();
+                if (columnCellStyles[col] != null) {
+                    table.getColumnByIndex(col).getOdfElement()
+                            .setTableDefaultCellStyleNameAttribute(columnCellStyles[col]);
+                }
+            }
+        }
 
         return table;
     }
 
+    /**
+     * In a single table, the row starting a file holds its path in a cell
+     * spanning all the columns.
+     */
+    private void addFileRow(Table table, int rowIndex, String sourceFile) {
+        Cell cell = table.getCellByPosition(COL_INDEX, rowIndex);
+        Paragraph para = cell.addParagraph(sourceFile);
+        para.getOdfElement().setStyleName(STYLE_FILE);
+        protectCell(cell);
+        table.getCellRangeByPosition(COL_INDEX, rowIndex, table.getColumnCount() - 1, rowIndex).merge();
+    }
+
     private Cell setHeaderCell(Table table, int col, int row, String text) {
         Cell cell = table.getCellByPosition(col, row);
         cell.setHorizontalAlignment(HorizontalAlignmentType.CENTER);
@@ -551,76 +1143,490 @@ public class ODTReviewPlugin {
     }
 
     /**
-     * Export the segments in an ODT file, with the source, target and notes.
+     * Import the reviewed segments from an ODT or ODS file.
      */
     public void importODT(File input) {
-        log(Level.INFO, String.format(res.getString("odt.file.importing"), input.getAbsolutePath()));
+        try {
+            if (!importReview(input)) {
+                return;
+            }
+
+            String message = String.format(res.getString("dialog.import.successful"), input.getAbsolutePath(),
+                    updatedTranslations, updatedComments);
+            if (!ambiguousRows.isEmpty()) {
+                message += String.format(res.getString("dialog.import.ambiguous"), ambiguousRows.size(),
+                        ambiguousRows);
+            }
+            if (!rejectedRows.isEmpty()) {
+                message += String.format(res.getString("dialog.import.rejected"), rejectedRows.size(),
+                        rejectedRows);
+            }
+            boolean incomplete = !ambiguousRows.isEmpty() || !rejectedRows.isEmpty();
+            JOptionPane.showMessageDialog(JOptionPane.getRootFrame(), message,
+                    res.getString("dialog.import.title"),
+                    incomplete ? JOptionPane.WARNING_MESSAGE : JOptionPane.INFORMATION_MESSAGE);
+
+        } catch (Exception e) {
+            Log.logErrorRB(e, res.getString("odt.error.import"));
+
+            JOptionPane.showMessageDialog(
+                    JOptionPane.getRootFrame(), String.format(res.getString("dialog.import.error"),
+                            input.getAbsolutePath(), e.getMessage()),
+                    res.getString("odt.error.import"), JOptionPane.ERROR_MESSAGE);
+        }
+    }
+
+    /**
+     * Import the reviewed segments from an ODT or ODS file, without reporting
+     * the result to the user. A confirmation is only asked if the file doesn't
+     * match the project.
+     *
+     * @return <code>false</code> if the user cancelled the import.
+     */
+    public boolean importReview(File input) throws Exception {
+        if (!prepareImport(input)) {
+            return false;
+        }
+        applyImport();
+        return true;
+    }
+
+    /**
+     * Read a review file and compare it with the project, without updating
+     * it: the changes are kept until {@link #applyImport()}. The file can be
+     * read on any thread, only the update of the project needs the UI thread.
+     *
+     * @return <code>false</code> if the user cancelled the import.
+     */
+    boolean prepareImport(File input) throws Exception {
+        log(Level.INFO, () -> String.format(res.getString("odt.file.importing"), input.getAbsolutePath()));
+
+        // Pre-flight check, the document is only loaded once the user
+        // confirmed a mismatching file should be imported anyway.
+        ReviewMetadata metadata = ReviewMetadata.read(input);
+        if (!checkReviewImport(metadata)) {
+            return false;
+        }
+        reviewerName = metadata.getReviewerName();
+        reviewFileHash = ReviewHistory.hash(input);
+
+        List<ReviewDiff.Row> rows;
+        if (isSpreadsheet(input)) {
+            rows = new ArrayList<>();
+            try (ZipFile ods = new ZipFile(input)) {
+                OdsReviewReader.read(ods, rowCollector(rows));
+            }
+        } else {
+            rows = trackedChangesOnly ? readTrackedChanges(input) : null;
+            if (rows == null) {
+                try (TextDocument odt = TextDocument.loadDocument(input)) {
+                    rows = readTextDocument(odt);
+                }
+            }
+        }
+        diffReview(rows);
+        return true;
+    }
+
+    /**
+     * Import the reviewed segments from a stream, e.g. an HTTP upload. The
+     * stream is read once, and not closed.
+     * <p>
+     * A spreadsheet is read in streaming, and its metadata are checked before
+     * the project is updated. A text document is loaded in memory, like from a
+     * file. When only the tracked changes are imported, a text document is
+     * copied to a temporary file first, since it's loaded again if it has no
+     * tracked changes.
+     *
+     * @return <code>false</code> if the user cancelled the import.
+     */
+    public boolean importReview(InputStream input, ReviewFormat format) throws Exception {
+        log(Level.INFO, () -> String.format(res.getString("odt.stream.importing"), format));
+
+        // The stream is hashed while it's read
+        MessageDigest digest = ReviewHistory.newDigest();
+        InputStream digested = new DigestInputStream(input, digest);
+        List<ReviewDiff.Row> rows;
+        if (format == ReviewFormat.ODS) {
+            rows = new ArrayList<>();
+            ReviewMetadata metadata = readSpreadsheet(digested, rows);
+            if (!checkReviewImport(metadata)) {
+                return false;
+            }
+        } else if (trackedChangesOnly) {
+            // The package is read twice if it has no tracked changes, so it's
+            // spooled to a temporary file rather than copied in memory
+            File spooled = File.createTempFile("odt-review", ODT_EXTENSION);
+            try {
+                Files.copy(digested, spooled.toPath(), StandardCopyOption.REPLACE_EXISTING);
+                if (!checkReviewImport(ReviewMetadata.read(spooled))) {
+                    return false;
+                }
+                rows = readTrackedChanges(spooled);
+                if (rows == null) {
+                    try (TextDocument odt = TextDocument.loadDocument(spooled)) {
+                        rows = readTextDocument(odt);
+                    }
+                }
+            } finally {
+                Files.deleteIfExists(spooled.toPath());
+            }
+        } else {
+            // The ODF toolkit closes the stream it loads from
+            try (TextDocument odt = TextDocument.loadDocument(OdfXml.nonClosing(digested))) {
+                if (!checkReviewImport(ReviewMetadata.of(new Meta(odt.getMetaDom())))) {
+                    return false;
+                }
+                rows = readTextDocument(odt);
+            }
+        }
+        // The central directory of the package is not read by the parsers
+        byte[] buffer = new byte[8192];
+        while (digested.read(buffer) >= 0) {
+            /* empty */
+        }
+        reviewFileHash = digest.digest();
+        diffReview(rows);
+        applyImport();
+        return true;
+    }
+
+    /**
+     * Read the segment rows of a review stream, without checking its metadata
+     * nor comparing the rows with the project.
+     */
+    List<ReviewDiff.Row> readRows(InputStream input, ReviewFormat format) throws Exception {
+        if (format == ReviewFormat.ODS) {
+            List<ReviewDiff.Row> rows = new ArrayList<>();
+            readSpreadsheet(input, rows);
+            return rows;
+        }
+        try (TextDocument odt = TextDocument.loadDocument(OdfXml.nonClosing(input))) {
+            return readTextDocument(odt);
+        }
+    }
+
+    /**
+     * A non-interactive import never asks the user, and rejects the review
+     * files which don't match the project.
+     */
+    void setInteractive(boolean interactive) {
+        this.interactive = interactive;
+    }
+
+    /** Entries changed by the last import. */
+    List<Integer> getChangedEntries() {
+        return changedEntries;
+    }
+
+    /**
+     * A reproducible export gives the same bytes for the same project, so an
+     * unchanged review can be detected by its hash.
+     */
+    public void setReproducible(boolean reproducible) {
+        this.reproducible = reproducible;
+    }
+
+    /**
+     * The clock giving the dates of the exported files: the creation date of
+     * the text documents, and the date of the package entries. The dates are
+     * left out of reproducible exports.
+     */
+    public void setClock(Clock clock) {
+        this.clock = clock;
+    }
+
+    /**
+     * Compress the spreadsheets and the reproducible text documents on this
+     * number of threads, <code>-Dodtreview.deflate.threads</code> or all the
+     * processors by default. The packages don't depend on it.
+     */
+    public void setDeflateThreads(int deflateThreads) {
+        this.deflateThreads = deflateThreads;
+    }
+
+    /**
+     * Choose whether the files are in separate tables or in a single one,
+     * <code>null</code> to choose it from the number and size of the files.
+     */
+    public void setLayout(ReviewLayout layout) {
+        this.layout = layout;
+    }
+
+    /**
+     * Only import the rows of a text document with a tracked change, when
+     * Track Changes was on. The other documents are fully compared.
+     */
+    public void setTrackedChangesOnly(boolean trackedChangesOnly) {
+        this.trackedChangesOnly = trackedChangesOnly;
+    }
+
+    /**
+     * With compact markup, the cells of a text document share the cell style
+     * of their column, and the notes use the default paragraph style, instead
+     * of repeating the same attributes on each row.
+     */
+    public void setCompactMarkup(boolean compactMarkup) {
+        this.compactMarkup = compactMarkup;
+    }
+
+    /**
+     * Render the exports on this number of worker processes, 0 or 1 to render
+     * them in OmegaT, see {@link ReviewShards}.
+     */
+    public void setExportWorkers(int exportWorkers) {
+        this.exportWorkers = exportWorkers;
+    }
+
+    /**
+     * Without instrumentation, the exports don't run the registered column
+     * providers and don't trace the rows, e.g. while warming up.
+     */
+    void setInstrumented(boolean instrumented) {
+        this.instrumented = instrumented;
+    }
+
+    /** Number of translations updated by the last import. */
+    public int getUpdatedTranslations() {
+        return updatedTranslations;
+    }
+
+    /** Number of notes added by the last import. */
+    public int getUpdatedComments() {
+        return updatedComments;
+    }
+
+    /**
+     * Number of rows of the last import matched by their source text, because
+     * their entry number had changed.
+     */
+    public int getReanchoredRows() {
+        return reanchoredRows;
+    }
+
+    /**
+     * Entry numbers of the rows of the last import which match several
+     * segments of the project, and were not imported.
+     */
+    public List<Integer> getAmbiguousRows() {
+        return ambiguousRows;
+    }
+
+    /**
+     * Entry numbers of the rows of the last import whose translation was not
+     * imported, because its tags don't match the source.
+     */
+    public List<Integer> getRejectedRows() {
+        return rejectedRows;
+    }
+
+    /**
+     * Compare the rows with the project, the changes are kept until they are
+     * applied.
+     */
+    private void diffReview(List<ReviewDiff.Row> rows) {
+        // The same plugin may import several streams
+        changedEntries.clear();
+        updatedTranslations = 0;
+        updatedComments = 0;
 
         // Update the origin properties
-        reviewDate = new SimpleDateFormat("yyyy-MM-dd HH:mm").format(new Date(System.currentTimeMillis()));
+        reviewTime = System.currentTimeMillis();
+        reviewDate = new SimpleDateFormat("yyyy-MM-dd HH:mm").format(new Date(reviewTime));
 
         // Convert the project entries to a Map for quick access later on.
         Map<Integer, SourceTextEntry> allEntries = project.getAllEntries().stream()
                 .collect(Collectors.toMap(SourceTextEntry::entryNum, Function.identity()));
 
-        try (TextDocument odt = TextDocument.loadDocument(input)) {
-            boolean isChecked = checkReviewImport(odt);
+        String reviewPropValue = String.format(res.getString("odt.properties.reviewed"), reviewerName,
+                reviewDate);
+        ReviewDiff diff = new ReviewDiff(project, allEntries, reviewPropValue);
+        pendingChanges = diff.compute(rows);
+
+        // The entry numbers drifted if the project was changed since the
+        // export
+        reanchoredRows = diff.getReanchoredRows();
+        ambiguousRows = diff.getAmbiguousRows(rows);
+        if (reanchoredRows > 0) {
+            log(Level.INFO, () -> String.format(res.getString("odt.import.reanchored"), reanchoredRows));
+        }
+        if (!ambiguousRows.isEmpty()) {
+            log(Level.WARNING, () -> String.format(res.getString("odt.import.ambiguous"),
+                    ambiguousRows.size(), ambiguousRows));
+        }
+
+        // The tags of the reviewed translations were checked by the diff
+        pendingRejections = diff.getRejectedRows();
+        rejectedRows = pendingRejections.stream().map(r -> r.entryNum).collect(Collectors.toList());
+        if (!pendingRejections.isEmpty()) {
+            List<ReviewTags.Rejection> rejections = pendingRejections;
+            log(Level.WARNING, () -> String.format(res.getString("odt.import.rejected"), rejections.size(),
+                    rejections.stream().map(String::valueOf).collect(Collectors.joining("\n"))));
+        }
+    }
 
-            if (!isChecked) {
-                return;
-            }
+    /**
+     * Update the entries changed by the review prepared by
+     * {@link #prepareImport(File)}, on the UI thread.
+     */
+    void applyImport() {
+        List<ReviewDiff.Change> changes = applyChanges(pendingChanges);
+        recordHistory(reviewTime, changes, pendingRejections);
+        pendingChanges = Collections.emptyList();
+        pendingRejections = Collections.emptyList();
+    }
+
+    /**
+     * Append the entries changed or rejected by the import to the review
+     * history of the project, if it has a folder.
+     */
+    private void recordHistory(long reviewTime, List<ReviewDiff.Change> changes,
+            List<ReviewTags.Rejection> rejections) {
+        ReviewHistory history = ReviewHistory.of(project);
+        if (!history.isAvailable()) {
+            return;
+        }
+        Map<Integer, Integer> kinds = new LinkedHashMap<>();
+        for (ReviewDiff.Change change : changes) {
+            int kind = (change.translationUpdated ? ReviewHistory.TRANSLATION : 0)
+                    | (change.noteAdded ? ReviewHistory.NOTE : 0);
+            kinds.merge(change.entry.entryNum(), kind, (a, b) -> a | b);
+        }
+        for (ReviewTags.Rejection rejection : rejections) {
+            kinds.merge(rejection.entryNum, ReviewHistory.REJECTED, (a, b) -> a | b);
+        }
+        try {
+            history.append(reviewerName, reviewTime, reviewFileHash, kinds);
+        } catch (IOException e) {
+            // The import itself succeeded
+            log(Level.WARNING, () -> String.format(res.getString("odt.history.error"), e.getMessage()));
+        }
+    }
 
-            for (Table table : odt.getTableList()) {
-                if (REVIEWER_INFO.equals(table.getTableName())) {
-                    reviewerName = table.getCellByPosition(1, 0).getDisplayText();
+    /**
+     * Read the segment rows of a text document. The document is loaded in
+     * memory, and its DOM is only accessed from this thread.
+     */
+    private List<ReviewDiff.Row> readTextDocument(TextDocument odt) {
+        List<ReviewDiff.Row> rows = new ArrayList<>();
+        for (Table table : odt.getTableList()) {
+            if (REVIEWER_INFO.equals(table.getTableName())) {
+                reviewerName = table.getCellByPosition(1, 0).getDisplayText();
+                continue;
+            }
+            log(Level.FINEST, () -> String.format("File %s", table.getTableName()));
+            boolean singleTable = ReviewLayout.SINGLE_TABLE_NAME.equals(table.getTableName());
+            // The tables of the files are named after their path
+            String filePath = singleTable ? null : table.getTableName();
+            int rowCount = table.getRowCount();
+            for (int rowIndex = 1; rowIndex < rowCount; rowIndex++) {
+                Cell cellId = table.getCellByPosition(COL_INDEX, rowIndex);
+                if (singleTable && cellId.getColumnSpannedNumber() > 1) {
+                    // The row starting a file
+                    filePath = cellId.getDisplayText();
                     continue;
                 }
-                log(Level.FINEST, String.format("File %s", table.getTableName()));
-                int rowCount = table.getRowCount();
-                for (int rowIndex = 1; rowIndex < rowCount; rowIndex++) {
-                    int entryNum = Integer
-                            .parseInt(table.getCellByPosition(COL_INDEX, rowIndex).getStringValue());
-                    if (!allEntries.containsKey(entryNum)) {
-                        log(Level.FINE, String.format("Cannot find segment #%d in the project", entryNum));
-                        continue;
-                    }
+                int entryNum = Integer.parseInt(cellId.getStringValue());
+                rows.add(new ReviewDiff.Row(filePath, entryNum,
+                        table.getCellByPosition(COL_SOURCE, rowIndex).getStringValue(),
+                        table.getCellByPosition(COL_TARGET, rowIndex).getStringValue(),
+                        table.getCellByPosition(COL_NOTE, rowIndex).getStringValue()));
+            }
+        }
+        return rows;
+    }
 
-                    updateSegment(table, rowIndex, allEntries.get(entryNum));
+    /**
+     * Read the rows of a text document with a tracked change.
+     *
+     * @return <code>null</code> if the document has no tracked changes, and
+     *         must be read with {@link #readTextDocument(TextDocument)}
+     */
+    private List<ReviewDiff.Row> readTrackedChanges(File input) throws Exception {
+        try (ZipFile odt = new ZipFile(input)) {
+            ZipEntry entry = odt.getEntry(OdfXml.CONTENT_ENTRY);
+            if (entry == null) {
+                return null;
+            }
+            List<ReviewDiff.Row> rows = new ArrayList<>();
+            try (InputStream in = odt.getInputStream(entry)) {
+                if (!OdtTrackedChangesReader.read(in, rowCollector(rows))) {
+                    return null;
+                }
+            }
+            log(Level.INFO, () -> String.format(res.getString("odt.import.tracked"), rows.size()));
+            return rows;
+        }
+    }
 
+    /**
+     * Read a spreadsheet package in a single pass, entry by entry.
+     *
+     * @return the metadata of the package
+     */
+    private ReviewMetadata readSpreadsheet(InputStream input, List<ReviewDiff.Row> rows) throws Exception {
+        ReviewMetadata metadata = ReviewMetadata.EMPTY;
+        try (ZipInputStream zip = new ZipInputStream(OdfXml.nonClosing(input))) {
+            // The JDK parser closes its input at the end of the document
+            InputStream entryInput = OdfXml.nonClosing(zip);
+            for (ZipEntry entry = zip.getNextEntry(); entry != null; entry = zip.getNextEntry()) {
+                if (OdfXml.META_ENTRY.equals(entry.getName())) {
+                    metadata = ReviewMetadata.read(entryInput);
+                } else if (OdfXml.CONTENT_ENTRY.equals(entry.getName())) {
+                    OdsReviewReader.read(entryInput, rowCollector(rows));
                 }
             }
+        }
+        return metadata;
+    }
 
-            JOptionPane.showMessageDialog(JOptionPane.getRootFrame(),
-                    String.format(res.getString("dialog.import.successful"), input.getAbsolutePath(),
-                            updatedTranslations, updatedComments),
-                    res.getString("dialog.import.title"), JOptionPane.INFORMATION_MESSAGE);
+    private OdsReviewReader.RowHandler rowCollector(List<ReviewDiff.Row> rows) {
+        return new OdsReviewReader.RowHandler() {
+            @Override
+            public void reviewer(String name) {
+                reviewerName = name;
+            }
 
-        } catch (Exception e) {
-            Log.logErrorRB(e, res.getString("odt.error.import"));
+            @Override
+            public void row(String filePath, int entryNum, String source, String target, String note) {
+                rows.add(new ReviewDiff.Row(filePath, entryNum, source, target, note));
+            }
+        };
+    }
 
-            JOptionPane.showMessageDialog(
-                    JOptionPane.getRootFrame(), String.format(res.getString("dialog.import.error"),
-                            input.getAbsolutePath(), e.getMessage()),
-                    res.getString("odt.error.import"), JOptionPane.ERROR_MESSAGE);
+    /**
+     * Check that the imported document matches the current project (name,
+     * target and source languages). On a mismatch, the user is asked whether
+     * to import it anyway, unless the import is not interactive.
+     */
+    private boolean checkReviewImport(ReviewMetadata metadata) {
+        String warnings = getReviewMismatch(metadata);
+        if (warnings == null) {
+            return true;
+        }
+        if (!interactive) {
+            return false;
         }
+        int noHeader = JOptionPane.showConfirmDialog(JOptionPane.getRootFrame(),
+                String.format(res.getString("odt.warning.mismatch.dialog"), warnings),
+                res.getString("odt.warning.import"), JOptionPane.YES_NO_OPTION, JOptionPane.WARNING_MESSAGE);
+        return noHeader != JOptionPane.NO_OPTION;
     }
 
     /**
-     * Check that the imported document matches the current project (name,
-     * target and source languages).
+     * Compare the metadata of a review file with the current project.
+     *
+     * @return the description of the differences, or <code>null</code> if the
+     *         file matches the project.
      */
-    private boolean checkReviewImport(TextDocument odt) throws Exception {
+    String getReviewMismatch(ReviewMetadata metadata) {
         boolean odtWarning = false;
         ProjectProperties props = project.getProjectProperties();
-        Meta metadata = new Meta(odt.getMetaDom());
         String unknown = res.getString("odt.metadata.unknown");
 
-        String reviewSource = Optional.ofNullable(metadata.getUserDefinedDataValue(METADATA_SOURCE))
-                .orElse(unknown);
-        String reviewTarget = Optional.ofNullable(metadata.getUserDefinedDataValue(METADATA_TARGET))
-                .orElse(unknown);
-        String reviewName = Optional.ofNullable(metadata.getUserDefinedDataValue(METADATA_PROJECT))
-                .orElse(unknown);
+        String reviewSource = Optional.ofNullable(metadata.getSourceLanguage()).orElse(unknown);
+        String reviewTarget = Optional.ofNullable(metadata.getTargetLanguage()).orElse(unknown);
+        String reviewName = Optional.ofNullable(metadata.getProjectName()).orElse(unknown);
 
         String projectSource = props.getSourceLanguage().toString();
         String projectTarget = props.getTargetLanguage().toString();
@@ -643,150 +1649,143 @@ public class ODTReviewPlugin {
             odtWarning = true;
         }
 
-        if (odtWarning) {
-            log(Level.WARNING, String.format(res.getString("odt.warning.mismatch"), reviewName, reviewSource,
-                    reviewTarget));
-            int noHeader = JOptionPane.showConfirmDialog(JOptionPane.getRootFrame(),
-                    String.format(res.getString("odt.warning.mismatch.dialog"), sbWarnings.toString()),
-                    res.getString("odt.warning.import"), JOptionPane.YES_NO_OPTION,
-                    JOptionPane.WARNING_MESSAGE);
-
-            if (noHeader == JOptionPane.NO_OPTION) {
-                return false;
-            }
+        if (!odtWarning) {
+            return null;
         }
-
-        return true;
+        log(Level.WARNING, () -> String.format(res.getString("odt.warning.mismatch"), reviewName,
+                reviewSource, reviewTarget));
+        return sbWarnings.toString();
     }
 
     /**
-     * Update a segment in the editor.
+     * Update the segments in the project, in the order of the review file.
+     * An entry whose translation was changed since the review was compared
+     * with the project is left alone, rather than overwriting that change.
      *
+     * @return the changes applied
      * @see org.omegat.gui.editor.filter.ReplaceFilter.replaceAll()
      */
-    private void updateSegment(Table table, int rowIndex, SourceTextEntry ste) {
-        String sourceText = table.getCellByPosition(COL_SOURCE, rowIndex).getStringValue();
-        String targetTranslation = table.getCellByPosition(COL_TARGET, rowIndex).getStringValue();
-        String note = table.getCellByPosition(COL_NOTE, rowIndex).getStringValue();
-
-        if (LOGGER.isLoggable(Level.FINEST)) {
-            log(Level.FINEST, String.format("Id     : %d", ste.entryNum()));
-            log(Level.FINEST, String.format("Source : %s", sourceText));
-            log(Level.FINEST, String.format("Target : %s", targetTranslation));
-            log(Level.FINEST, String.format("Note   : %s", note));
-        }
-
-        // if this was an empty translation, don't update the translation with
-        // "<EMPTY>"!
-        if (targetTranslation.equals(res.getString("empty.translation"))) {
-            targetTranslation = "";
-        }
-
-        // Translation has changed during the review
-        TMXEntry en = Core.getProject().getTranslationInfo(ste);
-        boolean hasChanged = false;
-        if (hasReviewChanges(en, sourceText, targetTranslation, note)) {
-            PrepareTMXEntry prepare = new PrepareTMXEntry(en);
-
-            hasChanged = updateTranslation(targetTranslation, hasChanged, prepare);
-
-            hasChanged = updateNote(note, hasChanged, prepare);
-
-            if (hasChanged) {
-                updateStatusProperties(prepare);
-                Core.getProject().setTranslation(ste, prepare, en.defaultTranslation, null);
-                changedEntries.add(ste.entryNum());
+    private List<ReviewDiff.Change> applyChanges(List<ReviewDiff.Change> changes) {
+        List<ReviewDiff.Change> applied = new ArrayList<>(changes.size());
+        for (ReviewDiff.Change change : changes) {
+            TMXEntry current = project.getTranslationInfo(change.entry);
+            if (current != change.current && !isSameTranslation(current, change.current)) {
+                log(Level.WARNING, () -> String.format(res.getString("odt.import.changed"),
+                        change.entry.entryNum()));
+                continue;
+            }
+            project.setTranslation(change.entry, change.updated, change.current.defaultTranslation, null);
+            applied.add(change);
+            changedEntries.add(change.entry.entryNum());
+            if (change.translationUpdated) {
+                updatedTranslations++;
+            }
+            if (change.noteAdded) {
+                updatedComments++;
             }
         }
-
+        return applied;
     }
 
-    private void updateStatusProperties(PrepareTMXEntry prepare) {
+    private static boolean isSameTranslation(TMXEntry a, TMXEntry b) {
+        return a != null && b != null && Objects.equals(a.translation, b.translation)
+                && Objects.equals(a.note, b.note);
+    }
 
-        String reviewPropValue = String.format(res.getString("odt.properties.reviewed"), reviewerName,
-                reviewDate);
-        TMXProp reviewProp = new TMXProp(REVIEWED_PROPERTIES, reviewPropValue);
+    /**
+     * Add a read-only column to the review files exported from now on.
+     *
+     * @see ReviewColumnProvider
+     */
+    public static void registerColumnProvider(ReviewColumnProvider provider) {
+        ReviewColumns.register(provider);
+    }
 
-        List<TMXProp> otherProperties = prepare.otherProperties;
-        if (otherProperties == null) {
-            otherProperties = new ArrayList<>();
-            otherProperties.add(reviewProp);
-            prepare.otherProperties = otherProperties;
-            return;
-        }
+    public static void unregisterColumnProvider(ReviewColumnProvider provider) {
+        ReviewColumns.unregister(provider);
+    }
 
-        ListIterator<TMXProp> iter = otherProperties.listIterator();
-        while (iter.hasNext()) {
-            if (REVIEWED_PROPERTIES.equals(iter.next().getType())) {
-                iter.remove();
-            }
-        }
-        otherProperties.add(reviewProp);
+    /** Plugin unloader. */
+    public static void unloadPlugins() {
+        /* empty */
     }
 
-    /** Check if a translation needs to be update, and updates it if so. */
-    private boolean updateTranslation(String targetTranslation, boolean hasChanged, PrepareTMXEntry prepare) {
-        if (!prepare.translation.equals(targetTranslation)) {
-            updatedTranslations++;
-            prepare.translation = targetTranslation;
-            prepare.changer = ODT_REVIEWER_ID;
-            hasChanged = true;
+    /**
+     * The import/export review are only available when a project is loaded,
+     * and the exports when no other export is running.
+     */
+    private static void onProjectStatusChanged(boolean isProjectLoaded) {
+        if (importODTReview != null) {
+            importODTReview.setEnabled(isProjectLoaded);
         }
-        return hasChanged;
+        setExportEnabled(isProjectLoaded && !exportRunning);
     }
 
-    /** Check if a note needs to be update, and updates it if so. */
-    private boolean updateNote(String note, boolean hasChanged, PrepareTMXEntry prepare) {
-        if (!note.isEmpty()) {
-            String reviewerNote = String.format(res.getString("reviewer.note"), note);
-
-            // If the review file is imported several times, the review
-            // notes are duplicated. We should check that the review doesn't
-            // end with the content of the reviewer note.
-
-            if (prepare.note != null && prepare.note.endsWith(note)) {
-                return hasChanged;
-            }
-
-            prepare.note = prepare.note != null && !prepare.note.isEmpty()
-                    ? prepare.note + "\n---\n" + reviewerNote
-                    : reviewerNote;
-            updatedComments++;
-            hasChanged = true;
+    private static void setExportEnabled(boolean enabled) {
+        if (exportODTReview != null) {
+            exportODTReview.setEnabled(enabled);
+        }
+        if (quickExportFile != null) {
+            quickExportFile.setEnabled(enabled);
+            quickExportEntries.setEnabled(enabled);
+            quickExportReviewed.setEnabled(enabled);
         }
-        return hasChanged;
     }
 
     /**
-     * For a given segmentNum, if the source text is the same (in case we tried
-     * to apply the odt to another project) and either the translation or the
-     * notes are different, we update the segment.
+     * Start watching the review inbox when a project is loaded, if one is
+     * configured, and stop when it's closed.
      */
-    private boolean hasReviewChanges(TMXEntry en, String source, String translation, String note) {
-        return en != null && source.equals(en.source)
-                && (!translation.equals(en.translation) || !note.equals(en.note));
+    private static void watchInbox(boolean isProjectLoaded) {
+        if (inbox != null) {
+            inbox.close();
+            inbox = null;
+        }
+        if (!isProjectLoaded) {
+            return;
+        }
+        try {
+            IProject project = Core.getProject();
+            Consumer<Runnable> uiThread = task -> UIThreadsUtil.executeInSwingThread(() -> {
+                // The reviews were compared with this project, which may have
+                // been closed or reloaded since
+                if (Core.getProject() != project || !project.isProjectLoaded()) {
+                    return;
+                }
+                Core.getEditor().commitAndDeactivate();
+                task.run();
+            });
+            inbox = ReviewInbox.configured(project, uiThread, summary -> {
+                if (!summary.getChangedEntries().isEmpty()) {
+                    Core.getEditor().refreshViewAfterFix(summary.getChangedEntries());
+                }
+                showStatusMessage(String.format(res.getString("odt.status.inbox"), summary.getImported(),
+                        summary.getFailed()));
+            });
+            if (inbox != null) {
+                inbox.start();
+            }
+        } catch (IOException e) {
+            Log.logErrorRB(e, res.getString("odt.error.inbox"));
+        }
     }
 
-    /** Plugin unloader. */
-    public static void unloadPlugins() {
-        /* empty */
-    }
+    /** A text document set up for a project, saved before any file is added. */
+    static final class Skeleton {
+        final String key;
+        final byte[] document;
+        final boolean defaultParagraphLanguage;
 
-    /** The import/export review are only available when a project is loaded. */
-    private static void onProjectStatusChanged(boolean isProjectLoaded) {
-        if (exportODTReview != null) {
-            exportODTReview.setEnabled(isProjectLoaded);
-        }
-        if (importODTReview != null) {
-            importODTReview.setEnabled(isProjectLoaded);
+        Skeleton(String key, byte[] document, boolean defaultParagraphLanguage) {
+            this.key = key;
+            this.document = document;
+            this.defaultParagraphLanguage = defaultParagraphLanguage;
         }
     }
 
-    private static void log(Level l, String message, Object... parameters) {
-        LogRecord rec = new LogRecord(l, message);
-        rec.setParameters(parameters);
-        rec.setLoggerName(LOGGER.getName());
-        LOGGER.log(rec);
+    /** The message is only built if the level is logged. */
+    private static void log(Level l, Supplier<String> message) {
+        LOGGER.log(l, message);
     }
 
     /** Hack to display a message other than a Bundle.properties string */
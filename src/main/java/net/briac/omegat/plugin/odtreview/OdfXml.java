@@ -0,0 +1,329 @@
+/**************************************************************************
+ OmegaT Plugin - ODT Review
+
+ Copyright (C) 2023 Briac Pilpré - briacp@gmail.com
+ Home page: https://github.com/briacp/plugin-odt-review
+
+ This program is free software: you can redistribute it and/or modify
+ it under the terms of the GNU General Public License as published by
+ the Free Software Foundation, either version 3 of the License, or
+ (at your option) any later version.
+
+ This program is distributed in the hope that it will be useful,
+ but WITHOUT ANY WARRANTY; without even the implied warranty of
+ MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ GNU General Public License for more details.
+
+ You should have received a copy of the GNU General Public License
+ along with this program. If not, see <http://www.gnu.org/licenses/>.
+ **************************************************************************/
+
+package net.briac.omegat.plugin.odtreview;
+
+import java.io.BufferedOutputStream;
+import java.io.FilterInputStream;
+import java.io.FilterOutputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.OutputStream;
+import java.nio.charset.StandardCharsets;
+import java.util.Calendar;
+import java.util.GregorianCalendar;
+import java.util.zip.CRC32;
+import java.util.zip.ZipEntry;
+
+import javax.xml.stream.XMLInputFactory;
+import javax.xml.stream.XMLOutputFactory;
+import javax.xml.stream.XMLStreamException;
+import javax.xml.stream.XMLStreamReader;
+import javax.xml.stream.XMLStreamWriter;
+
+/**
+ * Constants and helpers to read and write the XML parts of an OpenDocument
+ * package with StAX, without loading them in a DOM.
+ */
+final class OdfXml {
+
+    static final String NS_OFFICE = "urn:oasis:names:tc:opendocument:xmlns:office:1.0";
+    static final String NS_STYLE = "urn:oasis:names:tc:opendocument:xmlns:style:1.0";
+    static final String NS_TEXT = "urn:oasis:names:tc:opendocument:xmlns:text:1.0";
+    static final String NS_TABLE = "urn:oasis:names:tc:opendocument:xmlns:table:1.0";
+    static final String NS_FO = "urn:oasis:names:tc:opendocument:xmlns:xsl-fo-compatible:1.0";
+    static final String NS_META = "urn:oasis:names:tc:opendocument:xmlns:meta:1.0";
+    static final String NS_DC = "http://purl.org/dc/elements/1.1/";
+    static final String NS_MANIFEST = "urn:oasis:names:tc:opendocument:xmlns:manifest:1.0";
+    // LibreOffice extensions, ignored by the other applications
+    static final String NS_LOEXT = "urn:org:documentfoundation:names:experimental:office:xmlns:loext:1.0";
+
+    static final String ODF_VERSION = "1.2";
+
+    private static final int BUFFER_SIZE = 64 * 1024;
+
+    /**
+     * Modification time of the entries of a reproducible package: the
+     * earliest DOS date, 1980-01-01 00:00, in local time since that's how
+     * {@link ZipEntry#setTime(long)} encodes it.
+     */
+    static final long REPRODUCIBLE_TIME = new GregorianCalendar(1980, Calendar.JANUARY, 1).getTimeInMillis();
+
+    static final String MIMETYPE_ENTRY = "mimetype";
+    static final String MANIFEST_ENTRY = "META-INF/manifest.xml";
+    static final String CONTENT_ENTRY = "content.xml";
+    static final String STYLES_ENTRY = "styles.xml";
+    static final String META_ENTRY = "meta.xml";
+
+    private static final String[][] NAMESPACES = { { "office", NS_OFFICE }, { "style", NS_STYLE },
+            { "text", NS_TEXT }, { "table", NS_TABLE }, { "fo", NS_FO }, { "meta", NS_META }, { "dc", NS_DC },
+            { "manifest", NS_MANIFEST }, { "loext", NS_LOEXT } };
+
+    private static final XMLOutputFactory OUTPUT_FACTORY = XMLOutputFactory.newInstance();
+    private static final XMLInputFactory INPUT_FACTORY = XMLInputFactory.newInstance();
+
+    static {
+        INPUT_FACTORY.setProperty(XMLInputFactory.SUPPORT_DTD, false);
+        INPUT_FACTORY.setProperty(XMLInputFactory.IS_SUPPORTING_EXTERNAL_ENTITIES, false);
+        INPUT_FACTORY.setProperty(XMLInputFactory.IS_COALESCING, true);
+    }
+
+    private OdfXml() {
+        /* empty */
+    }
+
+    /**
+     * The JDK writer encodes UTF-8 one byte at a time, which would call the
+     * deflater of a zip entry for every byte: the stream is buffered, and
+     * {@link XMLStreamWriter#flush()} must be called before closing the entry.
+     */
+    static XMLStreamWriter newWriter(OutputStream out) throws XMLStreamException {
+        return OUTPUT_FACTORY.createXMLStreamWriter(new BufferedOutputStream(out, BUFFER_SIZE),
+                StandardCharsets.UTF_8.name());
+    }
+
+    /**
+     * A view of the stream whose {@link InputStream#close()} does nothing, for
+     * readers closing the stream they were given, like the ODF toolkit or
+     * {@link java.util.zip.ZipInputStream}.
+     */
+    static InputStream nonClosing(InputStream in) {
+        return new FilterInputStream(in) {
+            @Override
+            public void close() {
+                /* empty */
+            }
+        };
+    }
+
+    /** A view of the stream whose {@link OutputStream#close()} only flushes. */
+    static OutputStream nonClosing(OutputStream out) {
+        return new FilterOutputStream(out) {
+            @Override
+            public void write(byte[] b, int off, int len) throws IOException {
+                // FilterOutputStream would write one byte at a time
+                out.write(b, off, len);
+            }
+
+            @Override
+            public void close() throws IOException {
+                out.flush();
+            }
+        };
+    }
+
+    /**
+     * Start an XML part of the package and its root element, declaring all the
+     * namespaces used by this plugin.
+     */
+    static void startDocument(XMLStreamWriter xml, String rootNamespace, String rootName)
+            throws XMLStreamException {
+        xml.writeStartDocument(StandardCharsets.UTF_8.name(), "1.0");
+        for (String[] ns : NAMESPACES) {
+            xml.setPrefix(ns[0], ns[1]);
+        }
+        xml.writeStartElement(rootNamespace, rootName);
+        for (String[] ns : NAMESPACES) {
+            xml.writeNamespace(ns[0], ns[1]);
+        }
+        xml.writeAttribute(rootNamespace, "version", ODF_VERSION);
+    }
+
+    /**
+     * A writer for a fragment of an XML part, whose elements use the
+     * namespace prefixes declared by {@link #startDocument} on the root
+     * element of the part they will be copied in.
+     */
+    static XMLStreamWriter newFragmentWriter(OutputStream out) throws XMLStreamException {
+        XMLStreamWriter xml = newWriter(out);
+        for (String[] ns : NAMESPACES) {
+            xml.setPrefix(ns[0], ns[1]);
+        }
+        return xml;
+    }
+
+    static XMLStreamReader newReader(InputStream in) throws XMLStreamException {
+        return INPUT_FACTORY.createXMLStreamReader(in);
+    }
+
+    /**
+     * A new entry of a package, modified at the given time,
+     * {@link #REPRODUCIBLE_TIME} if the package is reproducible.
+     */
+    static ZipEntry newEntry(String name, long time) {
+        ZipEntry entry = new ZipEntry(name);
+        entry.setTime(time);
+        return entry;
+    }
+
+    /**
+     * The <code>mimetype</code> entry must be the first one of the package, and
+     * must not be compressed.
+     */
+    static void writeMimetype(ParallelZipOutputStream zip, String mimetype, long time) throws IOException {
+        byte[] bytes = mimetype.getBytes(StandardCharsets.US_ASCII);
+        CRC32 crc = new CRC32();
+        crc.update(bytes);
+        ZipEntry entry = newEntry(MIMETYPE_ENTRY, time);
+        entry.setMethod(ZipEntry.STORED);
+        entry.setSize(bytes.length);
+        entry.setCompressedSize(bytes.length);
+        entry.setCrc(crc.getValue());
+        zip.putNextEntry(entry);
+        zip.write(bytes);
+        zip.closeEntry();
+    }
+
+    /**
+     * Write the text as one or several <code>text:p</code>, converting line
+     * breaks, tabs and consecutive spaces to their ODF elements.
+     */
+    static void writeParagraphs(XMLStreamWriter xml, String text) throws XMLStreamException {
+        if (text == null || text.isEmpty()) {
+            return;
+        }
+        for (String line : text.split("\n", -1)) {
+            xml.writeStartElement(NS_TEXT, "p");
+            writeSpans(xml, line);
+            xml.writeEndElement();
+        }
+    }
+
+    private static void writeSpans(XMLStreamWriter xml, String line) throws XMLStreamException {
+        StringBuilder run = new StringBuilder();
+        int length = line.length();
+        int i = 0;
+        while (i < length) {
+            char c = line.charAt(i);
+            if (c == '\t') {
+                flush(xml, run);
+                xml.writeEmptyElement(NS_TEXT, "tab");
+                i++;
+            } else if (c == ' ') {
+                // Leading, trailing and repeated spaces are collapsed by ODF
+                // readers, unless written as text:s
+                int end = i;
+                while (end < length && line.charAt(end) == ' ') {
+                    end++;
+                }
+                int count = end - i;
+                if (i > 0 && end < length) {
+                    run.append(' ');
+                    count--;
+                }
+                if (count > 0) {
+                    flush(xml, run);
+                    xml.writeEmptyElement(NS_TEXT, "s");
+                    if (count > 1) {
+                        xml.writeAttribute(NS_TEXT, "c", Integer.toString(count));
+                    }
+                }
+                i = end;
+            } else if (c == '\r') {
+                i++;
+            } else {
+                run.append(c);
+                i++;
+            }
+        }
+        flush(xml, run);
+    }
+
+    private static void flush(XMLStreamWriter xml, StringBuilder run) throws XMLStreamException {
+        if (run.length() > 0) {
+            xml.writeCharacters(run.toString());
+            run.setLength(0);
+        }
+    }
+
+    /**
+     * Read the text content of the current element (usually a
+     * <code>table:table-cell</code>), joining the paragraphs with line breaks.
+     * The reader is left on the end tag of the element.
+     */
+    static String readText(XMLStreamReader xml) throws XMLStreamException {
+        return readText(xml, null);
+    }
+
+    /**
+     * Read the text content of the current element, like
+     * {@link #readText(XMLStreamReader)}, and pass the tracked change marks
+     * found in the element to the listener.
+     */
+    static String readText(XMLStreamReader xml, ChangeMarkListener changes) throws XMLStreamException {
+        StringBuilder sb = new StringBuilder();
+        int paragraphs = 0;
+        int depth = 1;
+        int skipDepth = 0;
+        while (depth > 0) {
+            int event = xml.next();
+            if (event == XMLStreamReader.START_ELEMENT) {
+                depth++;
+                if (skipDepth > 0) {
+                    skipDepth++;
+                    continue;
+                }
+                String ns = xml.getNamespaceURI();
+                String name = xml.getLocalName();
+                if (NS_OFFICE.equals(ns) && "annotation".equals(name)) {
+                    skipDepth = 1;
+                } else if (NS_TEXT.equals(ns)) {
+                    if (("p".equals(name) || "h".equals(name)) && paragraphs++ > 0) {
+                        sb.append('\n');
+                    } else if ("s".equals(name)) {
+                        String c = xml.getAttributeValue(NS_TEXT, "c");
+                        int count = c == null ? 1 : Integer.parseInt(c);
+                        for (int i = 0; i < count; i++) {
+                            sb.append(' ');
+                        }
+                    } else if ("tab".equals(name)) {
+                        sb.append('\t');
+                    } else if ("line-break".equals(name)) {
+                        sb.append('\n');
+                    } else if (changes != null && ("change-start".equals(name) || "change-end".equals(name)
+                            || "change".equals(name))) {
+                        changes.mark(name, xml.getAttributeValue(NS_TEXT, "change-id"));
+                    }
+                }
+            } else if (event == XMLStreamReader.END_ELEMENT) {
+                depth--;
+                if (skipDepth > 0) {
+                    skipDepth--;
+                }
+            } else if ((event == XMLStreamReader.CHARACTERS || event == XMLStreamReader.CDATA)
+                    && skipDepth == 0 && paragraphs > 0) {
+                sb.append(xml.getText());
+            }
+        }
+        return sb.toString();
+    }
+
+    /**
+     * Receives the <code>text:change-start</code>, <code>text:change-end</code>
+     * and <code>text:change</code> marks of a tracked change.
+     */
+    interface ChangeMarkListener {
+        /**
+         * @param mark
+         *            local name of the mark element
+         */
+        void mark(String mark, String changeId);
+    }
+}
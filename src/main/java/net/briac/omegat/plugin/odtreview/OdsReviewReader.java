@@ -0,0 +1,154 @@
+/**************************************************************************
+ OmegaT Plugin - ODT Review
+
+ Copyright (C) 2023 Briac Pilpré - briacp@gmail.com
+ Home page: https://github.com/briacp/plugin-odt-review
+
+ This program is free software: you can redistribute it and/or modify
+ it under the terms of the GNU General Public License as published by
+ the Free Software Foundation, either version 3 of the License, or
+ (at your option) any later version.
+
+ This program is distributed in the hope that it will be useful,
+ but WITHOUT ANY WARRANTY; without even the implied warranty of
+ MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ GNU General Public License for more details.
+
+ You should have received a copy of the GNU General Public License
+ along with this program. If not, see <http://www.gnu.org/licenses/>.
+ **************************************************************************/
+
+package net.briac.omegat.plugin.odtreview;
+
+import static net.briac.omegat.plugin.odtreview.OdfXml.NS_TABLE;
+
+import java.io.IOException;
+import java.io.InputStream;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.zip.ZipEntry;
+import java.util.zip.ZipFile;
+
+import javax.xml.stream.XMLStreamException;
+import javax.xml.stream.XMLStreamReader;
+
+/**
+ * Read the rows of a review spreadsheet written by {@link OdsReviewWriter}.
+ * <p>
+ * <code>content.xml</code> is parsed with StAX and each row is passed to the
+ * handler as soon as it's read, so the spreadsheet is never loaded in memory.
+ */
+final class OdsReviewReader {
+
+    /** Receives the content of the review spreadsheet. */
+    interface RowHandler {
+        void reviewer(String reviewerName);
+
+        void row(String filePath, int entryNum, String source, String target, String note);
+    }
+
+    /**
+     * Only the id, source, target and note columns are read, after the file
+     * column of a single sheet.
+     */
+    private static final int MAX_COLUMNS = 5;
+
+    private OdsReviewReader() {
+        /* empty */
+    }
+
+    static void read(ZipFile zip, RowHandler handler) throws IOException, XMLStreamException {
+        ZipEntry entry = zip.getEntry(OdfXml.CONTENT_ENTRY);
+        if (entry == null) {
+            throw new IOException(OdfXml.CONTENT_ENTRY + " not found in " + zip.getName());
+        }
+        try (InputStream in = zip.getInputStream(entry)) {
+            read(in, handler);
+        }
+    }
+
+    /** Parse a <code>content.xml</code> stream. */
+    static void read(InputStream content, RowHandler handler) throws XMLStreamException {
+        XMLStreamReader xml = OdfXml.newReader(content);
+        try {
+            String tableName = null;
+            String filePath = null;
+            boolean singleSheet = false;
+            int rowIndex = 0;
+            int rowRepeat = 1;
+            List<String> cells = new ArrayList<>(MAX_COLUMNS);
+
+            while (xml.hasNext()) {
+                int event = xml.next();
+                if (event == XMLStreamReader.START_ELEMENT && NS_TABLE.equals(xml.getNamespaceURI())) {
+                    String name = xml.getLocalName();
+                    if ("table".equals(name)) {
+                        tableName = xml.getAttributeValue(NS_TABLE, "name");
+                        filePath = tableName;
+                        singleSheet = ReviewLayout.SINGLE_TABLE_NAME.equals(tableName);
+                        rowIndex = 0;
+                    } else if ("table-row".equals(name)) {
+                        cells.clear();
+                        rowRepeat = parseRepeat(xml.getAttributeValue(NS_TABLE, "number-rows-repeated"));
+                    } else if ("table-cell".equals(name) || "covered-table-cell".equals(name)) {
+                        int repeat = parseRepeat(xml.getAttributeValue(NS_TABLE, "number-columns-repeated"));
+                        String text = OdfXml.readText(xml);
+                        for (int i = 0; i < repeat && cells.size() < MAX_COLUMNS; i++) {
+                            cells.add(text);
+                        }
+                    }
+                } else if (event == XMLStreamReader.END_ELEMENT && NS_TABLE.equals(xml.getNamespaceURI())
+                        && "table-row".equals(xml.getLocalName())) {
+                    // Calc writes the trailing empty rows as a single repeated
+                    // row, they are all skipped at once.
+                    if (ODTReviewPlugin.REVIEWER_INFO.equals(tableName)) {
+                        if (rowIndex == 0) {
+                            handler.reviewer(cell(cells, 1));
+                        }
+                    } else if (rowIndex == 0) {
+                        if (!singleSheet && !cell(cells, 1).isEmpty()) {
+                            filePath = cell(cells, 1);
+                        }
+                    } else if (rowIndex >= OdsReviewWriter.HEADER_ROWS) {
+                        if (singleSheet) {
+                            handleRow(cell(cells, 0), cells, 1, handler);
+                        } else {
+                            handleRow(filePath, cells, 0, handler);
+                        }
+                    }
+                    rowIndex += rowRepeat;
+                }
+            }
+        } finally {
+            xml.close();
+        }
+    }
+
+    /**
+     * @param first
+     *            index of the id column
+     */
+    private static void handleRow(String filePath, List<String> cells, int first, RowHandler handler) {
+        String id = cell(cells, first).trim();
+        if (id.isEmpty()) {
+            return;
+        }
+        int entryNum;
+        try {
+            entryNum = Integer.parseInt(id);
+        } catch (NumberFormatException e) {
+            // Not a segment row
+            return;
+        }
+        handler.row(filePath, entryNum, cell(cells, first + 1), cell(cells, first + 2),
+                cell(cells, first + 3));
+    }
+
+    private static String cell(List<String> cells, int index) {
+        return index < cells.size() ? cells.get(index) : "";
+    }
+
+    private static int parseRepeat(String value) {
+        return value == null ? 1 : Integer.parseInt(value);
+    }
+}
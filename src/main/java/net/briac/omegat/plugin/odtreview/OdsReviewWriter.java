@@ -0,0 +1,588 @@
+/**************************************************************************
+ OmegaT Plugin - ODT Review
+
+ Copyright (C) 2023 Briac Pilpré - briacp@gmail.com
+ Home page: https://github.com/briacp/plugin-odt-review
+
+ This program is free software: you can redistribute it and/or modify
+ it under the terms of the GNU General Public License as published by
+ the Free Software Foundation, either version 3 of the License, or
+ (at your option) any later version.
+
+ This program is distributed in the hope that it will be useful,
+ but WITHOUT ANY WARRANTY; without even the implied warranty of
+ MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ GNU General Public License for more details.
+
+ You should have received a copy of the GNU General Public License
+ along with this program. If not, see <http://www.gnu.org/licenses/>.
+ **************************************************************************/
+
+package net.briac.omegat.plugin.odtreview;
+
+import static net.briac.omegat.plugin.odtreview.OdfXml.NS_FO;
+import static net.briac.omegat.plugin.odtreview.OdfXml.NS_LOEXT;
+import static net.briac.omegat.plugin.odtreview.OdfXml.NS_MANIFEST;
+import static net.briac.omegat.plugin.odtreview.OdfXml.NS_META;
+import static net.briac.omegat.plugin.odtreview.OdfXml.NS_OFFICE;
+import static net.briac.omegat.plugin.odtreview.OdfXml.NS_STYLE;
+import static net.briac.omegat.plugin.odtreview.OdfXml.NS_TABLE;
+import static net.briac.omegat.plugin.odtreview.OdfXml.NS_TEXT;
+
+import java.io.BufferedOutputStream;
+import java.io.File;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.io.OutputStream;
+import java.time.Clock;
+import java.util.ArrayList;
+import java.util.HashSet;
+import java.util.List;
+import java.util.Locale;
+import java.util.Set;
+import java.util.function.IntConsumer;
+
+import javax.xml.stream.XMLStreamException;
+import javax.xml.stream.XMLStreamWriter;
+
+import net.briac.omegat.plugin.odtreview.ReviewSnapshot.FileSnapshot;
+
+/**
+ * Write a review as an OpenDocument spreadsheet, with one sheet per source
+ * file, or a single sheet with a file column.
+ * <p>
+ * The XML parts are written with StAX straight into the ZIP stream, so the
+ * memory used doesn't depend on the number of exported segments.
+ * <p>
+ * The sheets are protected, only the target and note cells, and the reviewer
+ * name, can be edited. The sheets are not locked with a password.
+ */
+final class OdsReviewWriter {
+
+    static final String MIMETYPE = "application/vnd.oasis.opendocument.spreadsheet";
+
+    private static final String STYLE_COL_ID = "co-id";
+    private static final String STYLE_COL_TEXT = "co-text";
+    private static final String STYLE_COL_NOTE = "co-note";
+    private static final String STYLE_COL_FILE = "co-file";
+    private static final String STYLE_ROW = "ro-optimal";
+    private static final String STYLE_CELL_HEADER = "ce-header";
+    private static final String STYLE_CELL_ID = "ce-id";
+    private static final String STYLE_CELL_SOURCE = "ce-source";
+    private static final String STYLE_CELL_TARGET = "ce-target";
+    private static final String STYLE_CELL_NOTE = "ce-note";
+
+    private static final String COLOR_HEADER = "#c0c0c0";
+    private static final String COLOR_READ_ONLY = "#eeeeee";
+
+    /** Calc doesn't accept these characters in sheet names. */
+    private static final String SHEET_NAME_FORBIDDEN = "[]*?:/\\'";
+    private static final int SHEET_NAME_MAX_LENGTH = 31;
+
+    /** Number of rows before the segments: file name and column headers. */
+    static final int HEADER_ROWS = 2;
+
+    private final ReviewSnapshot snapshot;
+    private final ReviewLayout layout;
+    private final boolean reproducible;
+    private boolean instrumented = true;
+    private Clock clock = Clock.systemDefaultZone();
+    private int deflateThreads = ParallelZipOutputStream.configuredThreads();
+    private BlockSource blocks;
+
+    /**
+     * @param reproducible
+     *            the entries get a fixed time, so the same snapshot always
+     *            gives the same bytes
+     */
+    OdsReviewWriter(ReviewSnapshot snapshot, ReviewLayout layout, boolean reproducible) {
+        this.snapshot = snapshot;
+        this.layout = layout;
+        this.reproducible = reproducible;
+    }
+
+    /**
+     * Without instrumentation, the registered column providers are not run and
+     * the rows are not traced.
+     */
+    void setInstrumented(boolean instrumented) {
+        this.instrumented = instrumented;
+    }
+
+    /** The clock giving the date of the package entries, unless reproducible. */
+    void setClock(Clock clock) {
+        this.clock = clock;
+    }
+
+    void setDeflateThreads(int deflateThreads) {
+        this.deflateThreads = deflateThreads;
+    }
+
+    void write(File output, IntConsumer progress) throws IOException, XMLStreamException {
+        try (OutputStream out = new BufferedOutputStream(new FileOutputStream(output))) {
+            write(out, progress);
+        }
+    }
+
+    /** Write the package to the stream, without closing it. */
+    void write(OutputStream out, IntConsumer progress) throws IOException, XMLStreamException {
+        ParallelZipOutputStream zip = new ParallelZipOutputStream(out, deflateThreads);
+        long time = reproducible ? OdfXml.REPRODUCIBLE_TIME : clock.millis();
+        OdfXml.writeMimetype(zip, MIMETYPE, time);
+
+        zip.putNextEntry(OdfXml.newEntry(OdfXml.MANIFEST_ENTRY, time));
+        writeManifest(zip);
+        zip.closeEntry();
+
+        zip.putNextEntry(OdfXml.newEntry(OdfXml.META_ENTRY, time));
+        writeMeta(zip);
+        zip.closeEntry();
+
+        zip.putNextEntry(OdfXml.newEntry(OdfXml.STYLES_ENTRY, time));
+        writeStyles(zip);
+        zip.closeEntry();
+
+        zip.putNextEntry(OdfXml.newEntry(OdfXml.CONTENT_ENTRY, time));
+        try (ReviewColumns columns = startColumns()) {
+            writeContent(zip, columns, progress);
+        }
+        zip.closeEntry();
+
+        zip.finish();
+    }
+
+    private void writeManifest(OutputStream out) throws XMLStreamException {
+        XMLStreamWriter xml = OdfXml.newWriter(out);
+        OdfXml.startDocument(xml, NS_MANIFEST, "manifest");
+        writeManifestEntry(xml, "/", MIMETYPE);
+        writeManifestEntry(xml, OdfXml.META_ENTRY, "text/xml");
+        writeManifestEntry(xml, OdfXml.STYLES_ENTRY, "text/xml");
+        writeManifestEntry(xml, OdfXml.CONTENT_ENTRY, "text/xml");
+        xml.writeEndDocument();
+        xml.flush();
+    }
+
+    private void writeManifestEntry(XMLStreamWriter xml, String path, String mediaType)
+            throws XMLStreamException {
+        xml.writeEmptyElement(NS_MANIFEST, "file-entry");
+        xml.writeAttribute(NS_MANIFEST, "full-path", path);
+        xml.writeAttribute(NS_MANIFEST, "media-type", mediaType);
+    }
+
+    private void writeMeta(OutputStream out) throws XMLStreamException {
+        XMLStreamWriter xml = OdfXml.newWriter(out);
+        OdfXml.startDocument(xml, NS_OFFICE, "document-meta");
+        xml.writeStartElement(NS_OFFICE, "meta");
+        writeUserDefined(xml, ODTReviewPlugin.METADATA_SOURCE, snapshot.getSourceLanguage().toString());
+        writeUserDefined(xml, ODTReviewPlugin.METADATA_TARGET, snapshot.getTargetLanguage().toString());
+        writeUserDefined(xml, ODTReviewPlugin.METADATA_PROJECT, snapshot.getProjectName());
+        xml.writeEndElement();
+        xml.writeEndDocument();
+        xml.flush();
+    }
+
+    private void writeUserDefined(XMLStreamWriter xml, String name, String value) throws XMLStreamException {
+        xml.writeStartElement(NS_META, "user-defined");
+        xml.writeAttribute(NS_META, "name", name);
+        xml.writeAttribute(NS_META, "value-type", "string");
+        xml.writeCharacters(value);
+        xml.writeEndElement();
+    }
+
+    private void writeStyles(OutputStream out) throws XMLStreamException {
+        XMLStreamWriter xml = OdfXml.newWriter(out);
+        OdfXml.startDocument(xml, NS_OFFICE, "document-styles");
+        xml.writeEmptyElement(NS_OFFICE, "styles");
+        xml.writeEndDocument();
+        xml.flush();
+    }
+
+    private void writeContent(OutputStream out, ReviewColumns columns, IntConsumer progress)
+            throws IOException, XMLStreamException {
+        XMLStreamWriter xml = OdfXml.newWriter(out);
+        OdfXml.startDocument(xml, NS_OFFICE, "document-content");
+
+        xml.writeStartElement(NS_OFFICE, "automatic-styles");
+        writeColumnStyle(xml, STYLE_COL_ID, "1.5cm");
+        writeColumnStyle(xml, STYLE_COL_TEXT, "9cm");
+        writeColumnStyle(xml, STYLE_COL_NOTE, "6.5cm");
+        writeColumnStyle(xml, STYLE_COL_FILE, "5cm");
+
+        xml.writeStartElement(NS_STYLE, "style");
+        xml.writeAttribute(NS_STYLE, "name", STYLE_ROW);
+        xml.writeAttribute(NS_STYLE, "family", "table-row");
+        xml.writeEmptyElement(NS_STYLE, "table-row-properties");
+        xml.writeAttribute(NS_STYLE, "use-optimal-row-height", "true");
+        xml.writeEndElement();
+
+        writeCellStyle(xml, STYLE_CELL_HEADER, COLOR_HEADER, null, true, false);
+        writeCellStyle(xml, STYLE_CELL_ID, COLOR_READ_ONLY, null, false, false);
+        writeCellStyle(xml, STYLE_CELL_SOURCE, COLOR_READ_ONLY, snapshot.getSourceLanguage().getLocale(),
+                false, false);
+        writeCellStyle(xml, STYLE_CELL_TARGET, null, snapshot.getTargetLanguage().getLocale(), false, true);
+        writeCellStyle(xml, STYLE_CELL_NOTE, null, Locale.US, false, true);
+        xml.writeEndElement();
+
+        xml.writeStartElement(NS_OFFICE, "body");
+        xml.writeStartElement(NS_OFFICE, "spreadsheet");
+
+        writeReviewerSheet(xml);
+
+        List<String> filterRanges = new ArrayList<>();
+        int totalEntries = Math.max(1, snapshot.getEntryCount());
+        int exportedEntries = 0;
+        try (RowTrace trace = startTrace()) {
+            List<FileSnapshot> files = snapshot.getFiles();
+            boolean singleSheet = layout == ReviewLayout.SINGLE_TABLE;
+            List<String> sheetNames = sheetNames();
+            int columnCount = ODTReviewPlugin.TABLE_COLUMNS_COUNT + columns.size() + (singleSheet ? 1 : 0);
+            String lastColumn = columnName(columnCount - 1);
+            if (singleSheet) {
+                String sheetName = ReviewLayout.SINGLE_TABLE_NAME;
+                startSheet(xml, sheetName, columns, singleSheet,
+                        String.format(ODTReviewPlugin.res.getString("table.header.project"),
+                                snapshot.getProjectName()));
+                filterRanges.add(String.format("'%s'.A%d:'%s'.%s%d", sheetName, HEADER_ROWS, sheetName,
+                        lastColumn, snapshot.getEntryCount() + HEADER_ROWS));
+            }
+            for (int fileIndex = 0; fileIndex < files.size(); fileIndex++) {
+                FileSnapshot file = files.get(fileIndex);
+                String sheetName = sheetNames.get(fileIndex);
+                if (blocks != null) {
+                    // Nothing is pending in the writer between two files
+                    xml.flush();
+                    blocks.copy(fileIndex, out);
+                } else {
+                    writeBlock(xml, file, sheetName, columns, fileIndex, exportedEntries, trace);
+                }
+                if (!singleSheet) {
+                    filterRanges.add(String.format("'%s'.A%d:'%s'.%s%d", sheetName, HEADER_ROWS, sheetName,
+                            lastColumn, file.size() + HEADER_ROWS));
+                }
+
+                exportedEntries += file.size();
+                progress.accept(exportedEntries * 100 / totalEntries);
+            }
+            if (singleSheet) {
+                xml.writeEndElement();
+            }
+        }
+
+        // Let the reviewers filter and sort the segments
+        if (!filterRanges.isEmpty()) {
+            xml.writeStartElement(NS_TABLE, "database-ranges");
+            for (int i = 0; i < filterRanges.size(); i++) {
+                xml.writeEmptyElement(NS_TABLE, "database-range");
+                xml.writeAttribute(NS_TABLE, "name", "omt-review-filter-" + i);
+                xml.writeAttribute(NS_TABLE, "target-range-address", filterRanges.get(i));
+                xml.writeAttribute(NS_TABLE, "display-filter-buttons", "true");
+            }
+            xml.writeEndElement();
+        }
+
+        xml.writeEndDocument();
+        xml.flush();
+    }
+
+    /**
+     * The name of the sheet of each file, <code>null</code> in a single table:
+     * the path of the file, altered to be a valid and unique sheet name.
+     */
+    List<String> sheetNames() {
+        List<FileSnapshot> files = snapshot.getFiles();
+        List<String> names = new ArrayList<>(files.size());
+        Set<String> usedNames = new HashSet<>();
+        usedNames.add(ODTReviewPlugin.REVIEWER_INFO);
+        usedNames.add(ReviewLayout.SINGLE_TABLE_NAME);
+        for (FileSnapshot file : files) {
+            names.add(layout == ReviewLayout.SINGLE_TABLE ? null : sheetName(file.getFilePath(), usedNames));
+        }
+        return names;
+    }
+
+    /**
+     * Write the block of each file of the snapshot, without the rest of the
+     * package: the XML is a fragment of the content, using the prefixes
+     * declared on its root element.
+     *
+     * @param sheetNames
+     *            the names given by {@link #sheetNames()} of the whole export
+     */
+    void writeBlocks(OutputStream out, List<String> sheetNames) throws XMLStreamException {
+        XMLStreamWriter xml = OdfXml.newFragmentWriter(out);
+        try (RowTrace trace = startTrace();
+                ReviewColumns columns = startColumns()) {
+            List<FileSnapshot> files = snapshot.getFiles();
+            int exportedEntries = 0;
+            for (int fileIndex = 0; fileIndex < files.size(); fileIndex++) {
+                FileSnapshot file = files.get(fileIndex);
+                writeBlock(xml, file, sheetNames.get(fileIndex), columns, fileIndex, exportedEntries, trace);
+                exportedEntries += file.size();
+            }
+        }
+        xml.flush();
+    }
+
+    /**
+     * Take the blocks of the files from another source, usually the worker
+     * processes of {@link ReviewShards}, instead of writing them.
+     */
+    void setBlocks(BlockSource blocks) {
+        this.blocks = blocks;
+    }
+
+    private RowTrace startTrace() {
+        return instrumented ? RowTrace.start("export") : RowTrace.DISABLED;
+    }
+
+    private ReviewColumns startColumns() {
+        return instrumented ? ReviewColumns.start(snapshot) : ReviewColumns.NONE;
+    }
+
+    /**
+     * Write the sheet of a file, or its rows in the single table.
+     *
+     * @param sheetName
+     *            <code>null</code> in a single table
+     */
+    private void writeBlock(XMLStreamWriter xml, FileSnapshot file, String sheetName, ReviewColumns columns,
+            int fileIndex, int firstRow, RowTrace trace) throws XMLStreamException {
+        if (sheetName == null) {
+            writeRows(xml, file, true, columns, fileIndex, firstRow, trace);
+        } else {
+            // The sheet name can be altered, the exact path is in the first row
+            startSheet(xml, sheetName, columns, false, file.getFilePath());
+            writeRows(xml, file, false, columns, fileIndex, firstRow, trace);
+            xml.writeEndElement();
+        }
+    }
+
+    private void writeColumnStyle(XMLStreamWriter xml, String name, String width) throws XMLStreamException {
+        xml.writeStartElement(NS_STYLE, "style");
+        xml.writeAttribute(NS_STYLE, "name", name);
+        xml.writeAttribute(NS_STYLE, "family", "table-column");
+        xml.writeEmptyElement(NS_STYLE, "table-column-properties");
+        xml.writeAttribute(NS_STYLE, "column-width", width);
+        xml.writeEndElement();
+    }
+
+    /**
+     * @param editable
+     *            whether the cells can be edited in a protected sheet
+     */
+    private void writeCellStyle(XMLStreamWriter xml, String name, String background, Locale locale,
+            boolean bold, boolean editable) throws XMLStreamException {
+        xml.writeStartElement(NS_STYLE, "style");
+        xml.writeAttribute(NS_STYLE, "name", name);
+        xml.writeAttribute(NS_STYLE, "family", "table-cell");
+
+        xml.writeEmptyElement(NS_STYLE, "table-cell-properties");
+        xml.writeAttribute(NS_FO, "wrap-option", "wrap");
+        xml.writeAttribute(NS_STYLE, "vertical-align", "top");
+        if (background != null) {
+            xml.writeAttribute(NS_FO, "background-color", background);
+        }
+        xml.writeAttribute(NS_STYLE, "cell-protect", editable ? "none" : "protected");
+
+        xml.writeEmptyElement(NS_STYLE, "text-properties");
+        if (locale != null) {
+            // Set the correct language to avoid tripping the spellchecker
+            xml.writeAttribute(NS_FO, "language", locale.getLanguage());
+            String country = locale.getCountry();
+            xml.writeAttribute(NS_FO, "country", country.isEmpty() ? "none" : country);
+        }
+        if (bold) {
+            xml.writeAttribute(NS_FO, "font-weight", "bold");
+        }
+        xml.writeEndElement();
+    }
+
+    private void writeReviewerSheet(XMLStreamWriter xml) throws XMLStreamException {
+        startProtectedTable(xml, ODTReviewPlugin.REVIEWER_INFO);
+        writeColumn(xml, STYLE_COL_TEXT);
+        writeColumn(xml, STYLE_COL_TEXT);
+        xml.writeStartElement(NS_TABLE, "table-row");
+        writeStringCell(xml, STYLE_CELL_HEADER, ODTReviewPlugin.res.getString("table.reviewer"));
+        writeStringCell(xml, STYLE_CELL_TARGET, "");
+        xml.writeEndElement();
+        xml.writeEndElement();
+    }
+
+    /**
+     * Start a sheet where only the cells with an editable style can be
+     * changed. LibreOffice still lets the reviewers filter the rows.
+     */
+    private void startProtectedTable(XMLStreamWriter xml, String sheetName) throws XMLStreamException {
+        xml.writeStartElement(NS_TABLE, "table");
+        xml.writeAttribute(NS_TABLE, "name", sheetName);
+        xml.writeAttribute(NS_TABLE, "protected", "true");
+        xml.writeEmptyElement(NS_LOEXT, "table-protection");
+        xml.writeAttribute(NS_LOEXT, "select-protected-cells", "true");
+        xml.writeAttribute(NS_LOEXT, "select-unprotected-cells", "true");
+        xml.writeAttribute(NS_LOEXT, "use-autofilter", "true");
+    }
+
+    /**
+     * Start a sheet and write its header rows, the segment rows are written
+     * next by {@link #writeRows}.
+     *
+     * @param fileColumn
+     *            whether the first column holds the file of the segments
+     * @param title
+     *            written in the first row, after the file label if there is no
+     *            file column
+     */
+    private void startSheet(XMLStreamWriter xml, String sheetName, ReviewColumns columns, boolean fileColumn,
+            String title) throws XMLStreamException {
+        startProtectedTable(xml, sheetName);
+        // The segment cells get their style from their column
+        if (fileColumn) {
+            writeColumn(xml, STYLE_COL_FILE, STYLE_CELL_ID);
+        }
+        writeColumn(xml, STYLE_COL_ID, STYLE_CELL_ID);
+        writeColumn(xml, STYLE_COL_TEXT, STYLE_CELL_SOURCE);
+        writeColumn(xml, STYLE_COL_TEXT, STYLE_CELL_TARGET);
+        writeColumn(xml, STYLE_COL_NOTE, STYLE_CELL_NOTE);
+        for (int extra = 0; extra < columns.size(); extra++) {
+            writeColumn(xml, STYLE_COL_NOTE, STYLE_CELL_ID);
+        }
+
+        xml.writeStartElement(NS_TABLE, "table-row");
+        if (!fileColumn) {
+            writeStringCell(xml, STYLE_CELL_HEADER, ODTReviewPlugin.res.getString("table.header.file.name"));
+        }
+        writeStringCell(xml, STYLE_CELL_ID, title);
+        xml.writeEndElement();
+
+        xml.writeStartElement(NS_TABLE, "table-header-rows");
+        xml.writeStartElement(NS_TABLE, "table-row");
+        if (fileColumn) {
+            writeStringCell(xml, STYLE_CELL_HEADER, ODTReviewPlugin.res.getString("table.header.file.name"));
+        }
+        writeStringCell(xml, STYLE_CELL_HEADER, ODTReviewPlugin.res.getString("table.header.id"));
+        writeStringCell(xml, STYLE_CELL_HEADER, String
+                .format(ODTReviewPlugin.res.getString("table.header.source"), snapshot.getSourceLanguage()));
+        writeStringCell(xml, STYLE_CELL_HEADER, String
+                .format(ODTReviewPlugin.res.getString("table.header.target"), snapshot.getTargetLanguage()));
+        writeStringCell(xml, STYLE_CELL_HEADER, ODTReviewPlugin.res.getString("table.header.note"));
+        for (int extra = 0; extra < columns.size(); extra++) {
+            writeStringCell(xml, STYLE_CELL_HEADER, columns.getHeader(extra));
+        }
+        xml.writeEndElement();
+        xml.writeEndElement();
+    }
+
+    /**
+     * Write the segment rows of a file.
+     *
+     * @param fileColumn
+     *            whether the rows start with the path of the file
+     * @param firstRow
+     *            number of rows exported before this file, for the trace
+     */
+    private void writeRows(XMLStreamWriter xml, FileSnapshot file, boolean fileColumn, ReviewColumns columns,
+            int fileIndex, int firstRow, RowTrace trace) throws XMLStreamException {
+        String[][] extraValues = columns.get(fileIndex, file.size());
+
+        String emptyTranslation = ODTReviewPlugin.res.getString("empty.translation");
+        for (int i = 0; i < file.size(); i++) {
+            long start = trace.startRow();
+            String translation = file.getTranslationText(i);
+            if (translation != null && translation.isEmpty()) {
+                translation = emptyTranslation;
+            }
+
+            xml.writeStartElement(NS_TABLE, "table-row");
+            xml.writeAttribute(NS_TABLE, "style-name", STYLE_ROW);
+            if (fileColumn) {
+                writeStringCell(xml, null, file.getFilePath());
+            }
+            writeIdCell(xml, file.getEntry(i).entryNum());
+            writeStringCell(xml, null, file.getEntry(i).getSrcText());
+            writeStringCell(xml, null, translation);
+            writeStringCell(xml, null, file.getNote(i));
+            for (String[] extra : extraValues) {
+                writeStringCell(xml, null, extra[i]);
+            }
+            xml.writeEndElement();
+            trace.row(firstRow + i, file.getEntry(i).entryNum(), start, RowTrace.ROW_EXPORTED);
+        }
+    }
+
+    private void writeColumn(XMLStreamWriter xml, String style) throws XMLStreamException {
+        writeColumn(xml, style, null);
+    }
+
+    private void writeColumn(XMLStreamWriter xml, String style, String cellStyle) throws XMLStreamException {
+        xml.writeEmptyElement(NS_TABLE, "table-column");
+        xml.writeAttribute(NS_TABLE, "style-name", style);
+        if (cellStyle != null) {
+            xml.writeAttribute(NS_TABLE, "default-cell-style-name", cellStyle);
+        }
+    }
+
+    private void writeIdCell(XMLStreamWriter xml, int entryNum) throws XMLStreamException {
+        String value = Integer.toString(entryNum);
+        xml.writeStartElement(NS_TABLE, "table-cell");
+        xml.writeAttribute(NS_OFFICE, "value-type", "float");
+        xml.writeAttribute(NS_OFFICE, "value", value);
+        xml.writeStartElement(NS_TEXT, "p");
+        xml.writeCharacters(value);
+        xml.writeEndElement();
+        xml.writeEndElement();
+    }
+
+    /**
+     * @param style
+     *            <code>null</code> for the default cell style of the column
+     */
+    private void writeStringCell(XMLStreamWriter xml, String style, String text) throws XMLStreamException {
+        xml.writeStartElement(NS_TABLE, "table-cell");
+        if (style != null) {
+            xml.writeAttribute(NS_TABLE, "style-name", style);
+        }
+        if (text != null && !text.isEmpty()) {
+            xml.writeAttribute(NS_OFFICE, "value-type", "string");
+            OdfXml.writeParagraphs(xml, text);
+        }
+        xml.writeEndElement();
+    }
+
+    /** Spreadsheet name of a column: A, B, ..., Z, AA, AB... */
+    static String columnName(int index) {
+        StringBuilder sb = new StringBuilder();
+        for (int i = index + 1; i > 0; i = (i - 1) / 26) {
+            sb.insert(0, (char) ('A' + (i - 1) % 26));
+        }
+        return sb.toString();
+    }
+
+    /** Build a valid and unique sheet name from a file path. */
+    static String sheetName(String filePath, Set<String> usedNames) {
+        StringBuilder sb = new StringBuilder(filePath.length());
+        for (char c : filePath.toCharArray()) {
+            sb.append(SHEET_NAME_FORBIDDEN.indexOf(c) >= 0 || Character.isISOControl(c) ? '_' : c);
+        }
+        // Keep the end of the path, which is the most significant part
+        String base = sb.length() > SHEET_NAME_MAX_LENGTH ? sb.substring(sb.length() - SHEET_NAME_MAX_LENGTH)
+                : sb.toString();
+        String name = base;
+        int suffix = 2;
+        while (!usedNames.add(name.toLowerCase(Locale.ENGLISH))) {
+            String suffixText = " (" + suffix++ + ")";
+            name = base.substring(0, Math.min(base.length(), SHEET_NAME_MAX_LENGTH - suffixText.length()))
+                    + suffixText;
+        }
+        return name;
+    }
+
+    /** The blocks of the files of an export, rendered elsewhere. */
+    interface BlockSource {
+        /**
+         * Copy the block of a file, as written by {@link #writeBlocks}, or
+         * nothing if it was copied along with the block of a previous file.
+         * The files are copied in order.
+         */
+        void copy(int fileIndex, OutputStream out) throws IOException;
+    }
+}
@@ -0,0 +1,184 @@
+/**************************************************************************
+ OmegaT Plugin - ODT Review
+
+ Copyright (C) 2023 Briac Pilpré - briacp@gmail.com
+ Home page: https://github.com/briacp/plugin-odt-review
+
+ This program is free software: you can redistribute it and/or modify
+ it under the terms of the GNU General Public License as published by
+ the Free Software Foundation, either version 3 of the License, or
+ (at your option) any later version.
+
+ This program is distributed in the hope that it will be useful,
+ but WITHOUT ANY WARRANTY; without even the implied warranty of
+ MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ GNU General Public License for more details.
+
+ You should have received a copy of the GNU General Public License
+ along with this program. If not, see <http://www.gnu.org/licenses/>.
+ **************************************************************************/
+
+package net.briac.omegat.plugin.odtreview;
+
+import static net.briac.omegat.plugin.odtreview.OdfXml.NS_TABLE;
+import static net.briac.omegat.plugin.odtreview.OdfXml.NS_TEXT;
+
+import java.io.InputStream;
+import java.util.ArrayList;
+import java.util.HashSet;
+import java.util.List;
+import java.util.Set;
+
+import javax.xml.stream.XMLStreamException;
+import javax.xml.stream.XMLStreamReader;
+
+/**
+ * Read the rows of a review text document edited with Track Changes on, and
+ * only pass the rows with a tracked change to the handler.
+ * <p>
+ * Writer keeps the final text in the body, where an insertion is between a
+ * <code>text:change-start</code> and a <code>text:change-end</code> mark, and
+ * a deletion leaves a <code>text:change</code> mark: a row is edited if one of
+ * its cells has a mark, or if it's inside a change spanning several rows. The
+ * text of the edited rows is read as if all the changes were accepted.
+ * <p>
+ * <code>content.xml</code> is parsed with StAX, without loading the document
+ * in the ODF toolkit.
+ */
+final class OdtTrackedChangesReader {
+
+    /** Only the id, source, target and note columns are read. */
+    private static final int MAX_COLUMNS = 4;
+
+    private OdtTrackedChangesReader() {
+        /* empty */
+    }
+
+    /**
+     * Parse a <code>content.xml</code> stream.
+     *
+     * @return <code>false</code> if the document has no tracked change, e.g.
+     *         Track Changes was off or all the changes were accepted: nothing
+     *         was passed to the handler, and all the rows must be compared.
+     */
+    static boolean read(InputStream content, OdsReviewReader.RowHandler handler)
+            throws XMLStreamException {
+        XMLStreamReader xml = OdfXml.newReader(content);
+        try {
+            boolean tracked = false;
+            String tableName = null;
+            String filePath = null;
+            boolean singleTable = false;
+            int rowIndex = 0;
+            boolean fileRow = false;
+            List<String> cells = new ArrayList<>(MAX_COLUMNS);
+
+            // Changes opened in a row and closed in a later one
+            Set<String> openChanges = new HashSet<>();
+            boolean[] marked = new boolean[1];
+            OdfXml.ChangeMarkListener changes = (mark, changeId) -> {
+                marked[0] = true;
+                if ("change-start".equals(mark)) {
+                    openChanges.add(changeId);
+                } else if ("change-end".equals(mark)) {
+                    openChanges.remove(changeId);
+                }
+            };
+
+            while (xml.hasNext()) {
+                int event = xml.next();
+                if (event != XMLStreamReader.START_ELEMENT && event != XMLStreamReader.END_ELEMENT) {
+                    continue;
+                }
+                String ns = xml.getNamespaceURI();
+                String name = xml.getLocalName();
+                if (event == XMLStreamReader.START_ELEMENT && NS_TEXT.equals(ns)
+                        && "tracked-changes".equals(name)) {
+                    tracked = skipTrackedChanges(xml) > 0;
+                    if (!tracked) {
+                        return false;
+                    }
+                } else if (event == XMLStreamReader.START_ELEMENT && NS_TABLE.equals(ns)) {
+                    if ("table".equals(name)) {
+                        if (!tracked) {
+                            // The changes are listed before the body
+                            return false;
+                        }
+                        tableName = xml.getAttributeValue(NS_TABLE, "name");
+                        singleTable = ReviewLayout.SINGLE_TABLE_NAME.equals(tableName);
+                        filePath = singleTable ? null : tableName;
+                        rowIndex = 0;
+                    } else if ("table-row".equals(name)) {
+                        cells.clear();
+                        fileRow = false;
+                        marked[0] = !openChanges.isEmpty();
+                    } else if ("table-cell".equals(name) || "covered-table-cell".equals(name)) {
+                        if (cells.isEmpty()) {
+                            String spanned = xml.getAttributeValue(NS_TABLE, "number-columns-spanned");
+                            fileRow = spanned != null && Integer.parseInt(spanned) > 1;
+                        }
+                        String text = OdfXml.readText(xml, changes);
+                        if (cells.size() < MAX_COLUMNS) {
+                            cells.add(text);
+                        }
+                    }
+                } else if (event == XMLStreamReader.END_ELEMENT && NS_TABLE.equals(ns)
+                        && "table-row".equals(name)) {
+                    if (ODTReviewPlugin.REVIEWER_INFO.equals(tableName)) {
+                        if (rowIndex == 0) {
+                            handler.reviewer(cell(cells, 1));
+                        }
+                    } else if (rowIndex > 0) {
+                        if (singleTable && fileRow) {
+                            filePath = cell(cells, 0);
+                        } else if (marked[0] || !openChanges.isEmpty()) {
+                            handleRow(filePath, cells, handler);
+                        }
+                    }
+                    rowIndex++;
+                }
+            }
+            return tracked;
+        } finally {
+            xml.close();
+        }
+    }
+
+    /**
+     * Skip the list of tracked changes, which holds the deleted text.
+     *
+     * @return the number of changes
+     */
+    private static int skipTrackedChanges(XMLStreamReader xml) throws XMLStreamException {
+        int regions = 0;
+        int depth = 1;
+        while (depth > 0) {
+            int event = xml.next();
+            if (event == XMLStreamReader.START_ELEMENT) {
+                if (depth == 1 && NS_TEXT.equals(xml.getNamespaceURI())
+                        && "changed-region".equals(xml.getLocalName())) {
+                    regions++;
+                }
+                depth++;
+            } else if (event == XMLStreamReader.END_ELEMENT) {
+                depth--;
+            }
+        }
+        return regions;
+    }
+
+    private static void handleRow(String filePath, List<String> cells, OdsReviewReader.RowHandler handler) {
+        int entryNum;
+        try {
+            entryNum = Integer.parseInt(cell(cells, 0).trim());
+        } catch (NumberFormatException e) {
+            // Not a segment row
+            return;
+        }
+        handler.row(filePath, entryNum, cell(cells, 1), cell(cells, 2), cell(cells, 3));
+    }
+
+    private static String cell(List<String> cells, int index) {
+        return index < cells.size() ? cells.get(index) : "";
+    }
+}
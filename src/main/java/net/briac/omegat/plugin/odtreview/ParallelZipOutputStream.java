@@ -0,0 +1,416 @@
+/**************************************************************************
+ OmegaT Plugin - ODT Review
+
+ Copyright (C) 2023 Briac Pilpré - briacp@gmail.com
+ Home page: https://github.com/briacp/plugin-odt-review
+
+ This program is free software: you can redistribute it and/or modify
+ it under the terms of the GNU General Public License as published by
+ the Free Software Foundation, either version 3 of the License, or
+ (at your option) any later version.
+
+ This program is distributed in the hope that it will be useful,
+ but WITHOUT ANY WARRANTY; without even the implied warranty of
+ MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ GNU General Public License for more details.
+
+ You should have received a copy of the GNU General Public License
+ along with this program. If not, see <http://www.gnu.org/licenses/>.
+ **************************************************************************/
+
+package net.briac.omegat.plugin.odtreview;
+
+import java.io.ByteArrayOutputStream;
+import java.io.IOException;
+import java.io.InterruptedIOException;
+import java.io.OutputStream;
+import java.nio.charset.StandardCharsets;
+import java.util.ArrayDeque;
+import java.util.ArrayList;
+import java.util.Calendar;
+import java.util.Deque;
+import java.util.List;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Future;
+import java.util.concurrent.LinkedBlockingQueue;
+import java.util.concurrent.ThreadPoolExecutor;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.zip.CRC32;
+import java.util.zip.Deflater;
+import java.util.zip.ZipEntry;
+import java.util.zip.ZipException;
+
+/**
+ * A zip writer deflating the entries by blocks on several threads, like
+ * <code>pigz</code> does.
+ * <p>
+ * Each block is deflated on its own, with the end of the previous block as
+ * preset dictionary, and all but the last block end with a sync flush, so the
+ * blocks are byte-aligned and their concatenation is a single deflate stream
+ * any zip reader can inflate. The blocks don't depend on the number of
+ * threads: a package always gives the same bytes, whatever the machine.
+ * <p>
+ * Only the features used by the packages of this plugin are supported: no
+ * ZIP64, no comments nor extra fields, and a stored entry must have its size
+ * and CRC set before it's written, like with
+ * {@link java.util.zip.ZipOutputStream}.
+ */
+final class ParallelZipOutputStream extends OutputStream {
+
+    /** <code>-Dodtreview.deflate.threads=1</code> deflates on the writing thread. */
+    static final String PROPERTY_THREADS = "odtreview.deflate.threads";
+
+    private static final int BLOCK_SIZE = 128 * 1024;
+    /** The deflate window, the largest useful dictionary. */
+    private static final int DICTIONARY_SIZE = 32 * 1024;
+
+    private static final int LOCAL_HEADER = 0x04034b50;
+    private static final int DATA_DESCRIPTOR = 0x08074b50;
+    private static final int CENTRAL_HEADER = 0x02014b50;
+    private static final int END_OF_CENTRAL_DIRECTORY = 0x06054b50;
+    private static final int VERSION_STORED = 10;
+    private static final int VERSION_DEFLATED = 20;
+    private static final int FLAG_DATA_DESCRIPTOR = 0x08;
+    private static final int FLAG_UTF8 = 0x800;
+    private static final long MAX_SIZE = 0xFFFFFFFFL;
+    private static final int MAX_ENTRIES = 0xFFFF;
+
+    private final OutputStream out;
+    private final int threads;
+    private ExecutorService executor;
+
+    private final List<Header> headers = new ArrayList<>();
+    private long written;
+    private boolean finished;
+
+    // The current entry
+    private Header header;
+    private final CRC32 crc = new CRC32();
+    private long size;
+    private long compressedSize;
+    private byte[] block;
+    private int blockLength;
+    private byte[] previousBlock;
+    private final Deque<Future<byte[]>> pending = new ArrayDeque<>();
+
+    ParallelZipOutputStream(OutputStream out, int threads) {
+        this.out = out;
+        this.threads = Math.max(1, threads);
+    }
+
+    /** The number of threads set by {@link #PROPERTY_THREADS}, all the processors by default. */
+    static int configuredThreads() {
+        return Integer.getInteger(PROPERTY_THREADS, Runtime.getRuntime().availableProcessors());
+    }
+
+    /** Start a new entry, closing the current one. */
+    void putNextEntry(ZipEntry entry) throws IOException {
+        if (finished) {
+            throw new IOException("Stream finished");
+        }
+        if (header != null) {
+            closeEntry();
+        }
+        if (headers.size() == MAX_ENTRIES) {
+            throw new ZipException("Too many entries");
+        }
+        boolean stored = entry.getMethod() == ZipEntry.STORED;
+        if (stored && (entry.getSize() < 0 || entry.getCrc() < 0)) {
+            throw new ZipException("Size and CRC required for STORED entry " + entry.getName());
+        }
+        header = new Header(entry.getName().getBytes(StandardCharsets.UTF_8), stored,
+                dosTime(entry.getTime() == -1 ? System.currentTimeMillis() : entry.getTime()), written);
+        if (stored) {
+            header.crc = entry.getCrc();
+            header.size = entry.getSize();
+            header.compressedSize = entry.getSize();
+        }
+        crc.reset();
+        size = 0;
+        compressedSize = 0;
+        blockLength = 0;
+        previousBlock = null;
+
+        writeInt(LOCAL_HEADER);
+        writeShort(stored ? VERSION_STORED : VERSION_DEFLATED);
+        writeShort(header.flags());
+        writeShort(stored ? ZipEntry.STORED : ZipEntry.DEFLATED);
+        writeInt(header.time);
+        // The sizes of a deflated entry follow its data
+        writeInt(stored ? header.crc : 0);
+        writeInt(stored ? header.size : 0);
+        writeInt(stored ? header.size : 0);
+        writeShort(header.name.length);
+        writeShort(0);
+        writeBytes(header.name, 0, header.name.length);
+    }
+
+    @Override
+    public void write(int b) throws IOException {
+        write(new byte[] { (byte) b }, 0, 1);
+    }
+
+    @Override
+    public void write(byte[] b, int off, int len) throws IOException {
+        if (header == null) {
+            throw new ZipException("No current entry");
+        }
+        crc.update(b, off, len);
+        size += len;
+        if (header.stored) {
+            writeBytes(b, off, len);
+            return;
+        }
+        while (len > 0) {
+            if (block == null) {
+                block = new byte[BLOCK_SIZE];
+            }
+            int n = Math.min(len, BLOCK_SIZE - blockLength);
+            System.arraycopy(b, off, block, blockLength, n);
+            blockLength += n;
+            off += n;
+            len -= n;
+            if (blockLength == BLOCK_SIZE) {
+                deflateBlock(false);
+            }
+        }
+    }
+
+    /** Write the data of the current entry, and its sizes. */
+    void closeEntry() throws IOException {
+        if (header == null) {
+            return;
+        }
+        if (header.stored) {
+            if (size != header.size || crc.getValue() != header.crc) {
+                throw new ZipException("Invalid size or CRC for STORED entry " + new String(header.name,
+                        StandardCharsets.UTF_8));
+            }
+        } else {
+            deflateBlock(true);
+            while (!pending.isEmpty()) {
+                writeDeflated(pending.removeFirst());
+            }
+            header.crc = crc.getValue();
+            header.size = size;
+            header.compressedSize = compressedSize;
+            if (size > MAX_SIZE || compressedSize > MAX_SIZE) {
+                throw new ZipException("Entry too large");
+            }
+            writeInt(DATA_DESCRIPTOR);
+            writeInt(header.crc);
+            writeInt(header.compressedSize);
+            writeInt(header.size);
+        }
+        headers.add(header);
+        header = null;
+        block = null;
+        previousBlock = null;
+    }
+
+    /** Write the central directory, without closing the stream. */
+    void finish() throws IOException {
+        if (finished) {
+            return;
+        }
+        try {
+            closeEntry();
+            long start = written;
+            for (Header h : headers) {
+                writeInt(CENTRAL_HEADER);
+                writeShort(VERSION_DEFLATED);
+                writeShort(h.stored ? VERSION_STORED : VERSION_DEFLATED);
+                writeShort(h.flags());
+                writeShort(h.stored ? ZipEntry.STORED : ZipEntry.DEFLATED);
+                writeInt(h.time);
+                writeInt(h.crc);
+                writeInt(h.compressedSize);
+                writeInt(h.size);
+                writeShort(h.name.length);
+                // Extra field, comment, disk, internal and external attributes
+                writeShort(0);
+                writeShort(0);
+                writeShort(0);
+                writeShort(0);
+                writeInt(0);
+                writeInt(h.offset);
+                writeBytes(h.name, 0, h.name.length);
+            }
+            if (written > MAX_SIZE) {
+                throw new ZipException("Package too large");
+            }
+            long centralDirectorySize = written - start;
+            writeInt(END_OF_CENTRAL_DIRECTORY);
+            writeShort(0);
+            writeShort(0);
+            writeShort(headers.size());
+            writeShort(headers.size());
+            writeInt(centralDirectorySize);
+            writeInt(start);
+            writeShort(0);
+            out.flush();
+            finished = true;
+        } finally {
+            if (executor != null) {
+                executor.shutdownNow();
+                executor = null;
+            }
+        }
+    }
+
+    @Override
+    public void flush() throws IOException {
+        out.flush();
+    }
+
+    @Override
+    public void close() throws IOException {
+        try {
+            finish();
+        } finally {
+            out.close();
+        }
+    }
+
+    /**
+     * Queue the current block, and write the blocks already deflated. At most
+     * two blocks per thread are waiting, to bound the memory used.
+     */
+    private void deflateBlock(boolean last) throws IOException {
+        byte[] data = block == null ? new byte[0] : block;
+        int length = blockLength;
+        byte[] dictionary = previousBlock;
+        if (threads == 1 || (last && pending.isEmpty())) {
+            // Nothing to overlap with
+            pending.addLast(CompletableFuture.completedFuture(deflate(data, length, dictionary, last)));
+        } else {
+            pending.addLast(executor().submit(() -> deflate(data, length, dictionary, last)));
+        }
+        previousBlock = data;
+        block = null;
+        blockLength = 0;
+
+        while (!pending.isEmpty() && (pending.size() > 2 * threads || pending.peekFirst().isDone())) {
+            writeDeflated(pending.removeFirst());
+        }
+    }
+
+    private void writeDeflated(Future<byte[]> future) throws IOException {
+        byte[] deflated;
+        try {
+            deflated = future.get();
+        } catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+            throw new InterruptedIOException();
+        } catch (ExecutionException e) {
+            throw new IOException(e.getCause());
+        }
+        writeBytes(deflated, 0, deflated.length);
+        compressedSize += deflated.length;
+    }
+
+    /**
+     * Deflate a block as raw deflate data. The block of a stream which is not
+     * the last one is terminated by a sync flush, so it ends on a byte
+     * boundary and the next block can be appended.
+     */
+    private static byte[] deflate(byte[] data, int length, byte[] dictionary, boolean last) {
+        Deflater deflater = new Deflater(Deflater.DEFAULT_COMPRESSION, true);
+        try {
+            if (dictionary != null) {
+                int n = Math.min(DICTIONARY_SIZE, dictionary.length);
+                deflater.setDictionary(dictionary, dictionary.length - n, n);
+            }
+            deflater.setInput(data, 0, length);
+            ByteArrayOutputStream result = new ByteArrayOutputStream(length / 3 + 64);
+            byte[] buffer = new byte[16 * 1024];
+            if (last) {
+                deflater.finish();
+                while (!deflater.finished()) {
+                    result.write(buffer, 0, deflater.deflate(buffer));
+                }
+            } else {
+                // A full buffer means there may be more output
+                int n;
+                do {
+                    n = deflater.deflate(buffer, 0, buffer.length, Deflater.SYNC_FLUSH);
+                    result.write(buffer, 0, n);
+                } while (n == buffer.length);
+            }
+            return result.toByteArray();
+        } finally {
+            deflater.end();
+        }
+    }
+
+    private ExecutorService executor() {
+        if (executor == null) {
+            AtomicInteger threadCount = new AtomicInteger();
+            ThreadPoolExecutor pool = new ThreadPoolExecutor(threads, threads, 1L, TimeUnit.SECONDS,
+                    new LinkedBlockingQueue<>(), r -> {
+                        Thread thread = new Thread(r, "odt-review-deflate-" + threadCount.incrementAndGet());
+                        thread.setDaemon(true);
+                        return thread;
+                    });
+            // The threads of a writer failing before finish() end on their own
+            pool.allowCoreThreadTimeOut(true);
+            executor = pool;
+        }
+        return executor;
+    }
+
+    private void writeShort(int v) throws IOException {
+        out.write(v & 0xFF);
+        out.write((v >>> 8) & 0xFF);
+        written += 2;
+    }
+
+    private void writeInt(long v) throws IOException {
+        writeShort((int) (v & 0xFFFF));
+        writeShort((int) ((v >>> 16) & 0xFFFF));
+    }
+
+    private void writeBytes(byte[] b, int off, int len) throws IOException {
+        out.write(b, off, len);
+        written += len;
+    }
+
+    /** The MS-DOS date and time of a local time, as in a zip header. */
+    private static long dosTime(long time) {
+        Calendar calendar = Calendar.getInstance();
+        calendar.setTimeInMillis(time);
+        int year = calendar.get(Calendar.YEAR);
+        if (year < 1980) {
+            // The earliest DOS date, 1980-01-01 00:00
+            return (1 << 21) | (1 << 16);
+        }
+        return ((long) (year - 1980) << 25) | ((calendar.get(Calendar.MONTH) + 1) << 21)
+                | (calendar.get(Calendar.DAY_OF_MONTH) << 16) | (calendar.get(Calendar.HOUR_OF_DAY) << 11)
+                | (calendar.get(Calendar.MINUTE) << 5) | (calendar.get(Calendar.SECOND) >> 1);
+    }
+
+    /** The header of an entry, repeated in the central directory. */
+    private static final class Header {
+        final byte[] name;
+        final boolean stored;
+        final long time;
+        final long offset;
+        long crc;
+        long size;
+        long compressedSize;
+
+        Header(byte[] name, boolean stored, long time, long offset) {
+            this.name = name;
+            this.stored = stored;
+            this.time = time;
+            this.offset = offset;
+        }
+
+        int flags() {
+            return stored ? FLAG_UTF8 : FLAG_UTF8 | FLAG_DATA_DESCRIPTOR;
+        }
+    }
+}
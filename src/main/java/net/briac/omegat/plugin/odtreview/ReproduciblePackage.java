@@ -0,0 +1,282 @@
+/**************************************************************************
+ OmegaT Plugin - ODT Review
+
+ Copyright (C) 2023 Briac Pilpré - briacp@gmail.com
+ Home page: https://github.com/briacp/plugin-odt-review
+
+ This program is free software: you can redistribute it and/or modify
+ it under the terms of the GNU General Public License as published by
+ the Free Software Foundation, either version 3 of the License, or
+ (at your option) any later version.
+
+ This program is distributed in the hope that it will be useful,
+ but WITHOUT ANY WARRANTY; without even the implied warranty of
+ MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ GNU General Public License for more details.
+
+ You should have received a copy of the GNU General Public License
+ along with this program. If not, see <http://www.gnu.org/licenses/>.
+ **************************************************************************/
+
+package net.briac.omegat.plugin.odtreview;
+
+import java.io.File;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.OutputStream;
+import java.nio.charset.StandardCharsets;
+import java.util.ArrayList;
+import java.util.Enumeration;
+import java.util.HashMap;
+import java.util.Iterator;
+import java.util.List;
+import java.util.Map;
+import java.util.TreeMap;
+import java.util.zip.ZipEntry;
+import java.util.zip.ZipFile;
+
+import javax.xml.namespace.QName;
+import javax.xml.stream.XMLEventFactory;
+import javax.xml.stream.XMLEventReader;
+import javax.xml.stream.XMLEventWriter;
+import javax.xml.stream.XMLInputFactory;
+import javax.xml.stream.XMLOutputFactory;
+import javax.xml.stream.XMLStreamException;
+import javax.xml.stream.events.Attribute;
+import javax.xml.stream.events.StartElement;
+import javax.xml.stream.events.XMLEvent;
+
+/**
+ * Rewrite a package saved by the ODF toolkit so that the same document always
+ * gives the same bytes:
+ * <ul>
+ * <li>the entries are written in a fixed order with a fixed time;</li>
+ * <li>the dates and editing statistics of <code>meta.xml</code>, updated at
+ * each save, are removed;</li>
+ * <li>the automatic styles, to which the toolkit gives random names, are
+ * renamed in the order of their definition.</li>
+ * </ul>
+ * The entries are read from the saved package and rewritten one at a time,
+ * in a single pass: only the automatic styles of a part are kept in memory,
+ * they come before the body of the document.
+ */
+final class ReproduciblePackage {
+
+    /** Elements of <code>meta.xml</code> which change at each save. */
+    private static final String[][] VOLATILE_META = { { OdfXml.NS_META, "creation-date" },
+            { OdfXml.NS_DC, "date" }, { OdfXml.NS_META, "editing-duration" },
+            { OdfXml.NS_META, "editing-cycles" }, { OdfXml.NS_META, "print-date" } };
+
+    private static final String AUTOMATIC_STYLE_PREFIX = "as";
+    private static final QName STYLE_NAME = new QName(OdfXml.NS_STYLE, "name");
+
+    private static final XMLInputFactory INPUT_FACTORY = XMLInputFactory.newInstance();
+    private static final XMLOutputFactory OUTPUT_FACTORY = XMLOutputFactory.newInstance();
+    private static final XMLEventFactory EVENT_FACTORY = XMLEventFactory.newInstance();
+
+    static {
+        INPUT_FACTORY.setProperty(XMLInputFactory.SUPPORT_DTD, false);
+        INPUT_FACTORY.setProperty(XMLInputFactory.IS_SUPPORTING_EXTERNAL_ENTITIES, false);
+    }
+
+    private ReproduciblePackage() {
+        /* empty */
+    }
+
+    /**
+     * Copy a package to the stream, without closing it.
+     *
+     * @param mimetype
+     *            media type of the package, written first
+     * @param threads
+     *            number of threads compressing the package
+     */
+    static void copy(File input, OutputStream out, String mimetype, int threads)
+            throws IOException, XMLStreamException {
+        try (ZipFile zip = new ZipFile(input)) {
+            // Sorted by name, but the manifest is written first like the
+            // toolkit does
+            Map<String, ZipEntry> entries = new TreeMap<>();
+            for (Enumeration<? extends ZipEntry> e = zip.entries(); e.hasMoreElements();) {
+                ZipEntry entry = e.nextElement();
+                if (!entry.isDirectory() && !OdfXml.MIMETYPE_ENTRY.equals(entry.getName())) {
+                    entries.put(entry.getName(), entry);
+                }
+            }
+
+            ParallelZipOutputStream zipOut = new ParallelZipOutputStream(out, threads);
+            OdfXml.writeMimetype(zipOut, mimetype, OdfXml.REPRODUCIBLE_TIME);
+            ZipEntry manifest = entries.remove(OdfXml.MANIFEST_ENTRY);
+            if (manifest != null) {
+                copyEntry(zip, manifest, zipOut);
+            }
+            for (ZipEntry entry : entries.values()) {
+                copyEntry(zip, entry, zipOut);
+            }
+            zipOut.finish();
+        }
+    }
+
+    private static void copyEntry(ZipFile zip, ZipEntry entry, ParallelZipOutputStream out)
+            throws IOException, XMLStreamException {
+        String name = entry.getName();
+        out.putNextEntry(OdfXml.newEntry(name, OdfXml.REPRODUCIBLE_TIME));
+        try (InputStream in = zip.getInputStream(entry)) {
+            if (OdfXml.META_ENTRY.equals(name)) {
+                removeVolatileMeta(in, out);
+            } else if (OdfXml.CONTENT_ENTRY.equals(name) || OdfXml.STYLES_ENTRY.equals(name)) {
+                renameAutomaticStyles(in, out);
+            } else {
+                byte[] buffer = new byte[8192];
+                for (int n = in.read(buffer); n >= 0; n = in.read(buffer)) {
+                    out.write(buffer, 0, n);
+                }
+            }
+        }
+        out.closeEntry();
+    }
+
+    private static void removeVolatileMeta(InputStream in, OutputStream out) throws XMLStreamException {
+        XMLEventReader reader = INPUT_FACTORY.createXMLEventReader(in);
+        XMLEventWriter writer = OUTPUT_FACTORY.createXMLEventWriter(out, StandardCharsets.UTF_8.name());
+        int skipDepth = 0;
+        while (reader.hasNext()) {
+            XMLEvent event = reader.nextEvent();
+            if (skipDepth > 0) {
+                if (event.isStartElement()) {
+                    skipDepth++;
+                } else if (event.isEndElement()) {
+                    skipDepth--;
+                }
+                continue;
+            }
+            if (event.isStartElement() && isVolatileMeta(event.asStartElement())) {
+                skipDepth = 1;
+                continue;
+            }
+            writer.add(event);
+        }
+        writer.flush();
+        reader.close();
+    }
+
+    private static boolean isVolatileMeta(StartElement element) {
+        for (String[] name : VOLATILE_META) {
+            if (name[0].equals(element.getName().getNamespaceURI())
+                    && name[1].equals(element.getName().getLocalPart())) {
+                return true;
+            }
+        }
+        return false;
+    }
+
+    /**
+     * Give the automatic styles of an XML part the names
+     * <code>as1, as2...</code> in the order of their definition, and update
+     * the references to them in the same part.
+     * <p>
+     * The automatic styles are kept until the end of their section, since
+     * they may refer to each other, then the rest of the part is streamed.
+     */
+    private static void renameAutomaticStyles(InputStream in, OutputStream out) throws XMLStreamException {
+        Map<String, String> names = new HashMap<>();
+        List<XMLEvent> section = new ArrayList<>();
+        XMLEventReader reader = INPUT_FACTORY.createXMLEventReader(in);
+        XMLEventWriter writer = OUTPUT_FACTORY.createXMLEventWriter(out, StandardCharsets.UTF_8.name());
+        AutomaticStyles automaticStyles = new AutomaticStyles();
+        while (reader.hasNext()) {
+            XMLEvent event = reader.nextEvent();
+            boolean definition = automaticStyles.isDefinition(event);
+            if (automaticStyles.isInside()) {
+                if (definition) {
+                    Attribute name = event.asStartElement().getAttributeByName(STYLE_NAME);
+                    if (name != null) {
+                        names.putIfAbsent(name.getValue(), AUTOMATIC_STYLE_PREFIX + (names.size() + 1));
+                    }
+                }
+                section.add(event);
+                continue;
+            }
+            if (!section.isEmpty()) {
+                // The end of the section: its definitions are all known
+                AutomaticStyles sectionStyles = new AutomaticStyles();
+                for (XMLEvent sectionEvent : section) {
+                    boolean sectionDefinition = sectionStyles.isDefinition(sectionEvent);
+                    writer.add(sectionEvent.isStartElement()
+                            ? renameReferences(sectionEvent.asStartElement(), sectionDefinition, names)
+                            : sectionEvent);
+                }
+                section.clear();
+            }
+            if (event.isStartElement() && !names.isEmpty()) {
+                event = renameReferences(event.asStartElement(), false, names);
+            }
+            writer.add(event);
+        }
+        writer.flush();
+        reader.close();
+    }
+
+    private static StartElement renameReferences(StartElement element, boolean definition,
+            Map<String, String> names) {
+        boolean renamed = false;
+        List<Attribute> attributes = new ArrayList<>();
+        for (Iterator<?> it = element.getAttributes(); it.hasNext();) {
+            Attribute attribute = (Attribute) it.next();
+            String local = attribute.getName().getLocalPart();
+            String newName = names.get(attribute.getValue());
+            if (newName != null && (local.endsWith("style-name") || local.equals("page-layout-name")
+                    || definition && STYLE_NAME.equals(attribute.getName()))) {
+                attribute = EVENT_FACTORY.createAttribute(attribute.getName(), newName);
+                renamed = true;
+            }
+            attributes.add(attribute);
+        }
+        if (!renamed) {
+            return element;
+        }
+        return EVENT_FACTORY.createStartElement(element.getName(), attributes.iterator(),
+                element.getNamespaces());
+    }
+
+    /** Track the depth of the events to find the children of office:automatic-styles. */
+    private static final class AutomaticStyles {
+        private int depth;
+        private int automaticStylesDepth = -1;
+        private boolean inside;
+
+        /**
+         * Whether the last event was part of office:automatic-styles,
+         * including its start and end elements.
+         */
+        boolean isInside() {
+            return inside;
+        }
+
+        /** Whether the event starts the definition of an automatic style. */
+        boolean isDefinition(XMLEvent event) {
+            boolean definition = false;
+            if (event.isStartElement()) {
+                depth++;
+                QName name = event.asStartElement().getName();
+                if (automaticStylesDepth < 0 && OdfXml.NS_OFFICE.equals(name.getNamespaceURI())
+                        && "automatic-styles".equals(name.getLocalPart())) {
+                    automaticStylesDepth = depth;
+                } else {
+                    definition = automaticStylesDepth > 0 && depth == automaticStylesDepth + 1;
+                }
+                inside = automaticStylesDepth > 0;
+            } else if (event.isEndElement()) {
+                inside = automaticStylesDepth > 0;
+                if (depth == automaticStylesDepth) {
+                    // There is a single office:automatic-styles in a part
+                    automaticStylesDepth = 0;
+                }
+                depth--;
+            } else {
+                inside = automaticStylesDepth > 0;
+            }
+            return definition;
+        }
+    }
+}
@@ -0,0 +1,149 @@
+/**************************************************************************
+ OmegaT Plugin - ODT Review
+
+ Copyright (C) 2023 Briac Pilpré - briacp@gmail.com
+ Home page: https://github.com/briacp/plugin-odt-review
+
+ This program is free software: you can redistribute it and/or modify
+ it under the terms of the GNU General Public License as published by
+ the Free Software Foundation, either version 3 of the License, or
+ (at your option) any later version.
+
+ This program is distributed in the hope that it will be useful,
+ but WITHOUT ANY WARRANTY; without even the implied warranty of
+ MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ GNU General Public License for more details.
+
+ You should have received a copy of the GNU General Public License
+ along with this program. If not, see <http://www.gnu.org/licenses/>.
+ **************************************************************************/
+
+package net.briac.omegat.plugin.odtreview;
+
+import java.util.HashMap;
+import java.util.HashSet;
+import java.util.List;
+import java.util.Map;
+import java.util.Set;
+
+import org.omegat.core.data.IProject;
+import org.omegat.core.data.IProject.FileInfo;
+import org.omegat.core.data.SourceTextEntry;
+
+/**
+ * Find the project entry of a review row whose entry number no longer
+ * matches, e.g. after the source files were re-segmented, added or reordered.
+ * <p>
+ * The entries are indexed by the hash of their file path, source text and
+ * neighbouring source texts, then of their file path and source text, then of
+ * their source text only. A row is looked up from the most specific key to
+ * the least specific one, each lookup is O(1). The source text only is used
+ * when the file of the row is no longer in the project, e.g. it was renamed.
+ * A key shared by several entries is ambiguous: the row is not matched rather
+ * than matched to the wrong entry.
+ */
+final class ReviewAnchors {
+
+    /** Value of the keys shared by several entries. */
+    private static final Object AMBIGUOUS = new Object();
+
+    /** Found no entry. */
+    static final Match NONE = new Match(null, false);
+
+    private final Map<Long, Object> byContext = new HashMap<>();
+    private final Map<Long, Object> byFile = new HashMap<>();
+    private final Map<Long, Object> bySource = new HashMap<>();
+    private final Set<String> filePaths = new HashSet<>();
+
+    private ReviewAnchors() {
+        /* empty */
+    }
+
+    /** Index the entries of all the project files. */
+    static ReviewAnchors of(IProject project) {
+        ReviewAnchors anchors = new ReviewAnchors();
+        for (FileInfo fileInfo : project.getProjectFiles()) {
+            anchors.filePaths.add(fileInfo.filePath);
+            List<SourceTextEntry> entries = fileInfo.entries;
+            for (int i = 0; i < entries.size(); i++) {
+                SourceTextEntry ste = entries.get(i);
+                String source = ste.getSrcText();
+                String previous = i > 0 ? entries.get(i - 1).getSrcText() : null;
+                String next = i + 1 < entries.size() ? entries.get(i + 1).getSrcText() : null;
+                put(anchors.byContext, hash(fileInfo.filePath, source, previous, next), ste);
+                put(anchors.byFile, hash(fileInfo.filePath, source), ste);
+                put(anchors.bySource, hash(source), ste);
+            }
+        }
+        return anchors;
+    }
+
+    private static void put(Map<Long, Object> index, long key, SourceTextEntry ste) {
+        index.merge(key, ste, (a, b) -> AMBIGUOUS);
+    }
+
+    /**
+     * Find the entry of a row.
+     *
+     * @param filePath
+     *            file of the row, <code>null</code> if unknown
+     * @param previous
+     *            source text of the previous row of the same file,
+     *            <code>null</code> for the first row
+     * @param next
+     *            source text of the next row of the same file,
+     *            <code>null</code> for the last row
+     */
+    Match find(String filePath, String source, String previous, String next) {
+        if (filePath != null && filePaths.contains(filePath)) {
+            Match match = lookup(byContext, hash(filePath, source, previous, next), source);
+            if (match == NONE) {
+                match = lookup(byFile, hash(filePath, source), source);
+            }
+            return match;
+        }
+        // The file was renamed, or is unknown
+        return lookup(bySource, hash(source), source);
+    }
+
+    private static Match lookup(Map<Long, Object> index, long key, String source) {
+        Object value = index.get(key);
+        if (value == null) {
+            return NONE;
+        }
+        if (value == AMBIGUOUS) {
+            return new Match(null, true);
+        }
+        // The hashes may collide
+        SourceTextEntry ste = (SourceTextEntry) value;
+        return source.equals(ste.getSrcText()) ? new Match(ste, false) : NONE;
+    }
+
+    /** 64 bits hash of the texts, <code>null</code> being distinct from empty. */
+    private static long hash(String... texts) {
+        long h = 1125899906842597L;
+        for (String text : texts) {
+            if (text == null) {
+                h = 31 * h + 1;
+                continue;
+            }
+            for (int i = 0; i < text.length(); i++) {
+                h = 31 * h + text.charAt(i);
+            }
+            // Separate the texts, so that "ab", "c" differs from "a", "bc"
+            h = 31 * h + 2 + text.length();
+        }
+        return h;
+    }
+
+    /** The entry found for a row, if any. */
+    static final class Match {
+        final SourceTextEntry entry;
+        final boolean ambiguous;
+
+        Match(SourceTextEntry entry, boolean ambiguous) {
+            this.entry = entry;
+            this.ambiguous = ambiguous;
+        }
+    }
+}
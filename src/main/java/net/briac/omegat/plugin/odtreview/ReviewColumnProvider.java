@@ -0,0 +1,63 @@
+/**************************************************************************
+ OmegaT Plugin - ODT Review
+
+ Copyright (C) 2023 Briac Pilpré - briacp@gmail.com
+ Home page: https://github.com/briacp/plugin-odt-review
+
+ This program is free software: you can redistribute it and/or modify
+ it under the terms of the GNU General Public License as published by
+ the Free Software Foundation, either version 3 of the License, or
+ (at your option) any later version.
+
+ This program is distributed in the hope that it will be useful,
+ but WITHOUT ANY WARRANTY; without even the implied warranty of
+ MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ GNU General Public License for more details.
+
+ You should have received a copy of the GNU General Public License
+ along with this program. If not, see <http://www.gnu.org/licenses/>.
+ **************************************************************************/
+
+package net.briac.omegat.plugin.odtreview;
+
+import org.omegat.core.data.SourceTextEntry;
+import org.omegat.core.data.TMXEntry;
+
+/**
+ * An extra read-only column of the review files, e.g. glossary hits or the
+ * match percentage, registered with
+ * {@link ODTReviewPlugin#registerColumnProvider(ReviewColumnProvider)}.
+ * <p>
+ * The values of a source file are computed on a background thread while the
+ * previous files are written, and {@link #getValue(SourceTextEntry, TMXEntry)}
+ * may be called concurrently for different files. A provider which doesn't
+ * answer within {@link #getTimeoutMillis()} leaves its column empty for the
+ * rest of the export.
+ */
+public interface ReviewColumnProvider {
+
+    /** Header of the column. */
+    String getHeader();
+
+    /**
+     * Value of the cell for an entry.
+     *
+     * @param translation
+     *            may be <code>null</code> if the entry has no translation info
+     * @return <code>null</code> for an empty cell
+     */
+    String getValue(SourceTextEntry entry, TMXEntry translation);
+
+    /**
+     * If the value only depends on the source text, it's computed once for
+     * all the duplicates of the segment during an export.
+     */
+    default boolean isCachedBySource() {
+        return false;
+    }
+
+    /** Maximum time to wait for the values of a source file. */
+    default long getTimeoutMillis() {
+        return 10_000L;
+    }
+}
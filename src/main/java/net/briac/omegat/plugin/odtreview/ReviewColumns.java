@@ -0,0 +1,206 @@
+/**************************************************************************
+ OmegaT Plugin - ODT Review
+
+ Copyright (C) 2023 Briac Pilpré - briacp@gmail.com
+ Home page: https://github.com/briacp/plugin-odt-review
+
+ This program is free software: you can redistribute it and/or modify
+ it under the terms of the GNU General Public License as published by
+ the Free Software Foundation, either version 3 of the License, or
+ (at your option) any later version.
+
+ This program is distributed in the hope that it will be useful,
+ but WITHOUT ANY WARRANTY; without even the implied warranty of
+ MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ GNU General Public License for more details.
+
+ You should have received a copy of the GNU General Public License
+ along with this program. If not, see <http://www.gnu.org/licenses/>.
+ **************************************************************************/
+
+package net.briac.omegat.plugin.odtreview;
+
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.CancellationException;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.CopyOnWriteArrayList;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Future;
+import java.util.concurrent.LinkedBlockingQueue;
+import java.util.concurrent.ThreadPoolExecutor;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.TimeoutException;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.logging.Level;
+import java.util.logging.Logger;
+
+import org.omegat.core.data.SourceTextEntry;
+import org.omegat.core.data.TMXEntry;
+
+import net.briac.omegat.plugin.odtreview.ReviewSnapshot.FileSnapshot;
+
+/**
+ * The values of the extra columns of an export.
+ * <p>
+ * As soon as the export starts, the values of each file and each provider are
+ * computed on a small pool of daemon threads, so they are usually ready when
+ * the writer reaches the file. The writer waits at most the timeout of the
+ * provider, after which the provider is dropped for the remaining files.
+ */
+final class ReviewColumns implements AutoCloseable {
+
+    private static final Logger LOGGER = Logger.getLogger(ReviewColumns.class.getName());
+
+    private static final List<ReviewColumnProvider> PROVIDERS = new CopyOnWriteArrayList<>();
+
+    /** Adds no column, whatever the registered providers. */
+    static final ReviewColumns NONE = new ReviewColumns();
+
+    private final List<ReviewColumnProvider> providers;
+    private final ExecutorService executor;
+    // Futures of each file, in the order of the providers
+    private final List<List<Future<String[]>>> values;
+    private final boolean[] dropped;
+
+    private ReviewColumns() {
+        providers = Collections.emptyList();
+        executor = null;
+        values = Collections.emptyList();
+        dropped = new boolean[0];
+    }
+
+    private ReviewColumns(ReviewSnapshot snapshot, List<ReviewColumnProvider> providers) {
+        this.providers = providers;
+        this.dropped = new boolean[providers.size()];
+
+        int threads = Math.max(1, Runtime.getRuntime().availableProcessors() / 2);
+        AtomicInteger threadCount = new AtomicInteger();
+        executor = new ThreadPoolExecutor(threads, threads, 0L, TimeUnit.MILLISECONDS,
+                new LinkedBlockingQueue<>(), r -> {
+                    Thread thread = new Thread(r, "odt-review-columns-" + threadCount.incrementAndGet());
+                    thread.setDaemon(true);
+                    thread.setPriority(Thread.NORM_PRIORITY - 1);
+                    return thread;
+                });
+
+        List<Map<String, String>> caches = new ArrayList<>(providers.size());
+        for (int i = 0; i < providers.size(); i++) {
+            caches.add(new ConcurrentHashMap<>());
+        }
+        values = new ArrayList<>(snapshot.getFiles().size());
+        for (FileSnapshot file : snapshot.getFiles()) {
+            List<Future<String[]>> fileValues = new ArrayList<>(providers.size());
+            for (int i = 0; i < providers.size(); i++) {
+                ReviewColumnProvider provider = providers.get(i);
+                Map<String, String> cache = caches.get(i);
+                fileValues.add(executor.submit(() -> evaluate(provider, cache, file)));
+            }
+            values.add(fileValues);
+        }
+    }
+
+    static void register(ReviewColumnProvider provider) {
+        PROVIDERS.add(provider);
+    }
+
+    static void unregister(ReviewColumnProvider provider) {
+        PROVIDERS.remove(provider);
+    }
+
+    /** Whether any provider is registered, the exports will have extra columns. */
+    static boolean hasProviders() {
+        return !PROVIDERS.isEmpty();
+    }
+
+    /** Start computing the extra columns of the snapshot. */
+    static ReviewColumns start(ReviewSnapshot snapshot) {
+        List<ReviewColumnProvider> providers = new ArrayList<>(PROVIDERS);
+        if (providers.isEmpty()) {
+            return NONE;
+        }
+        return new ReviewColumns(snapshot, providers);
+    }
+
+    private static String[] evaluate(ReviewColumnProvider provider, Map<String, String> cache,
+            FileSnapshot file) {
+        String[] column = new String[file.size()];
+        boolean cached = provider.isCachedBySource();
+        for (int i = 0; i < column.length && !Thread.currentThread().isInterrupted(); i++) {
+            SourceTextEntry entry = file.getEntry(i);
+            TMXEntry translation = file.getTranslation(i);
+            if (cached) {
+                // A null value can't be cached, it's stored as an empty string
+                column[i] = cache.computeIfAbsent(entry.getSrcText(), source -> {
+                    String value = provider.getValue(entry, translation);
+                    return value == null ? "" : value;
+                });
+            } else {
+                column[i] = provider.getValue(entry, translation);
+            }
+        }
+        return column;
+    }
+
+    /** Number of extra columns. */
+    int size() {
+        return providers.size();
+    }
+
+    String getHeader(int column) {
+        return providers.get(column).getHeader();
+    }
+
+    /**
+     * Wait for the extra columns of a file.
+     *
+     * @param fileIndex
+     *            index of the file in the snapshot
+     * @return the values of each column, indexed like the entries of the file;
+     *         the values of a failed provider are all <code>null</code>.
+     */
+    String[][] get(int fileIndex, int fileSize) {
+        String[][] columns = new String[providers.size()][];
+        for (int i = 0; i < columns.length; i++) {
+            columns[i] = dropped[i] ? null : waitFor(i, values.get(fileIndex).get(i));
+            if (columns[i] == null) {
+                columns[i] = new String[fileSize];
+            }
+        }
+        return columns;
+    }
+
+    private String[] waitFor(int column, Future<String[]> future) {
+        ReviewColumnProvider provider = providers.get(column);
+        try {
+            return future.get(provider.getTimeoutMillis(), TimeUnit.MILLISECONDS);
+        } catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+            future.cancel(true);
+            return null;
+        } catch (TimeoutException e) {
+            LOGGER.log(Level.WARNING,
+                    () -> String.format("Column \"%s\" timed out after %d ms, it is left empty",
+                            provider.getHeader(), provider.getTimeoutMillis()));
+        } catch (ExecutionException | CancellationException e) {
+            LOGGER.log(Level.WARNING, e, () -> String.format("Column \"%s\" failed, it is left empty",
+                    provider.getHeader()));
+        }
+        // Don't wait for this provider again during this export
+        dropped[column] = true;
+        for (List<Future<String[]>> fileValues : values) {
+            fileValues.get(column).cancel(true);
+        }
+        return null;
+    }
+
+    @Override
+    public void close() {
+        if (executor != null) {
+            executor.shutdownNow();
+        }
+    }
+}
@@ -0,0 +1,407 @@
+/**************************************************************************
+ OmegaT Plugin - ODT Review
+
+ Copyright (C) 2023 Briac Pilpré - briacp@gmail.com
+ Home page: https://github.com/briacp/plugin-odt-review
+
+ This program is free software: you can redistribute it and/or modify
+ it under the terms of the GNU General Public License as published by
+ the Free Software Foundation, either version 3 of the License, or
+ (at your option) any later version.
+
+ This program is distributed in the hope that it will be useful,
+ but WITHOUT ANY WARRANTY; without even the implied warranty of
+ MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ GNU General Public License for more details.
+
+ You should have received a copy of the GNU General Public License
+ along with this program. If not, see <http://www.gnu.org/licenses/>.
+ **************************************************************************/
+
+package net.briac.omegat.plugin.odtreview;
+
+import java.util.ArrayList;
+import java.util.HashMap;
+import java.util.List;
+import java.util.ListIterator;
+import java.util.Map;
+import java.util.Objects;
+import java.util.concurrent.ForkJoinPool;
+import java.util.concurrent.RecursiveAction;
+import java.util.logging.Level;
+import java.util.logging.Logger;
+
+import org.omegat.core.data.IProject;
+import org.omegat.core.data.PrepareTMXEntry;
+import org.omegat.core.data.SourceTextEntry;
+import org.omegat.core.data.TMXEntry;
+import org.omegat.util.TMXProp;
+
+/**
+ * Compare the rows of a review file with the current project translations.
+ * <p>
+ * The rows are split in ranges diffed in parallel on the common fork/join
+ * pool. Nothing is written to the project here: the changes are returned in
+ * the order of the rows, and applied on a single thread by the caller.
+ * <p>
+ * A row is matched to the entry of its number, unless that entry has another
+ * source text or file: the entry numbers have drifted since the export, and
+ * the row is re-anchored by its source text and context. Rows matched to the
+ * same entry are ambiguous, none of them is imported.
+ * <p>
+ * The tags of a changed translation are checked in the same pass: a
+ * translation whose tags don't match the source is rejected, and only the
+ * note of its row is imported.
+ */
+final class ReviewDiff {
+
+    // ProjectTMX.PROP_ORIGIN
+    private static final String REVIEWED_PROPERTIES = "origin";
+
+    // Outcomes of the row trace
+    private static final String ROW_MISSING = "missing";
+    private static final String ROW_UNCHANGED = "unchanged";
+    private static final String ROW_CHANGED = "changed";
+    private static final String ROW_REJECTED = "rejected";
+
+    /** Below this number of rows, a range is diffed without being split. */
+    private static final int SPLIT_THRESHOLD = 512;
+
+    private static final Logger LOGGER = Logger.getLogger(ReviewDiff.class.getName());
+
+    private final IProject project;
+    private final Map<Integer, SourceTextEntry> allEntries;
+    private final String emptyTranslation;
+    private final TMXProp reviewProp;
+
+    // Built for the first row which doesn't match its entry
+    private volatile ReviewAnchors anchors;
+    private SourceTextEntry[] targets = new SourceTextEntry[0];
+    private boolean[] reanchoredRows = new boolean[0];
+    private boolean[] ambiguousRows = new boolean[0];
+    private ReviewTags.Rejection[] rejectedRows = new ReviewTags.Rejection[0];
+
+    // The levels are checked once, not for each row
+    private final boolean logFine = LOGGER.isLoggable(Level.FINE);
+    private final boolean logFinest = LOGGER.isLoggable(Level.FINEST);
+
+    /**
+     * @param reviewPropValue
+     *            value of the <code>origin</code> property of the updated
+     *            entries.
+     */
+    ReviewDiff(IProject project, Map<Integer, SourceTextEntry> allEntries, String reviewPropValue) {
+        this.project = project;
+        this.allEntries = allEntries;
+        this.emptyTranslation = ODTReviewPlugin.res.getString("empty.translation");
+        this.reviewProp = new TMXProp(REVIEWED_PROPERTIES, reviewPropValue);
+    }
+
+    /** Diff all the rows, and return the changes in the order of the rows. */
+    List<Change> compute(List<Row> rows) {
+        Change[] changes = new Change[rows.size()];
+        targets = new SourceTextEntry[rows.size()];
+        reanchoredRows = new boolean[rows.size()];
+        ambiguousRows = new boolean[rows.size()];
+        rejectedRows = new ReviewTags.Rejection[rows.size()];
+        try (RowTrace trace = RowTrace.start("import")) {
+            ForkJoinPool.commonPool().invoke(new DiffTask(rows, changes, 0, rows.size(), trace));
+        }
+
+        // The rows matched to the same entry would overwrite each other
+        Map<Integer, Integer> rowOfEntry = new HashMap<>();
+        for (int i = 0; i < targets.length; i++) {
+            if (targets[i] == null) {
+                continue;
+            }
+            Integer other = rowOfEntry.putIfAbsent(targets[i].entryNum(), i);
+            if (other != null) {
+                unmatch(rows, changes, other);
+                unmatch(rows, changes, i);
+            }
+        }
+
+        List<Change> result = new ArrayList<>();
+        for (Change change : changes) {
+            if (change != null) {
+                result.add(change);
+            }
+        }
+        return result;
+    }
+
+    private void unmatch(List<Row> rows, Change[] changes, int index) {
+        if (!ambiguousRows[index] && logFine) {
+            LOGGER.fine(String.format("Segment #%d matches the same segment of the project as another row",
+                    rows.get(index).entryNum));
+        }
+        changes[index] = null;
+        rejectedRows[index] = null;
+        reanchoredRows[index] = false;
+        ambiguousRows[index] = true;
+    }
+
+    /** Number of rows matched by their source text by the last diff. */
+    int getReanchoredRows() {
+        int count = 0;
+        for (boolean reanchored : reanchoredRows) {
+            if (reanchored) {
+                count++;
+            }
+        }
+        return count;
+    }
+
+    /**
+     * Entry numbers of the rows matching several entries in the last diff,
+     * which were not imported.
+     */
+    List<Integer> getAmbiguousRows(List<Row> rows) {
+        List<Integer> result = new ArrayList<>();
+        for (int i = 0; i < ambiguousRows.length; i++) {
+            if (ambiguousRows[i]) {
+                result.add(rows.get(i).entryNum);
+            }
+        }
+        return result;
+    }
+
+    /** The translations of the last diff whose tags don't match the source. */
+    List<ReviewTags.Rejection> getRejectedRows() {
+        List<ReviewTags.Rejection> result = new ArrayList<>();
+        for (ReviewTags.Rejection rejection : rejectedRows) {
+            if (rejection != null) {
+                result.add(rejection);
+            }
+        }
+        return result;
+    }
+
+    /**
+     * For a given row, if the source text is the same (in case we tried to
+     * apply the review to another project) and either the translation or the
+     * notes are different, return the updated entry.
+     *
+     * @return <code>null</code> if the project entry doesn't need to be
+     *         updated.
+     */
+    Change diff(List<Row> rows, int index) {
+        Row row = rows.get(index);
+        SourceTextEntry ste = resolve(rows, index);
+        targets[index] = ste;
+        if (ste == null) {
+            if (logFine) {
+                LOGGER.fine(String.format("Cannot find segment #%d in the project", row.entryNum));
+            }
+            return null;
+        }
+        if (logFinest) {
+            LOGGER.finest(String.format("Id     : %d", row.entryNum));
+            LOGGER.finest(String.format("Source : %s", row.source));
+            LOGGER.finest(String.format("Target : %s", row.target));
+            LOGGER.finest(String.format("Note   : %s", row.note));
+        }
+
+        // if this was an empty translation, don't update the translation with
+        // "<EMPTY>"!
+        String targetTranslation = row.target.equals(emptyTranslation) ? "" : row.target;
+
+        TMXEntry en = project.getTranslationInfo(ste);
+        if (en == null) {
+            return null;
+        }
+
+        // An untranslated entry is exported with an empty target cell
+        String currentTranslation = en.translation == null ? "" : en.translation;
+        boolean translationUpdated = !currentTranslation.equals(targetTranslation);
+        if (translationUpdated) {
+            ReviewTags.Rejection rejection = ReviewTags.check(ste, targetTranslation);
+            if (rejection != null) {
+                rejectedRows[index] = rejection;
+                translationUpdated = false;
+            }
+        }
+        boolean noteAdded = isNewNote(row.note, en.note);
+        if (!translationUpdated && !noteAdded) {
+            return null;
+        }
+
+        PrepareTMXEntry prepare = new PrepareTMXEntry(en);
+        // The translation info of an untranslated entry has no source
+        prepare.source = ste.getSrcText();
+        if (translationUpdated) {
+            prepare.translation = targetTranslation;
+            prepare.changer = ODTReviewPlugin.ODT_REVIEWER_ID;
+        }
+        if (noteAdded) {
+            String reviewerNote = String.format(ODTReviewPlugin.res.getString("reviewer.note"), row.note);
+            prepare.note = prepare.note != null && !prepare.note.isEmpty()
+                    ? prepare.note + "\n---\n" + reviewerNote
+                    : reviewerNote;
+        }
+        updateStatusProperties(prepare);
+
+        return new Change(ste, en, prepare, translationUpdated, noteAdded);
+    }
+
+    /**
+     * The entry of a row: the entry of its number if it has the same source
+     * text and file, otherwise the entry found by its source text and context.
+     *
+     * @return <code>null</code> if no entry or several entries match the row
+     */
+    private SourceTextEntry resolve(List<Row> rows, int index) {
+        Row row = rows.get(index);
+        SourceTextEntry ste = allEntries.get(row.entryNum);
+        if (ste != null && row.source.equals(ste.getSrcText())
+                && (row.filePath == null || row.filePath.equals(ste.getKey().file))) {
+            return ste;
+        }
+
+        ReviewAnchors.Match match = anchors().find(row.filePath, row.source, neighbour(rows, index, -1),
+                neighbour(rows, index, 1));
+        if (match.ambiguous) {
+            ambiguousRows[index] = true;
+            if (logFine) {
+                LOGGER.fine(
+                        String.format("Segment #%d matches several segments of the project", row.entryNum));
+            }
+        } else if (match.entry != null) {
+            reanchoredRows[index] = true;
+            if (logFine) {
+                LOGGER.fine(String.format("Segment #%d is now #%d", row.entryNum, match.entry.entryNum()));
+            }
+        }
+        return match.entry;
+    }
+
+    /** Source text of the row next to a row in the same file, if any. */
+    private static String neighbour(List<Row> rows, int index, int offset) {
+        int other = index + offset;
+        if (other < 0 || other >= rows.size()
+                || !Objects.equals(rows.get(index).filePath, rows.get(other).filePath)) {
+            return null;
+        }
+        return rows.get(other).source;
+    }
+
+    private ReviewAnchors anchors() {
+        ReviewAnchors result = anchors;
+        if (result == null) {
+            synchronized (this) {
+                result = anchors;
+                if (result == null) {
+                    result = ReviewAnchors.of(project);
+                    anchors = result;
+                }
+            }
+        }
+        return result;
+    }
+
+    /**
+     * If the review file is imported several times, the review notes would be
+     * duplicated, so a note already at the end of the entry note is ignored.
+     */
+    private static boolean isNewNote(String note, String currentNote) {
+        return !note.isEmpty() && (currentNote == null || !currentNote.endsWith(note));
+    }
+
+    private void updateStatusProperties(PrepareTMXEntry prepare) {
+        // The list may be shared with the current entry, it is never
+        // modified in place.
+        List<TMXProp> otherProperties = prepare.otherProperties == null ? new ArrayList<>()
+                : new ArrayList<>(prepare.otherProperties);
+
+        ListIterator<TMXProp> iter = otherProperties.listIterator();
+        while (iter.hasNext()) {
+            if (REVIEWED_PROPERTIES.equals(iter.next().getType())) {
+                iter.remove();
+            }
+        }
+        otherProperties.add(reviewProp);
+        prepare.otherProperties = otherProperties;
+    }
+
+    /** The content of a segment row of a review file. */
+    static final class Row {
+        final String filePath;
+        final int entryNum;
+        final String source;
+        final String target;
+        final String note;
+
+        /**
+         * @param filePath
+         *            <code>null</code> if the file of the row is unknown
+         */
+        Row(String filePath, int entryNum, String source, String target, String note) {
+            this.filePath = filePath;
+            this.entryNum = entryNum;
+            this.source = source;
+            this.target = target;
+            this.note = note;
+        }
+    }
+
+    /** An entry to update in the project. */
+    static final class Change {
+        final SourceTextEntry entry;
+        final TMXEntry current;
+        final PrepareTMXEntry updated;
+        final boolean translationUpdated;
+        final boolean noteAdded;
+
+        Change(SourceTextEntry entry, TMXEntry current, PrepareTMXEntry updated, boolean translationUpdated,
+                boolean noteAdded) {
+            this.entry = entry;
+            this.current = current;
+            this.updated = updated;
+            this.translationUpdated = translationUpdated;
+            this.noteAdded = noteAdded;
+        }
+    }
+
+    /** Diff a range of rows, each change is stored at the index of its row. */
+    private final class DiffTask extends RecursiveAction {
+        private static final long serialVersionUID = 1L;
+
+        private final transient List<Row> rows;
+        private final transient Change[] changes;
+        private final int from;
+        private final int to;
+        private final transient RowTrace trace;
+
+        DiffTask(List<Row> rows, Change[] changes, int from, int to, RowTrace trace) {
+            this.rows = rows;
+            this.changes = changes;
+            this.from = from;
+            this.to = to;
+            this.trace = trace;
+        }
+
+        @Override
+        protected void compute() {
+            if (to - from <= SPLIT_THRESHOLD) {
+                if (!trace.isEnabled()) {
+                    for (int i = from; i < to; i++) {
+                        changes[i] = diff(rows, i);
+                    }
+                    return;
+                }
+                for (int i = from; i < to; i++) {
+                    long start = trace.startRow();
+                    Row row = rows.get(i);
+                    changes[i] = diff(rows, i);
+                    trace.row(i, row.entryNum, start, changes[i] != null ? ROW_CHANGED
+                            : rejectedRows[i] != null ? ROW_REJECTED
+                                    : allEntries.containsKey(row.entryNum) ? ROW_UNCHANGED : ROW_MISSING);
+                }
+                return;
+            }
+            int middle = (from + to) >>> 1;
+            invokeAll(new DiffTask(rows, changes, from, middle, trace),
+                    new DiffTask(rows, changes, middle, to, trace));
+        }
+    }
+}
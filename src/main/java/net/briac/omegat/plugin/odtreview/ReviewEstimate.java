@@ -0,0 +1,255 @@
+/**************************************************************************
+ OmegaT Plugin - ODT Review
+
+ Copyright (C) 2023 Briac Pilpré - briacp@gmail.com
+ Home page: https://github.com/briacp/plugin-odt-review
+
+ This program is free software: you can redistribute it and/or modify
+ it under the terms of the GNU General Public License as published by
+ the Free Software Foundation, either version 3 of the License, or
+ (at your option) any later version.
+
+ This program is distributed in the hope that it will be useful,
+ but WITHOUT ANY WARRANTY; without even the implied warranty of
+ MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ GNU General Public License for more details.
+
+ You should have received a copy of the GNU General Public License
+ along with this program. If not, see <http://www.gnu.org/licenses/>.
+ **************************************************************************/
+
+package net.briac.omegat.plugin.odtreview;
+
+import java.util.ArrayList;
+import java.util.BitSet;
+import java.util.Collections;
+import java.util.List;
+import java.util.Locale;
+
+import org.omegat.core.data.IProject.FileInfo;
+import org.omegat.core.data.SourceTextEntry;
+
+/**
+ * Rough cost of an export, predicted from the number of segments and the
+ * length of their source text, before anything is rendered.
+ * <p>
+ * A text document is built in memory by the ODF toolkit, so when it wouldn't
+ * fit in the available heap, the export is split in several documents, or
+ * written as a spreadsheet, which is streamed, if a single source file is
+ * already too large.
+ * <p>
+ * The coefficients come from the perfTest runs on the synthetic projects;
+ * the translations are assumed as long as the source text.
+ */
+final class ReviewEstimate {
+
+    // Spreadsheet, streamed: the heap only holds the snapshot and buffers
+    private static final double ODS_BYTES_PER_SEGMENT = 15;
+    private static final double ODS_BYTES_PER_CHAR = 0.35;
+    private static final double ODS_HEAP_PER_SEGMENT = 64;
+    private static final double ODS_MICROS_PER_SEGMENT = 20;
+    private static final double ODS_MICROS_PER_CHAR = 0.1;
+
+    // Text document, whole DOM in memory until saved
+    private static final double ODT_BYTES_PER_SEGMENT = 30;
+    private static final double ODT_BYTES_PER_CHAR = 0.35;
+    private static final double ODT_HEAP_PER_SEGMENT = 3000;
+    private static final double ODT_HEAP_PER_CHAR = 4;
+    private static final double ODT_MICROS_PER_SEGMENT = 500;
+    private static final double ODT_MICROS_PER_CHAR = 0.5;
+
+    private static final long BASE_HEAP = 16L * 1024 * 1024;
+
+    /** Share of the free heap an export may use. */
+    private static final double HEAP_MARGIN = 0.8;
+
+    private final ReviewFormat format;
+    private final List<BitSet> parts;
+    private final long sizeBytes;
+    private final long heapBytes;
+    private final long durationMillis;
+    private final long availableHeap;
+
+    private ReviewEstimate(ReviewFormat format, List<BitSet> parts, long sizeBytes, long heapBytes,
+            long durationMillis, long availableHeap) {
+        this.format = format;
+        this.parts = Collections.unmodifiableList(parts);
+        this.sizeBytes = sizeBytes;
+        this.heapBytes = heapBytes;
+        this.durationMillis = durationMillis;
+        this.availableHeap = availableHeap;
+    }
+
+    /** Segment count and source length of a project file. */
+    static final class FileCost {
+        final int segments;
+        final long characters;
+
+        FileCost(int segments, long characters) {
+            this.segments = segments;
+            this.characters = characters;
+        }
+    }
+
+    /** Measure the project files, in the order of the project. */
+    static List<FileCost> measure(List<FileInfo> files) {
+        List<FileCost> costs = new ArrayList<>(files.size());
+        for (FileInfo file : files) {
+            long characters = 0;
+            for (SourceTextEntry ste : file.entries) {
+                characters += ste.getSrcText().length();
+            }
+            costs.add(new FileCost(file.entries.size(), characters));
+        }
+        return costs;
+    }
+
+    /** Heap which can still be allocated, less a safety margin. */
+    static long availableHeap() {
+        Runtime runtime = Runtime.getRuntime();
+        long used = runtime.totalMemory() - runtime.freeMemory();
+        return (long) ((runtime.maxMemory() - used) * HEAP_MARGIN);
+    }
+
+    static ReviewEstimate of(List<FileCost> costs, BitSet selection, ReviewFormat requested) {
+        return of(costs, selection, requested, availableHeap());
+    }
+
+    /**
+     * Estimate the export of the selected files, and choose how to render it
+     * within the available heap.
+     */
+    static ReviewEstimate of(List<FileCost> costs, BitSet selection, ReviewFormat requested,
+            long availableHeap) {
+        BitSet selected = (BitSet) selection.clone();
+        if (requested == ReviewFormat.ODT && heap(costs, selected, ReviewFormat.ODT) > availableHeap) {
+            List<BitSet> parts = split(costs, selected, availableHeap);
+            if (parts != null) {
+                return estimate(costs, ReviewFormat.ODT, parts, availableHeap);
+            }
+            return estimate(costs, ReviewFormat.ODS, Collections.singletonList(selected), availableHeap);
+        }
+        return estimate(costs, requested, Collections.singletonList(selected), availableHeap);
+    }
+
+    private static ReviewEstimate estimate(List<FileCost> costs, ReviewFormat format, List<BitSet> parts,
+            long availableHeap) {
+        long segments = 0;
+        long characters = 0;
+        long heap = 0;
+        for (BitSet part : parts) {
+            for (int i = part.nextSetBit(0); i >= 0 && i < costs.size(); i = part.nextSetBit(i + 1)) {
+                segments += costs.get(i).segments;
+                characters += 2 * costs.get(i).characters;
+            }
+            // The parts are written one after the other
+            heap = Math.max(heap, heap(costs, part, format));
+        }
+        boolean odt = format == ReviewFormat.ODT;
+        double size = segments * (odt ? ODT_BYTES_PER_SEGMENT : ODS_BYTES_PER_SEGMENT)
+                + characters * (odt ? ODT_BYTES_PER_CHAR : ODS_BYTES_PER_CHAR);
+        double micros = segments * (odt ? ODT_MICROS_PER_SEGMENT : ODS_MICROS_PER_SEGMENT)
+                + characters * (odt ? ODT_MICROS_PER_CHAR : ODS_MICROS_PER_CHAR);
+        return new ReviewEstimate(format, new ArrayList<>(parts), (long) size, heap, (long) (micros / 1000),
+                availableHeap);
+    }
+
+    private static long heap(List<FileCost> costs, BitSet files, ReviewFormat format) {
+        double heap = BASE_HEAP;
+        for (int i = files.nextSetBit(0); i >= 0 && i < costs.size(); i = files.nextSetBit(i + 1)) {
+            heap += heap(costs.get(i), format);
+        }
+        return (long) heap;
+    }
+
+    /** Heap taken by a file in an export, on top of the base heap. */
+    private static double heap(FileCost cost, ReviewFormat format) {
+        return format == ReviewFormat.ODT
+                ? cost.segments * ODT_HEAP_PER_SEGMENT + 2 * cost.characters * ODT_HEAP_PER_CHAR
+                : cost.segments * ODS_HEAP_PER_SEGMENT;
+    }
+
+    /**
+     * Group consecutive files in parts which each fit in the heap, keeping
+     * the heap of the current part as files are added.
+     *
+     * @return <code>null</code> if a single file doesn't fit.
+     */
+    private static List<BitSet> split(List<FileCost> costs, BitSet selected, long availableHeap) {
+        List<BitSet> parts = new ArrayList<>();
+        BitSet part = new BitSet();
+        double partHeap = BASE_HEAP;
+        for (int i = selected.nextSetBit(0); i >= 0 && i < costs.size(); i = selected.nextSetBit(i + 1)) {
+            double fileHeap = heap(costs.get(i), ReviewFormat.ODT);
+            if ((long) (BASE_HEAP + fileHeap) > availableHeap) {
+                return null;
+            }
+            if ((long) (partHeap + fileHeap) > availableHeap) {
+                parts.add(part);
+                part = new BitSet();
+                partHeap = BASE_HEAP;
+            }
+            part.set(i);
+            partHeap += fileHeap;
+        }
+        if (!part.isEmpty()) {
+            parts.add(part);
+        }
+        return parts;
+    }
+
+    /** Format actually used, which may differ from the requested one. */
+    ReviewFormat getFormat() {
+        return format;
+    }
+
+    /** File indexes of each review file to write, in project order. */
+    List<BitSet> getParts() {
+        return parts;
+    }
+
+    boolean isSplit() {
+        return parts.size() > 1;
+    }
+
+    long getSizeBytes() {
+        return sizeBytes;
+    }
+
+    long getHeapBytes() {
+        return heapBytes;
+    }
+
+    long getDurationMillis() {
+        return durationMillis;
+    }
+
+    /** Summary shown in the export dialog. */
+    String describe(ReviewFormat requested) {
+        String summary = String.format(ODTReviewPlugin.res.getString("odt.estimate"), formatBytes(sizeBytes),
+                formatBytes(heapBytes), formatDuration(durationMillis));
+        if (isSplit()) {
+            return summary + " " + String.format(ODTReviewPlugin.res.getString("odt.estimate.split"),
+                    formatBytes(availableHeap), parts.size());
+        }
+        if (format != requested) {
+            return summary + " " + String.format(ODTReviewPlugin.res.getString("odt.estimate.streaming"),
+                    formatBytes(availableHeap));
+        }
+        return summary;
+    }
+
+    static String formatBytes(long bytes) {
+        if (bytes < 1024 * 1024) {
+            return String.format(Locale.ENGLISH, "%d KB", Math.max(1, bytes / 1024));
+        }
+        return String.format(Locale.ENGLISH, "%.1f MB", bytes / (1024.0 * 1024));
+    }
+
+    static String formatDuration(long millis) {
+        if (millis < 60_000) {
+            return String.format(Locale.ENGLISH, "%d s", Math.max(1, millis / 1000));
+        }
+        return String.format(Locale.ENGLISH, "%d min", millis / 60_000);
+    }
+}
@@ -0,0 +1,89 @@
+/**************************************************************************
+ OmegaT Plugin - ODT Review
+
+ Copyright (C) 2023 Briac Pilpré - briacp@gmail.com
+ Home page: https://github.com/briacp/plugin-odt-review
+
+ This program is free software: you can redistribute it and/or modify
+ it under the terms of the GNU General Public License as published by
+ the Free Software Foundation, either version 3 of the License, or
+ (at your option) any later version.
+
+ This program is distributed in the hope that it will be useful,
+ but WITHOUT ANY WARRANTY; without even the implied warranty of
+ MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ GNU General Public License for more details.
+
+ You should have received a copy of the GNU General Public License
+ along with this program. If not, see <http://www.gnu.org/licenses/>.
+ **************************************************************************/
+
+package net.briac.omegat.plugin.odtreview;
+
+import java.io.File;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.ExecutionException;
+import java.util.stream.Collectors;
+
+import javax.swing.JOptionPane;
+import javax.swing.SwingWorker;
+
+import org.omegat.core.Core;
+import org.omegat.util.Log;
+
+/**
+ * Render review files from {@link ReviewSnapshot}s in the background, see
+ * {@link ODTReviewPlugin#writeReviews}, and report the progress in the main
+ * window status bar.
+ */
+final class ReviewExportWorker extends SwingWorker<List<File>, Integer> {
+
+    private final ODTReviewPlugin plugin;
+    private final Map<File, ReviewSnapshot> outputs;
+    private final Runnable onFinished;
+
+    /**
+     * @param outputs
+     *            the snapshot to render in each file, usually a single one
+     *            unless the export is split
+     */
+    ReviewExportWorker(ODTReviewPlugin plugin, Map<File, ReviewSnapshot> outputs, Runnable onFinished) {
+        this.plugin = plugin;
+        this.outputs = outputs;
+        this.onFinished = onFinished;
+    }
+
+    @Override
+    protected List<File> doInBackground() throws Exception {
+        plugin.writeReviews(outputs, this::publish);
+        return new ArrayList<>(outputs.keySet());
+    }
+
+    @Override
+    protected void process(List<Integer> chunks) {
+        int percent = chunks.get(chunks.size() - 1);
+        Core.getMainWindow().showProgressMessage(
+                String.format(ODTReviewPlugin.res.getString("odt.status.exporting"), percent));
+    }
+
+    @Override
+    protected void done() {
+        onFinished.run();
+        Core.getMainWindow().showProgressMessage("");
+        try {
+            String saved = get().stream().map(File::getAbsolutePath).collect(Collectors.joining("\n"));
+            JOptionPane.showMessageDialog(Core.getMainWindow().getApplicationFrame(),
+                    String.format(ODTReviewPlugin.res.getString("odt.file.saved"), saved),
+                    ODTReviewPlugin.res.getString("dialog.export.title"), JOptionPane.INFORMATION_MESSAGE);
+        } catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+        } catch (ExecutionException e) {
+            Log.logErrorRB(e.getCause(), ODTReviewPlugin.res.getString("odt.error.export"));
+            JOptionPane.showMessageDialog(Core.getMainWindow().getApplicationFrame(),
+                    ODTReviewPlugin.res.getString("odt.error.export"),
+                    ODTReviewPlugin.res.getString("dialog.export.title"), JOptionPane.ERROR_MESSAGE);
+        }
+    }
+}
@@ -0,0 +1,48 @@
+/**************************************************************************
+ OmegaT Plugin - ODT Review
+
+ Copyright (C) 2023 Briac Pilpré - briacp@gmail.com
+ Home page: https://github.com/briacp/plugin-odt-review
+
+ This program is free software: you can redistribute it and/or modify
+ it under the terms of the GNU General Public License as published by
+ the Free Software Foundation, either version 3 of the License, or
+ (at your option) any later version.
+
+ This program is distributed in the hope that it will be useful,
+ but WITHOUT ANY WARRANTY; without even the implied warranty of
+ MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ GNU General Public License for more details.
+
+ You should have received a copy of the GNU General Public License
+ along with this program. If not, see <http://www.gnu.org/licenses/>.
+ **************************************************************************/
+
+package net.briac.omegat.plugin.odtreview;
+
+import java.io.File;
+import java.util.Locale;
+
+/** The formats of the review files. */
+public enum ReviewFormat {
+    /** Text document, with a table for each source file. */
+    ODT(ODTReviewPlugin.ODT_EXTENSION),
+
+    /** Spreadsheet, with a sheet for each source file. */
+    ODS(ODTReviewPlugin.ODS_EXTENSION);
+
+    private final String extension;
+
+    ReviewFormat(String extension) {
+        this.extension = extension;
+    }
+
+    public String getExtension() {
+        return extension;
+    }
+
+    /** Review spreadsheets have the <code>.ods</code> extension. */
+    public static ReviewFormat of(File file) {
+        return file.getName().toLowerCase(Locale.ENGLISH).endsWith(ODS.extension) ? ODS : ODT;
+    }
+}
@@ -0,0 +1,356 @@
+/**************************************************************************
+ OmegaT Plugin - ODT Review
+
+ Copyright (C) 2023 Briac Pilpré - briacp@gmail.com
+ Home page: https://github.com/briacp/plugin-odt-review
+
+ This program is free software: you can redistribute it and/or modify
+ it under the terms of the GNU General Public License as published by
+ the Free Software Foundation, either version 3 of the License, or
+ (at your option) any later version.
+
+ This program is distributed in the hope that it will be useful,
+ but WITHOUT ANY WARRANTY; without even the implied warranty of
+ MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ GNU General Public License for more details.
+
+ You should have received a copy of the GNU General Public License
+ along with this program. If not, see <http://www.gnu.org/licenses/>.
+ **************************************************************************/
+
+package net.briac.omegat.plugin.odtreview;
+
+import java.io.BufferedInputStream;
+import java.io.ByteArrayInputStream;
+import java.io.ByteArrayOutputStream;
+import java.io.DataInputStream;
+import java.io.DataOutputStream;
+import java.io.EOFException;
+import java.io.File;
+import java.io.FileInputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.nio.ByteBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.file.Files;
+import java.nio.file.StandardOpenOption;
+import java.security.MessageDigest;
+import java.security.NoSuchAlgorithmException;
+import java.util.ArrayList;
+import java.util.BitSet;
+import java.util.Collections;
+import java.util.List;
+import java.util.Map;
+import java.util.logging.Level;
+import java.util.logging.Logger;
+import java.util.zip.CRC32;
+
+import org.omegat.core.data.IProject;
+
+/**
+ * The review rounds imported in a project, kept in an append-only file of the
+ * project folder rather than in the project memory, so the history doesn't
+ * grow <code>project_save.tmx</code>.
+ * <p>
+ * Each import appends a round: the reviewer, the date, the hash of the review
+ * file, then the number and the kind of change of each entry it changed. An
+ * entry takes 5 bytes, and the file is only read when it's queried.
+ * <p>
+ * Each round is written as a record with its length and CRC-32, so a round
+ * partially written before a crash is detected: the rounds are read up to
+ * the first damaged record, and the damaged tail is truncated before the next
+ * round is appended.
+ */
+public final class ReviewHistory {
+
+    /** The translation was updated. */
+    public static final int TRANSLATION = 1;
+    /** A reviewer note was added. */
+    public static final int NOTE = 2;
+    /** The translation was rejected, its tags don't match the source. */
+    public static final int REJECTED = 4;
+
+    static final String HISTORY_FILE = "odt-review-history.dat";
+
+    private static final int MAGIC = 0x4F525648;
+    private static final int VERSION = 2;
+    private static final int HEADER_SIZE = 6;
+    // Length and CRC-32 of a record
+    private static final int RECORD_HEADER_SIZE = 8;
+    private static final String HASH_ALGORITHM = "SHA-256";
+
+    private static final Logger LOGGER = Logger.getLogger(ReviewHistory.class.getName());
+
+    private final File file;
+
+    // Read on the first query, then updated by the appended rounds
+    private List<Round> rounds;
+    // Length of the file up to the end of the last valid round
+    private long validLength;
+
+    public ReviewHistory(File file) {
+        this.file = file;
+    }
+
+    /** The history in the internal folder of the project. */
+    public static ReviewHistory of(IProject project) {
+        return new ReviewHistory(new File(project.getProjectProperties().getProjectInternal(), HISTORY_FILE));
+    }
+
+    /** Whether the folder of the history exists, e.g. not for a project in memory. */
+    boolean isAvailable() {
+        return file.getParentFile() != null && file.getParentFile().isDirectory();
+    }
+
+    /**
+     * Append a round at the end of the file, in a single write. A damaged
+     * round left at the end of the file by a crash is truncated first.
+     *
+     * @param changes
+     *            the kinds of change of each entry number, in the order of
+     *            the review file
+     */
+    synchronized void append(String reviewer, long date, byte[] fileHash, Map<Integer, Integer> changes)
+            throws IOException {
+        int[] entries = new int[changes.size()];
+        byte[] kinds = new byte[changes.size()];
+        int i = 0;
+        for (Map.Entry<Integer, Integer> change : changes.entrySet()) {
+            entries[i] = change.getKey();
+            kinds[i++] = change.getValue().byteValue();
+        }
+        Round round = new Round(reviewer == null ? "" : reviewer, date,
+                fileHash == null ? new byte[0] : fileHash, entries, kinds);
+
+        ByteArrayOutputStream record = new ByteArrayOutputStream(64 + entries.length * 5);
+        DataOutputStream out = new DataOutputStream(record);
+        out.writeLong(round.date);
+        out.writeUTF(round.reviewer);
+        out.writeByte(round.fileHash.length);
+        out.write(round.fileHash);
+        out.writeInt(entries.length);
+        for (int j = 0; j < entries.length; j++) {
+            out.writeInt(entries[j]);
+            out.writeByte(kinds[j]);
+        }
+        out.flush();
+        CRC32 crc = new CRC32();
+        crc.update(record.toByteArray());
+
+        // The file is read again if it was replaced since the last query
+        if (rounds == null || file.length() < validLength) {
+            rounds = new ArrayList<>();
+            validLength = read(rounds);
+        }
+        ByteArrayOutputStream bytes = new ByteArrayOutputStream(
+                HEADER_SIZE + RECORD_HEADER_SIZE + record.size());
+        out = new DataOutputStream(bytes);
+        if (validLength == 0) {
+            out.writeInt(MAGIC);
+            out.writeShort(VERSION);
+        }
+        out.writeInt(record.size());
+        out.writeInt((int) crc.getValue());
+        record.writeTo(out);
+        out.flush();
+
+        try (FileChannel channel = FileChannel.open(file.toPath(), StandardOpenOption.CREATE,
+                StandardOpenOption.WRITE)) {
+            if (channel.size() > validLength) {
+                LOGGER.log(Level.WARNING, () -> String.format("Truncating the damaged end of %s at %d bytes",
+                        file, validLength));
+                channel.truncate(validLength);
+            }
+            ByteBuffer buffer = ByteBuffer.wrap(bytes.toByteArray());
+            channel.position(validLength);
+            while (buffer.hasRemaining()) {
+                channel.write(buffer);
+            }
+        }
+        validLength += bytes.size();
+        rounds.add(round);
+    }
+
+    /** All the rounds, the oldest first. */
+    public synchronized List<Round> getRounds() throws IOException {
+        if (rounds == null) {
+            rounds = new ArrayList<>();
+            validLength = read(rounds);
+        }
+        return Collections.unmodifiableList(new ArrayList<>(rounds));
+    }
+
+    /**
+     * The entries changed in the last rounds of the project, e.g. to export
+     * them again with {@link ReviewSnapshot#take(IProject, java.util.function.IntPredicate)}.
+     *
+     * @param reviewer
+     *            only the rounds of this reviewer, or <code>null</code> for
+     *            all the rounds
+     * @param lastRounds
+     *            number of rounds to look at, counting the rounds of all the
+     *            reviewers
+     * @param kinds
+     *            the kinds of change to look for, e.g.
+     *            <code>TRANSLATION | NOTE</code>
+     */
+    public BitSet getEntries(String reviewer, int lastRounds, int kinds) throws IOException {
+        List<Round> all = getRounds();
+        BitSet result = new BitSet();
+        for (Round round : all.subList(Math.max(0, all.size() - lastRounds), all.size())) {
+            if (reviewer != null && !reviewer.equals(round.reviewer)) {
+                continue;
+            }
+            for (int i = 0; i < round.entries.length; i++) {
+                if ((round.kinds[i] & kinds) != 0) {
+                    result.set(round.entries[i]);
+                }
+            }
+        }
+        return result;
+    }
+
+    /** Whether a review file with this hash was already imported. */
+    public boolean contains(byte[] fileHash) throws IOException {
+        for (Round round : getRounds()) {
+            if (MessageDigest.isEqual(round.fileHash, fileHash)) {
+                return true;
+            }
+        }
+        return false;
+    }
+
+    /**
+     * Read the rounds up to the first damaged record: its length doesn't fit
+     * in the file, or its content doesn't match its CRC-32.
+     *
+     * @return the length of the valid part of the file, 0 if it doesn't even
+     *         have a complete header
+     */
+    private long read(List<Round> result) throws IOException {
+        long length = file.length();
+        if (length < HEADER_SIZE) {
+            return 0;
+        }
+        try (DataInputStream in = new DataInputStream(new BufferedInputStream(new FileInputStream(file)))) {
+            if (in.readInt() != MAGIC || in.readUnsignedShort() != VERSION) {
+                throw new IOException("Unknown review history format: " + file);
+            }
+            long end = HEADER_SIZE;
+            CRC32 crc = new CRC32();
+            while (length - end >= RECORD_HEADER_SIZE) {
+                int size = in.readInt();
+                int checksum = in.readInt();
+                if (size < 0 || size > length - end - RECORD_HEADER_SIZE) {
+                    break;
+                }
+                byte[] record = new byte[size];
+                in.readFully(record);
+                crc.reset();
+                crc.update(record);
+                Round round = (int) crc.getValue() == checksum ? parse(record) : null;
+                if (round == null) {
+                    break;
+                }
+                result.add(round);
+                end += RECORD_HEADER_SIZE + size;
+            }
+            if (end < length) {
+                long validEnd = end;
+                LOGGER.log(Level.WARNING, () -> String.format("Ignoring the damaged end of %s after %d bytes",
+                        file, validEnd));
+            }
+            return end;
+        }
+    }
+
+    /** @return <code>null</code> if the record is not a round */
+    private static Round parse(byte[] record) throws IOException {
+        DataInputStream in = new DataInputStream(new ByteArrayInputStream(record));
+        try {
+            long date = in.readLong();
+            String reviewer = in.readUTF();
+            byte[] fileHash = new byte[in.readUnsignedByte()];
+            in.readFully(fileHash);
+            int count = in.readInt();
+            if (count < 0 || count * 5L != in.available()) {
+                return null;
+            }
+            int[] entries = new int[count];
+            byte[] kinds = new byte[count];
+            for (int i = 0; i < count; i++) {
+                entries[i] = in.readInt();
+                kinds[i] = in.readByte();
+            }
+            return new Round(reviewer, date, fileHash, entries, kinds);
+        } catch (EOFException e) {
+            return null;
+        }
+    }
+
+    /** The hash of a review file, as recorded in the rounds. */
+    static byte[] hash(File reviewFile) throws IOException {
+        MessageDigest digest = newDigest();
+        try (InputStream in = Files.newInputStream(reviewFile.toPath())) {
+            byte[] buffer = new byte[64 * 1024];
+            for (int n = in.read(buffer); n >= 0; n = in.read(buffer)) {
+                digest.update(buffer, 0, n);
+            }
+        }
+        return digest.digest();
+    }
+
+    static MessageDigest newDigest() {
+        try {
+            return MessageDigest.getInstance(HASH_ALGORITHM);
+        } catch (NoSuchAlgorithmException e) {
+            // Required on every Java platform
+            throw new IllegalStateException(e);
+        }
+    }
+
+    /** An imported review file, and the entries it changed. */
+    public static final class Round {
+        private final String reviewer;
+        private final long date;
+        private final byte[] fileHash;
+        private final int[] entries;
+        private final byte[] kinds;
+
+        Round(String reviewer, long date, byte[] fileHash, int[] entries, byte[] kinds) {
+            this.reviewer = reviewer;
+            this.date = date;
+            this.fileHash = fileHash;
+            this.entries = entries;
+            this.kinds = kinds;
+        }
+
+        /** The name from the reviewer table, empty if unknown. */
+        public String getReviewer() {
+            return reviewer;
+        }
+
+        /** The time of the import, in milliseconds. */
+        public long getDate() {
+            return date;
+        }
+
+        /** The SHA-256 hash of the review file, empty if unknown. */
+        public byte[] getFileHash() {
+            return fileHash.clone();
+        }
+
+        public int size() {
+            return entries.length;
+        }
+
+        public int getEntryNum(int index) {
+            return entries[index];
+        }
+
+        /** A combination of {@link #TRANSLATION}, {@link #NOTE} and {@link #REJECTED}. */
+        public int getKind(int index) {
+            return kinds[index];
+        }
+    }
+}
@@ -0,0 +1,347 @@
+/**************************************************************************
+ OmegaT Plugin - ODT Review
+
+ Copyright (C) 2023 Briac Pilpré - briacp@gmail.com
+ Home page: https://github.com/briacp/plugin-odt-review
+
+ This program is free software: you can redistribute it and/or modify
+ it under the terms of the GNU General Public License as published by
+ the Free Software Foundation, either version 3 of the License, or
+ (at your option) any later version.
+
+ This program is distributed in the hope that it will be useful,
+ but WITHOUT ANY WARRANTY; without even the implied warranty of
+ MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ GNU General Public License for more details.
+
+ You should have received a copy of the GNU General Public License
+ along with this program. If not, see <http://www.gnu.org/licenses/>.
+ **************************************************************************/
+
+package net.briac.omegat.plugin.odtreview;
+
+import java.io.IOException;
+import java.io.Writer;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.ClosedWatchServiceException;
+import java.nio.file.DirectoryStream;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.StandardOpenOption;
+import java.nio.file.WatchEvent;
+import java.nio.file.WatchKey;
+import java.nio.file.WatchService;
+import java.text.SimpleDateFormat;
+import java.util.ArrayList;
+import java.util.Date;
+import java.util.Iterator;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.TimeUnit;
+import java.util.function.Consumer;
+import java.util.logging.Level;
+import java.util.logging.Logger;
+
+import org.omegat.core.data.IProject;
+
+import static java.nio.file.StandardWatchEventKinds.ENTRY_CREATE;
+import static java.nio.file.StandardWatchEventKinds.ENTRY_MODIFY;
+import static java.nio.file.StandardWatchEventKinds.OVERFLOW;
+
+/**
+ * Import the review files dropped in an inbox directory.
+ * <p>
+ * A file is imported once it hasn't changed for the debounce delay, so a
+ * file still being copied is left alone. Files which don't match the project
+ * are rejected at once, the others are read and compared with the project on
+ * the watcher thread, and imported in batches: the changes of all the files
+ * ready at the same time are applied by a single task on the UI thread. Each
+ * processed file is moved to the <code>done</code> or <code>failed</code>
+ * sub-directory, and its outcome is appended to <code>summary.txt</code>.
+ */
+public final class ReviewInbox implements AutoCloseable {
+
+    /** The inbox directory, absolute or relative to the project root. */
+    static final String PROPERTY_INBOX = "odtreview.inbox";
+    static final String PROPERTY_DEBOUNCE = "odtreview.inbox.debounceMs";
+
+    static final String DONE_DIR = "done";
+    static final String FAILED_DIR = "failed";
+    static final String SUMMARY_FILE = "summary.txt";
+
+    private static final long DEFAULT_DEBOUNCE_MS = 2000L;
+
+    private static final Logger LOGGER = Logger.getLogger(ReviewInbox.class.getName());
+
+    private final Path inbox;
+    private final IProject project;
+    private final long debounceMillis;
+    private final Consumer<Runnable> uiThread;
+    private final Consumer<Summary> onBatchImported;
+    private final WatchService watchService;
+    private final Thread thread;
+
+    // Files not ready yet: last change time and size, only used by the
+    // watcher thread
+    private final Map<Path, long[]> pending = new LinkedHashMap<>();
+
+    /**
+     * @param uiThread
+     *            runs the batch imports on the thread allowed to update the
+     *            project. It drops the task if the project was closed in the
+     *            meantime, the files are then left in the inbox.
+     * @param onBatchImported
+     *            called on the UI thread after each batch
+     */
+    public ReviewInbox(Path inbox, IProject project, long debounceMillis, Consumer<Runnable> uiThread,
+            Consumer<Summary> onBatchImported) throws IOException {
+        this.inbox = inbox;
+        this.project = project;
+        this.debounceMillis = debounceMillis;
+        this.uiThread = uiThread;
+        this.onBatchImported = onBatchImported;
+
+        Files.createDirectories(inbox.resolve(DONE_DIR));
+        Files.createDirectories(inbox.resolve(FAILED_DIR));
+        watchService = inbox.getFileSystem().newWatchService();
+        inbox.register(watchService, ENTRY_CREATE, ENTRY_MODIFY);
+
+        thread = new Thread(this::watch, "odt-review-inbox");
+        thread.setDaemon(true);
+    }
+
+    /**
+     * The inbox configured by the <code>odtreview.inbox</code> system
+     * property, or <code>null</code> if there is none.
+     */
+    static ReviewInbox configured(IProject project, Consumer<Runnable> uiThread,
+            Consumer<Summary> onBatchImported) throws IOException {
+        String directory = System.getProperty(PROPERTY_INBOX);
+        if (directory == null || directory.trim().isEmpty()) {
+            return null;
+        }
+        Path inbox = project.getProjectProperties().getProjectRootDir().toPath().resolve(directory.trim());
+        return new ReviewInbox(inbox, project, Long.getLong(PROPERTY_DEBOUNCE, DEFAULT_DEBOUNCE_MS), uiThread,
+                onBatchImported);
+    }
+
+    /** Start watching, the files already in the inbox are imported too. */
+    public void start() throws IOException {
+        long now = System.currentTimeMillis();
+        try (DirectoryStream<Path> files = Files.newDirectoryStream(inbox)) {
+            for (Path file : files) {
+                pending.put(file, new long[] { now, -1 });
+            }
+        }
+        thread.start();
+        LOGGER.info(() -> String.format("Watching the review inbox %s", inbox));
+    }
+
+    @Override
+    public void close() {
+        try {
+            watchService.close();
+        } catch (IOException e) {
+            LOGGER.log(Level.WARNING, e, () -> "Cannot close the review inbox watcher");
+        }
+    }
+
+    private void watch() {
+        try {
+            while (true) {
+                WatchKey key = watchService.poll(Math.max(1, debounceMillis / 2), TimeUnit.MILLISECONDS);
+                long now = System.currentTimeMillis();
+                if (key != null) {
+                    for (WatchEvent<?> event : key.pollEvents()) {
+                        if (event.kind() == OVERFLOW) {
+                            rescan(now);
+                        } else {
+                            pending.put(inbox.resolve((Path) event.context()), new long[] { now, -1 });
+                        }
+                    }
+                    key.reset();
+                }
+                List<Path> ready = takeReadyFiles(now);
+                if (!ready.isEmpty()) {
+                    importBatch(ready);
+                }
+            }
+        } catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+        } catch (ClosedWatchServiceException e) {
+            // closed with the project
+        }
+    }
+
+    private void rescan(long now) {
+        try (DirectoryStream<Path> files = Files.newDirectoryStream(inbox)) {
+            for (Path file : files) {
+                pending.putIfAbsent(file, new long[] { now, -1 });
+            }
+        } catch (IOException e) {
+            LOGGER.log(Level.WARNING, e, () -> String.format("Cannot list the review inbox %s", inbox));
+        }
+    }
+
+    /** The review files whose size didn't change for the debounce delay. */
+    private List<Path> takeReadyFiles(long now) {
+        List<Path> ready = new ArrayList<>();
+        for (Iterator<Map.Entry<Path, long[]>> it = pending.entrySet().iterator(); it.hasNext();) {
+            Map.Entry<Path, long[]> entry = it.next();
+            Path file = entry.getKey();
+            long[] state = entry.getValue();
+            if (!Files.isRegularFile(file) || !ODTReviewPlugin.isReviewFile(file.toFile())) {
+                it.remove();
+                continue;
+            }
+            long size;
+            try {
+                size = Files.size(file);
+            } catch (IOException e) {
+                it.remove();
+                continue;
+            }
+            if (size != state[1]) {
+                state[0] = now;
+                state[1] = size;
+            } else if (now - state[0] >= debounceMillis) {
+                ready.add(file);
+                it.remove();
+            }
+        }
+        return ready;
+    }
+
+    /**
+     * Reject the files which don't match the project, and compare the others
+     * with the project on this thread. Only their changes are applied on the
+     * UI thread.
+     */
+    private void importBatch(List<Path> files) {
+        ODTReviewPlugin checker = new ODTReviewPlugin(project);
+        Summary summary = new Summary();
+        Map<Path, ODTReviewPlugin> prepared = new LinkedHashMap<>();
+        for (Path file : files) {
+            try {
+                String mismatch = checker.getReviewMismatch(ReviewMetadata.read(file.toFile()));
+                if (mismatch != null) {
+                    fail(summary, file, mismatch.trim().replace('\n', ' '));
+                    continue;
+                }
+                ODTReviewPlugin plugin = new ODTReviewPlugin(project);
+                plugin.setInteractive(false);
+                if (plugin.prepareImport(file.toFile())) {
+                    prepared.put(file, plugin);
+                } else {
+                    fail(summary, file, "does not match the project");
+                }
+            } catch (Exception e) {
+                LOGGER.log(Level.WARNING, e, () -> String.format("Cannot import %s", file));
+                fail(summary, file, e.toString());
+            }
+        }
+        if (prepared.isEmpty()) {
+            writeSummary(summary);
+            return;
+        }
+
+        uiThread.accept(() -> {
+            for (Map.Entry<Path, ODTReviewPlugin> entry : prepared.entrySet()) {
+                Path file = entry.getKey();
+                ODTReviewPlugin plugin = entry.getValue();
+                try {
+                    plugin.applyImport();
+                    summary.changedEntries.addAll(plugin.getChangedEntries());
+                    summary.updatedTranslations += plugin.getUpdatedTranslations();
+                    summary.updatedComments += plugin.getUpdatedComments();
+                    String outcome = String.format("%d translations, %d notes",
+                            plugin.getUpdatedTranslations(), plugin.getUpdatedComments());
+                    if (!plugin.getAmbiguousRows().isEmpty()) {
+                        outcome += String.format(", ambiguous rows %s", plugin.getAmbiguousRows());
+                    }
+                    if (!plugin.getRejectedRows().isEmpty()) {
+                        outcome += String.format(", rejected rows %s", plugin.getRejectedRows());
+                    }
+                    move(summary, file, DONE_DIR, outcome);
+                    summary.imported++;
+                } catch (Exception e) {
+                    LOGGER.log(Level.WARNING, e, () -> String.format("Cannot import %s", file));
+                    fail(summary, file, e.toString());
+                }
+            }
+            writeSummary(summary);
+            onBatchImported.accept(summary);
+        });
+    }
+
+    private void fail(Summary summary, Path file, String reason) {
+        summary.failed++;
+        move(summary, file, FAILED_DIR, reason);
+    }
+
+    private void move(Summary summary, Path file, String directory, String outcome) {
+        String date = new SimpleDateFormat("yyyy-MM-dd HH:mm:ss").format(new Date());
+        summary.lines.add(String.join("\t", date, directory, file.getFileName().toString(), outcome));
+        try {
+            Files.move(file, uniqueTarget(inbox.resolve(directory), file.getFileName().toString()));
+        } catch (IOException e) {
+            LOGGER.log(Level.WARNING, e, () -> String.format("Cannot move %s to %s", file, directory));
+        }
+    }
+
+    /** Don't overwrite a previous review file with the same name. */
+    static Path uniqueTarget(Path directory, String name) {
+        Path target = directory.resolve(name);
+        int dot = name.lastIndexOf('.');
+        for (int i = 2; Files.exists(target); i++) {
+            target = directory.resolve(dot > 0 ? name.substring(0, dot) + "_" + i + name.substring(dot)
+                    : name + "_" + i);
+        }
+        return target;
+    }
+
+    private void writeSummary(Summary summary) {
+        LOGGER.info(() -> String.format("Review inbox: %d imported, %d failed", summary.imported,
+                summary.failed));
+        try (Writer out = Files.newBufferedWriter(inbox.resolve(SUMMARY_FILE), StandardCharsets.UTF_8,
+                StandardOpenOption.CREATE, StandardOpenOption.APPEND)) {
+            for (String line : summary.lines) {
+                out.write(line);
+                out.write(System.lineSeparator());
+            }
+        } catch (IOException e) {
+            LOGGER.log(Level.WARNING, e, () -> String.format("Cannot write the summary of %s", inbox));
+        }
+    }
+
+    /** Outcome of a batch of review files. */
+    public static final class Summary {
+        private int imported;
+        private int failed;
+        private int updatedTranslations;
+        private int updatedComments;
+        private final List<Integer> changedEntries = new ArrayList<>();
+        private final List<String> lines = new ArrayList<>();
+
+        public int getImported() {
+            return imported;
+        }
+
+        public int getFailed() {
+            return failed;
+        }
+
+        public int getUpdatedTranslations() {
+            return updatedTranslations;
+        }
+
+        public int getUpdatedComments() {
+            return updatedComments;
+        }
+
+        public List<Integer> getChangedEntries() {
+            return changedEntries;
+        }
+    }
+}
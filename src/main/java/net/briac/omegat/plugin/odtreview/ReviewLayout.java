@@ -0,0 +1,81 @@
+/**************************************************************************
+ OmegaT Plugin - ODT Review
+
+ Copyright (C) 2023 Briac Pilpré - briacp@gmail.com
+ Home page: https://github.com/briacp/plugin-odt-review
+
+ This program is free software: you can redistribute it and/or modify
+ it under the terms of the GNU General Public License as published by
+ the Free Software Foundation, either version 3 of the License, or
+ (at your option) any later version.
+
+ This program is distributed in the hope that it will be useful,
+ but WITHOUT ANY WARRANTY; without even the implied warranty of
+ MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ GNU General Public License for more details.
+
+ You should have received a copy of the GNU General Public License
+ along with this program. If not, see <http://www.gnu.org/licenses/>.
+ **************************************************************************/
+
+package net.briac.omegat.plugin.odtreview;
+
+import java.util.Locale;
+
+/** How the source files are laid out in a review file. */
+public enum ReviewLayout {
+    /**
+     * A table for each source file, in its own section of a text document or
+     * its own sheet of a spreadsheet.
+     */
+    TABLE_PER_FILE,
+
+    /**
+     * A single table for all the source files, for projects with many small
+     * files: the files are separated by a row holding their path in a text
+     * document, and by a file column in a spreadsheet.
+     */
+    SINGLE_TABLE;
+
+    /**
+     * <code>-Dodtreview.layout=single</code> or <code>per-file</code>, by
+     * default the layout is chosen for each export.
+     */
+    static final String PROPERTY_LAYOUT = "odtreview.layout";
+
+    /** Name of the single table, and of the spreadsheet holding it. */
+    static final String SINGLE_TABLE_NAME = "omt-review";
+
+    // A single table is chosen for at least this number of files...
+    private static final int AUTO_MIN_FILES = 50;
+    // ... with less than this number of segments on average
+    private static final int AUTO_MAX_SEGMENTS_PER_FILE = 10;
+
+    /** The layout set on the command line, <code>null</code> if none. */
+    static ReviewLayout configured() {
+        String value = System.getProperty(PROPERTY_LAYOUT);
+        if (value == null) {
+            return null;
+        }
+        switch (value.trim().toLowerCase(Locale.ENGLISH)) {
+        case "single":
+            return SINGLE_TABLE;
+        case "per-file":
+            return TABLE_PER_FILE;
+        default:
+            return null;
+        }
+    }
+
+    /**
+     * The layout of a snapshot: with a table for each file, the size of the
+     * document would depend on the number of files more than on the number of
+     * segments.
+     */
+    static ReviewLayout of(ReviewSnapshot snapshot) {
+        int files = snapshot.getFiles().size();
+        return files >= AUTO_MIN_FILES && snapshot.getEntryCount() < files * AUTO_MAX_SEGMENTS_PER_FILE
+                ? SINGLE_TABLE
+                : TABLE_PER_FILE;
+    }
+}
@@ -0,0 +1,185 @@
+/**************************************************************************
+ OmegaT Plugin - ODT Review
+
+ Copyright (C) 2023 Briac Pilpré - briacp@gmail.com
+ Home page: https://github.com/briacp/plugin-odt-review
+
+ This program is free software: you can redistribute it and/or modify
+ it under the terms of the GNU General Public License as published by
+ the Free Software Foundation, either version 3 of the License, or
+ (at your option) any later version.
+
+ This program is distributed in the hope that it will be useful,
+ but WITHOUT ANY WARRANTY; without even the implied warranty of
+ MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ GNU General Public License for more details.
+
+ You should have received a copy of the GNU General Public License
+ along with this program. If not, see <http://www.gnu.org/licenses/>.
+ **************************************************************************/
+
+package net.briac.omegat.plugin.odtreview;
+
+import java.io.File;
+import java.io.IOException;
+import java.io.InputStream;
+import java.util.HashMap;
+import java.util.Map;
+import java.util.zip.ZipEntry;
+import java.util.zip.ZipFile;
+
+import javax.xml.stream.XMLStreamException;
+import javax.xml.stream.XMLStreamReader;
+
+import org.odftoolkit.simple.meta.Meta;
+
+/**
+ * The <code>omt-*</code> metadata identifying the project of a review file,
+ * and the name of its reviewer.
+ * <p>
+ * {@link #read(File)} only reads <code>meta.xml</code> and the beginning of
+ * <code>content.xml</code>, so a review file can be checked against the
+ * project in a few milliseconds, before it's fully loaded.
+ */
+final class ReviewMetadata {
+
+    /** The metadata of a package without <code>meta.xml</code>. */
+    static final ReviewMetadata EMPTY = new ReviewMetadata(null, null, null, null);
+
+    private final String projectName;
+    private final String sourceLanguage;
+    private final String targetLanguage;
+    private final String reviewerName;
+
+    ReviewMetadata(String projectName, String sourceLanguage, String targetLanguage, String reviewerName) {
+        this.projectName = projectName;
+        this.sourceLanguage = sourceLanguage;
+        this.targetLanguage = targetLanguage;
+        this.reviewerName = reviewerName;
+    }
+
+    /** Pre-flight read of an ODT or ODS review file. */
+    static ReviewMetadata read(File file) throws IOException, XMLStreamException {
+        try (ZipFile zip = new ZipFile(file)) {
+            return read(zip);
+        }
+    }
+
+    /**
+     * Read the metadata from the <code>meta.xml</code> entry of a package, and
+     * the reviewer name from the <code>omt-reviewer</code> table, which is
+     * always the first table of the document.
+     */
+    static ReviewMetadata read(ZipFile zip) throws IOException, XMLStreamException {
+        Map<String, String> userDefined = new HashMap<>();
+        ZipEntry entry = zip.getEntry(OdfXml.META_ENTRY);
+        if (entry != null) {
+            try (InputStream in = zip.getInputStream(entry)) {
+                readUserDefined(in, userDefined);
+            }
+        }
+        String reviewer = null;
+        entry = zip.getEntry(OdfXml.CONTENT_ENTRY);
+        if (entry != null) {
+            try (InputStream in = zip.getInputStream(entry)) {
+                reviewer = readReviewer(in);
+            }
+        }
+        return new ReviewMetadata(userDefined.get(ODTReviewPlugin.METADATA_PROJECT),
+                userDefined.get(ODTReviewPlugin.METADATA_SOURCE),
+                userDefined.get(ODTReviewPlugin.METADATA_TARGET), reviewer);
+    }
+
+    /**
+     * Read the metadata from a <code>meta.xml</code> stream, e.g. an entry of a
+     * {@link java.util.zip.ZipInputStream}. The stream is not closed, and the
+     * reviewer name is left to the caller reading the content.
+     */
+    static ReviewMetadata read(InputStream metaXml) throws XMLStreamException {
+        Map<String, String> userDefined = new HashMap<>();
+        readUserDefined(metaXml, userDefined);
+        return new ReviewMetadata(userDefined.get(ODTReviewPlugin.METADATA_PROJECT),
+                userDefined.get(ODTReviewPlugin.METADATA_SOURCE),
+                userDefined.get(ODTReviewPlugin.METADATA_TARGET), null);
+    }
+
+    /** The metadata of a text document already loaded by the ODF toolkit. */
+    static ReviewMetadata of(Meta meta) {
+        return new ReviewMetadata(meta.getUserDefinedDataValue(ODTReviewPlugin.METADATA_PROJECT),
+                meta.getUserDefinedDataValue(ODTReviewPlugin.METADATA_SOURCE),
+                meta.getUserDefinedDataValue(ODTReviewPlugin.METADATA_TARGET), null);
+    }
+
+    private static void readUserDefined(InputStream metaXml, Map<String, String> userDefined)
+            throws XMLStreamException {
+        XMLStreamReader xml = OdfXml.newReader(metaXml);
+        try {
+            while (xml.hasNext()) {
+                if (xml.next() == XMLStreamReader.START_ELEMENT
+                        && OdfXml.NS_META.equals(xml.getNamespaceURI())
+                        && "user-defined".equals(xml.getLocalName())) {
+                    String name = xml.getAttributeValue(OdfXml.NS_META, "name");
+                    userDefined.put(name, xml.getElementText());
+                }
+            }
+        } finally {
+            xml.close();
+        }
+    }
+
+    /**
+     * Parse <code>content.xml</code> up to the first table, and return the
+     * second cell of its first row if it's the reviewer table. The rest of the
+     * document is never read.
+     */
+    private static String readReviewer(InputStream contentXml) throws XMLStreamException {
+        XMLStreamReader xml = OdfXml.newReader(contentXml);
+        try {
+            boolean isReviewerTable = false;
+            int cellIndex = 0;
+            while (xml.hasNext()) {
+                int event = xml.next();
+                if (event == XMLStreamReader.START_ELEMENT && OdfXml.NS_TABLE.equals(xml.getNamespaceURI())) {
+                    String name = xml.getLocalName();
+                    if ("table".equals(name)) {
+                        isReviewerTable = ODTReviewPlugin.REVIEWER_INFO
+                                .equals(xml.getAttributeValue(OdfXml.NS_TABLE, "name"));
+                        if (!isReviewerTable) {
+                            return null;
+                        }
+                    } else if ("table-cell".equals(name) && isReviewerTable) {
+                        String text = OdfXml.readText(xml);
+                        if (cellIndex++ == 1) {
+                            return text;
+                        }
+                    }
+                } else if (event == XMLStreamReader.END_ELEMENT
+                        && OdfXml.NS_TABLE.equals(xml.getNamespaceURI())
+                        && ("table-row".equals(xml.getLocalName()) || "table".equals(xml.getLocalName()))) {
+                    return null;
+                }
+            }
+            return null;
+        } finally {
+            xml.close();
+        }
+    }
+
+    /** May be <code>null</code> if the file was not created by this plugin. */
+    String getProjectName() {
+        return projectName;
+    }
+
+    String getSourceLanguage() {
+        return sourceLanguage;
+    }
+
+    String getTargetLanguage() {
+        return targetLanguage;
+    }
+
+    /** May be <code>null</code> if the document has no reviewer table. */
+    String getReviewerName() {
+        return reviewerName;
+    }
+}
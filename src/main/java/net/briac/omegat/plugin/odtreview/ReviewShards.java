@@ -0,0 +1,483 @@
+/**************************************************************************
+ OmegaT Plugin - ODT Review
+
+ Copyright (C) 2023 Briac Pilpré - briacp@gmail.com
+ Home page: https://github.com/briacp/plugin-odt-review
+
+ This program is free software: you can redistribute it and/or modify
+ it under the terms of the GNU General Public License as published by
+ the Free Software Foundation, either version 3 of the License, or
+ (at your option) any later version.
+
+ This program is distributed in the hope that it will be useful,
+ but WITHOUT ANY WARRANTY; without even the implied warranty of
+ MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ GNU General Public License for more details.
+
+ You should have received a copy of the GNU General Public License
+ along with this program. If not, see <http://www.gnu.org/licenses/>.
+ **************************************************************************/
+
+package net.briac.omegat.plugin.odtreview;
+
+import java.io.BufferedInputStream;
+import java.io.BufferedOutputStream;
+import java.io.DataInputStream;
+import java.io.DataOutputStream;
+import java.io.File;
+import java.io.FileInputStream;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.io.InterruptedIOException;
+import java.io.OutputStream;
+import java.net.URISyntaxException;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.Paths;
+import java.nio.file.StandardCopyOption;
+import java.security.CodeSource;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Collections;
+import java.util.Comparator;
+import java.util.LinkedHashSet;
+import java.util.List;
+import java.util.Map;
+import java.util.Set;
+import java.util.function.IntConsumer;
+import java.util.logging.Level;
+import java.util.logging.Logger;
+import java.util.stream.Stream;
+
+import org.omegat.core.data.EntryKey;
+import org.omegat.core.data.SourceTextEntry;
+import org.omegat.util.Language;
+
+import net.briac.omegat.plugin.odtreview.ReviewSnapshot.FileSnapshot;
+
+/**
+ * Render an export on several worker processes, for the largest projects,
+ * where a single process is the bottleneck.
+ * <p>
+ * The coordinator, in OmegaT, takes the snapshot of the project as usual and
+ * writes the shard of each worker in a file of a temporary directory: the
+ * entries and translations of its files, since a worker couldn't load the
+ * project without the filters and the rest of the application. Each worker is
+ * a new JVM running {@link #main(String[])} with the class path of the
+ * plugin, which renders its shard in a file of the same directory and exits.
+ * <ul>
+ * <li>The volumes of a split export are shared among the workers, and moved
+ * to their location once they are all rendered.</li>
+ * <li>The files of a single spreadsheet are split in consecutive shards, whose
+ * sheets, or rows of the single table, are written as XML blocks by the
+ * workers and copied in order in the package by the coordinator.</li>
+ * </ul>
+ * A single text document is still rendered in OmegaT by the ODF toolkit, and
+ * so are the exports with extra columns, whose providers only run in OmegaT.
+ */
+final class ReviewShards {
+
+    /** <code>-Dodtreview.export.workers=4</code>, 0 or 1 to render in OmegaT. */
+    static final String PROPERTY_WORKERS = "odtreview.export.workers";
+    /**
+     * <code>-Dodtreview.export.workers.minEntries</code>: smaller exports are
+     * rendered in OmegaT, starting the workers would take longer.
+     */
+    static final String PROPERTY_MIN_ENTRIES = "odtreview.export.workers.minEntries";
+
+    private static final int DEFAULT_MIN_ENTRIES = 20_000;
+
+    private static final Logger LOGGER = Logger.getLogger(ReviewShards.class.getName());
+
+    private static final int MAGIC = 0x4F525348;
+    private static final int VERSION = 1;
+    private static final byte MODE_VOLUMES = 1;
+    private static final byte MODE_BLOCKS = 2;
+
+    private final int workers;
+    private final boolean reproducible;
+    // null to choose the layout of each volume
+    private final ReviewLayout layout;
+    private final boolean compactMarkup;
+
+    /**
+     * @param workers
+     *            the maximum number of worker processes of an export
+     */
+    ReviewShards(int workers, boolean reproducible, ReviewLayout layout, boolean compactMarkup) {
+        this.workers = workers;
+        this.reproducible = reproducible;
+        this.layout = layout;
+        this.compactMarkup = compactMarkup;
+    }
+
+    /** The number of workers set on the command line. */
+    static int configuredWorkers() {
+        return Integer.getInteger(PROPERTY_WORKERS, 0);
+    }
+
+    /**
+     * Whether an export is rendered on workers rather than in OmegaT: several
+     * workers are configured, the export is large enough, and it has no extra
+     * columns.
+     */
+    static boolean isEnabled(int workers, int entries) {
+        return workers > 1 && entries >= Integer.getInteger(PROPERTY_MIN_ENTRIES, DEFAULT_MIN_ENTRIES)
+                && !ReviewColumns.hasProviders();
+    }
+
+    /**
+     * Render each snapshot in its file, the volumes being shared among the
+     * workers. The files are only replaced once all the volumes are rendered.
+     *
+     * @param progress
+     *            receives the percentage of entries in the rendered volumes
+     */
+    void writeVolumes(Map<File, ReviewSnapshot> outputs, IntConsumer progress) throws IOException {
+        List<File> files = new ArrayList<>(outputs.keySet());
+        int count = Math.min(workers, files.size());
+
+        // The largest volumes first, each one on the least loaded worker
+        List<List<File>> shards = new ArrayList<>(count);
+        long[] loads = new long[count];
+        for (int i = 0; i < count; i++) {
+            shards.add(new ArrayList<>());
+        }
+        List<File> bySize = new ArrayList<>(files);
+        bySize.sort(Comparator.comparingInt((File file) -> outputs.get(file).getEntryCount()).reversed());
+        for (File file : bySize) {
+            int worker = 0;
+            for (int i = 1; i < count; i++) {
+                if (loads[i] < loads[worker]) {
+                    worker = i;
+                }
+            }
+            shards.get(worker).add(file);
+            loads[worker] += outputs.get(file).getEntryCount();
+        }
+
+        // Rendered next to the volumes, so they are moved without a copy
+        File directory = files.get(0).getAbsoluteFile().getParentFile();
+        try (Workers running = new Workers(Files.createTempDirectory(directory.toPath(), ".odt-review-"))) {
+            List<Path> rendered = new ArrayList<>();
+            for (int worker = 0; worker < count; worker++) {
+                List<File> volumes = shards.get(worker);
+                try (DataOutputStream out = running.newShard(MODE_VOLUMES)) {
+                    out.writeInt(volumes.size());
+                    for (File volume : volumes) {
+                        Path temp = running.directory.resolve(String.format("volume-%d%s", rendered.size(),
+                                ReviewFormat.of(volume).getExtension()));
+                        rendered.add(temp);
+                        writeString(out, temp.toString());
+                        writeString(out, ReviewFormat.of(volume).name());
+                        writeSnapshot(out, outputs.get(volume), outputs.get(volume).getFiles());
+                    }
+                }
+                running.start(worker);
+            }
+
+            long totalEntries = Math.max(1, Arrays.stream(loads).sum());
+            long renderedEntries = 0;
+            for (int worker = 0; worker < count; worker++) {
+                running.await(worker);
+                renderedEntries += loads[worker];
+                progress.accept((int) (renderedEntries * 100 / totalEntries));
+            }
+
+            int index = 0;
+            for (List<File> volumes : shards) {
+                for (File volume : volumes) {
+                    Files.move(rendered.get(index++), volume.toPath(), StandardCopyOption.REPLACE_EXISTING);
+                }
+            }
+        }
+    }
+
+    /**
+     * Start rendering the blocks of the files of a spreadsheet, each worker
+     * writing the blocks of consecutive files with about the same number of
+     * entries.
+     *
+     * @param sheetNames
+     *            the names given to the sheets by the writer of the package
+     * @return the blocks to copy in the package, to be closed once written
+     */
+    Blocks startBlocks(ReviewSnapshot snapshot, ReviewLayout blockLayout, List<String> sheetNames)
+            throws IOException {
+        List<FileSnapshot> files = snapshot.getFiles();
+        int count = Math.min(workers, files.size());
+        long totalEntries = snapshot.getEntryCount();
+        List<Integer> starts = new ArrayList<>(count + 1);
+        starts.add(0);
+        long entries = 0;
+        for (int i = 0; i < files.size(); i++) {
+            if (starts.size() < count && i > starts.get(starts.size() - 1)
+                    && entries * count >= totalEntries * starts.size()) {
+                starts.add(i);
+            }
+            entries += files.get(i).size();
+        }
+        starts.add(files.size());
+
+        Blocks blocks = new Blocks(Files.createTempDirectory("odt-review-"), starts);
+        try {
+            for (int worker = 0; worker < starts.size() - 1; worker++) {
+                int from = starts.get(worker);
+                int to = starts.get(worker + 1);
+                try (DataOutputStream out = blocks.newShard(MODE_BLOCKS)) {
+                    out.writeByte(blockLayout.ordinal());
+                    writeString(out, blocks.output(worker).toString());
+                    out.writeInt(to - from);
+                    for (String sheetName : sheetNames.subList(from, to)) {
+                        writeString(out, sheetName);
+                    }
+                    writeSnapshot(out, snapshot, files.subList(from, to));
+                }
+                blocks.start(worker);
+            }
+        } catch (IOException | RuntimeException e) {
+            blocks.close();
+            throw e;
+        }
+        return blocks;
+    }
+
+    /**
+     * Entry point of a worker process, rendering the shard file given as the
+     * only argument. A failure ends the process with a non-zero exit code, and
+     * its stack trace is kept in the log of the worker.
+     */
+    public static void main(String[] args) throws Exception {
+        try (DataInputStream in = new DataInputStream(
+                new BufferedInputStream(new FileInputStream(args[0])))) {
+            if (in.readInt() != MAGIC || in.readShort() != VERSION) {
+                throw new IOException("Not a shard of a review export: " + args[0]);
+            }
+            byte mode = in.readByte();
+            boolean reproducible = in.readBoolean();
+            byte layout = in.readByte();
+            boolean compactMarkup = in.readBoolean();
+
+            if (mode == MODE_VOLUMES) {
+                ODTReviewPlugin plugin = new ODTReviewPlugin(null);
+                plugin.setReproducible(reproducible);
+                plugin.setLayout(layout < 0 ? null : ReviewLayout.values()[layout]);
+                plugin.setCompactMarkup(compactMarkup);
+                int volumes = in.readInt();
+                for (int i = 0; i < volumes; i++) {
+                    File output = new File(readString(in));
+                    ReviewFormat format = ReviewFormat.valueOf(readString(in));
+                    ReviewSnapshot snapshot = readSnapshot(in);
+                    try (OutputStream out = new BufferedOutputStream(new FileOutputStream(output))) {
+                        plugin.render(out, format, snapshot, percent -> {
+                            /* empty */
+                        });
+                    }
+                }
+            } else {
+                ReviewLayout blockLayout = ReviewLayout.values()[in.readByte()];
+                File output = new File(readString(in));
+                int files = in.readInt();
+                List<String> sheetNames = new ArrayList<>(files);
+                for (int i = 0; i < files; i++) {
+                    sheetNames.add(readString(in));
+                }
+                ReviewSnapshot snapshot = readSnapshot(in);
+                try (OutputStream out = new BufferedOutputStream(new FileOutputStream(output))) {
+                    new OdsReviewWriter(snapshot, blockLayout, reproducible).writeBlocks(out, sheetNames);
+                }
+            }
+        }
+    }
+
+    private static void writeSnapshot(DataOutputStream out, ReviewSnapshot snapshot, List<FileSnapshot> files)
+            throws IOException {
+        writeString(out, snapshot.getProjectName());
+        writeString(out, snapshot.getSourceLanguage().getLanguage());
+        writeString(out, snapshot.getTargetLanguage().getLanguage());
+        out.writeInt(files.size());
+        for (FileSnapshot file : files) {
+            writeString(out, file.getFilePath());
+            out.writeInt(file.size());
+            for (int i = 0; i < file.size(); i++) {
+                SourceTextEntry entry = file.getEntry(i);
+                out.writeInt(entry.entryNum());
+                writeString(out, entry.getSrcText());
+                writeString(out, file.getTranslationText(i));
+                writeString(out, file.getNote(i));
+            }
+        }
+    }
+
+    private static ReviewSnapshot readSnapshot(DataInputStream in) throws IOException {
+        String projectName = readString(in);
+        Language sourceLanguage = new Language(readString(in));
+        Language targetLanguage = new Language(readString(in));
+        int fileCount = in.readInt();
+        List<FileSnapshot> files = new ArrayList<>(fileCount);
+        for (int f = 0; f < fileCount; f++) {
+            String filePath = readString(in);
+            int size = in.readInt();
+            SourceTextEntry[] entries = new SourceTextEntry[size];
+            String[] translations = new String[size];
+            String[] notes = new String[size];
+            for (int i = 0; i < size; i++) {
+                int entryNum = in.readInt();
+                String source = readString(in);
+                EntryKey key = new EntryKey(filePath, source, null, null, null, null);
+                entries[i] = new SourceTextEntry(key, entryNum, null, null, Collections.emptyList(), false);
+                translations[i] = readString(in);
+                notes[i] = readString(in);
+            }
+            files.add(new FileSnapshot(filePath, entries, translations, notes));
+        }
+        return new ReviewSnapshot(projectName, sourceLanguage, targetLanguage, files);
+    }
+
+    /** Unlike {@link DataOutputStream#writeUTF}, the length of a segment isn't limited. */
+    private static void writeString(DataOutputStream out, String value) throws IOException {
+        if (value == null) {
+            out.writeInt(-1);
+            return;
+        }
+        byte[] bytes = value.getBytes(StandardCharsets.UTF_8);
+        out.writeInt(bytes.length);
+        out.write(bytes);
+    }
+
+    private static String readString(DataInputStream in) throws IOException {
+        int length = in.readInt();
+        if (length < 0) {
+            return null;
+        }
+        byte[] bytes = new byte[length];
+        in.readFully(bytes);
+        return new String(bytes, StandardCharsets.UTF_8);
+    }
+
+    /**
+     * The class path of the workers: the plugin, which is not on the class
+     * path of OmegaT, then OmegaT and its libraries.
+     */
+    private static String classPath() {
+        Set<String> entries = new LinkedHashSet<>();
+        CodeSource source = ReviewShards.class.getProtectionDomain().getCodeSource();
+        if (source != null) {
+            try {
+                entries.add(new File(source.getLocation().toURI()).getPath());
+            } catch (URISyntaxException | IllegalArgumentException e) {
+                LOGGER.log(Level.WARNING, e, () -> "Cannot locate the plugin for the export workers");
+            }
+        }
+        entries.addAll(Arrays.asList(System.getProperty("java.class.path").split(File.pathSeparator)));
+        return String.join(File.pathSeparator, entries);
+    }
+
+    /**
+     * The worker processes of an export, and the temporary directory of their
+     * shards, outputs and logs, deleted when closed.
+     */
+    private class Workers implements AutoCloseable {
+        final Path directory;
+        private final List<Process> processes = new ArrayList<>();
+
+        Workers(Path directory) {
+            this.directory = directory;
+        }
+
+        /** Create the shard file of the next worker, starting with the settings of the export. */
+        DataOutputStream newShard(byte mode) throws IOException {
+            DataOutputStream out = new DataOutputStream(new BufferedOutputStream(
+                    new FileOutputStream(shard(processes.size()).toFile())));
+            out.writeInt(MAGIC);
+            out.writeShort(VERSION);
+            out.writeByte(mode);
+            out.writeBoolean(reproducible);
+            out.writeByte(layout == null ? -1 : layout.ordinal());
+            out.writeBoolean(compactMarkup);
+            return out;
+        }
+
+        Path shard(int worker) {
+            return directory.resolve(String.format("shard-%d.dat", worker));
+        }
+
+        Path output(int worker) {
+            return directory.resolve(String.format("shard-%d.out", worker));
+        }
+
+        Path log(int worker) {
+            return directory.resolve(String.format("shard-%d.log", worker));
+        }
+
+        void start(int worker) throws IOException {
+            List<String> command = new ArrayList<>();
+            command.add(Paths.get(System.getProperty("java.home"), "bin", "java").toString());
+            command.add("-cp");
+            command.add(classPath());
+            command.add("-Djava.awt.headless=true");
+            // The workers share the processors to deflate their packages
+            if (System.getProperty(ParallelZipOutputStream.PROPERTY_THREADS) == null) {
+                command.add(String.format("-D%s=%d", ParallelZipOutputStream.PROPERTY_THREADS,
+                        Math.max(1, Runtime.getRuntime().availableProcessors() / workers)));
+            }
+            for (String name : System.getProperties().stringPropertyNames()) {
+                if (name.startsWith("odtreview.") && !name.equals(PROPERTY_WORKERS)) {
+                    command.add(String.format("-D%s=%s", name, System.getProperty(name)));
+                }
+            }
+            command.add(ReviewShards.class.getName());
+            command.add(shard(worker).toString());
+
+            processes.add(new ProcessBuilder(command).redirectErrorStream(true)
+                    .redirectOutput(log(worker).toFile()).start());
+        }
+
+        /** Wait for a worker, and fail with its log if it failed. */
+        void await(int worker) throws IOException {
+            int exitCode;
+            try {
+                exitCode = processes.get(worker).waitFor();
+            } catch (InterruptedException e) {
+                Thread.currentThread().interrupt();
+                throw new InterruptedIOException();
+            }
+            if (exitCode != 0) {
+                String log = new String(Files.readAllBytes(log(worker)), StandardCharsets.UTF_8);
+                LOGGER.log(Level.WARNING,
+                        () -> String.format("Export worker %d failed:%n%s", worker + 1, log));
+                throw new IOException(String.format(ODTReviewPlugin.res.getString("odt.shards.failed"),
+                        worker + 1, exitCode));
+            }
+        }
+
+        @Override
+        public void close() throws IOException {
+            processes.forEach(Process::destroyForcibly);
+            try (Stream<Path> paths = Files.walk(directory)) {
+                paths.sorted(Comparator.reverseOrder()).map(Path::toFile).forEach(File::delete);
+            }
+        }
+    }
+
+    /** The blocks of a spreadsheet, copied as soon as their worker is done. */
+    final class Blocks extends Workers implements OdsReviewWriter.BlockSource {
+        // The first file of each worker, then the number of files
+        private final List<Integer> starts;
+
+        private Blocks(Path directory, List<Integer> starts) {
+            super(directory);
+            this.starts = starts;
+        }
+
+        @Override
+        public void copy(int fileIndex, OutputStream out) throws IOException {
+            int worker = starts.indexOf(fileIndex);
+            if (worker >= 0 && worker < starts.size() - 1) {
+                await(worker);
+                Files.copy(output(worker), out);
+            }
+        }
+    }
+}
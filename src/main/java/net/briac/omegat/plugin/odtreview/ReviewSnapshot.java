@@ -0,0 +1,245 @@
+/**************************************************************************
+ OmegaT Plugin - ODT Review
+
+ Copyright (C) 2023 Briac Pilpré - briacp@gmail.com
+ Home page: https://github.com/briacp/plugin-odt-review
+
+ This program is free software: you can redistribute it and/or modify
+ it under the terms of the GNU General Public License as published by
+ the Free Software Foundation, either version 3 of the License, or
+ (at your option) any later version.
+
+ This program is distributed in the hope that it will be useful,
+ but WITHOUT ANY WARRANTY; without even the implied warranty of
+ MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ GNU General Public License for more details.
+
+ You should have received a copy of the GNU General Public License
+ along with this program. If not, see <http://www.gnu.org/licenses/>.
+ **************************************************************************/
+
+package net.briac.omegat.plugin.odtreview;
+
+import java.util.ArrayList;
+import java.util.BitSet;
+import java.util.Collections;
+import java.util.HashSet;
+import java.util.List;
+import java.util.Set;
+import java.util.function.IntPredicate;
+
+import org.omegat.core.data.IProject;
+import org.omegat.core.data.IProject.FileInfo;
+import org.omegat.core.data.ProjectProperties;
+import org.omegat.core.data.SourceTextEntry;
+import org.omegat.core.data.TMXEntry;
+import org.omegat.util.Language;
+
+/**
+ * Immutable copy of the project data needed to render a review file.
+ * <p>
+ * Taking a snapshot only copies references ({@link SourceTextEntry} and
+ * {@link TMXEntry} are immutable), so it is cheap enough to be done on the
+ * Swing thread. The review file can then be rendered on a worker thread while
+ * the translator keeps editing the project.
+ */
+public final class ReviewSnapshot {
+
+    private final String projectName;
+    private final Language sourceLanguage;
+    private final Language targetLanguage;
+    private final List<FileSnapshot> files;
+    private final int entryCount;
+
+    private ReviewSnapshot(ProjectProperties props, List<FileSnapshot> files) {
+        this(props.getProjectName(), props.getSourceLanguage(), props.getTargetLanguage(), files);
+    }
+
+    /** A snapshot read back from the shard of an export, see {@link ReviewShards}. */
+    ReviewSnapshot(String projectName, Language sourceLanguage, Language targetLanguage,
+            List<FileSnapshot> files) {
+        this.projectName = projectName;
+        this.sourceLanguage = sourceLanguage;
+        this.targetLanguage = targetLanguage;
+        this.files = Collections.unmodifiableList(files);
+        this.entryCount = files.stream().mapToInt(FileSnapshot::size).sum();
+    }
+
+    /**
+     * Capture the entries and the current translations of the selected source
+     * files, in project order.
+     */
+    public static ReviewSnapshot take(IProject project, List<String> filePaths) {
+        Set<String> paths = new HashSet<>(filePaths);
+        List<FileInfo> projectFiles = project.getProjectFiles();
+        BitSet fileIndexes = new BitSet(projectFiles.size());
+        for (int index = 0; index < projectFiles.size(); index++) {
+            if (paths.contains(projectFiles.get(index).filePath)) {
+                fileIndexes.set(index);
+            }
+        }
+        return take(project, fileIndexes);
+    }
+
+    /**
+     * Capture the entries and the current translations of the source files at
+     * the given positions of {@link IProject#getProjectFiles()}, in project
+     * order.
+     */
+    public static ReviewSnapshot take(IProject project, BitSet fileIndexes) {
+        List<FileInfo> projectFiles = project.getProjectFiles();
+        List<FileSnapshot> files = new ArrayList<>(fileIndexes.cardinality());
+        for (int index = fileIndexes.nextSetBit(0); index >= 0
+                && index < projectFiles.size(); index = fileIndexes.nextSetBit(index + 1)) {
+            FileInfo fileInfo = projectFiles.get(index);
+            files.add(take(project, fileInfo.filePath, fileInfo.entries));
+        }
+        return new ReviewSnapshot(project.getProjectProperties(), files);
+    }
+
+    /**
+     * Capture the entries whose number is in the given range, and their
+     * current translations, in project order. The files without any entry in
+     * the range are left out.
+     */
+    public static ReviewSnapshot take(IProject project, int firstEntry, int lastEntry) {
+        return take(project, entryNum -> entryNum >= firstEntry && entryNum <= lastEntry);
+    }
+
+    /**
+     * Capture the entries whose number is accepted by the filter, e.g. the
+     * entries of {@link ReviewHistory#getEntries(String, int, int)}, and their
+     * current translations, in project order. The files without any accepted
+     * entry are left out.
+     */
+    public static ReviewSnapshot take(IProject project, IntPredicate entryFilter) {
+        List<FileSnapshot> files = new ArrayList<>();
+        for (FileInfo fileInfo : project.getProjectFiles()) {
+            List<SourceTextEntry> entries = new ArrayList<>();
+            for (SourceTextEntry ste : fileInfo.entries) {
+                if (entryFilter.test(ste.entryNum())) {
+                    entries.add(ste);
+                }
+            }
+            if (!entries.isEmpty()) {
+                files.add(take(project, fileInfo.filePath, entries));
+            }
+        }
+        return new ReviewSnapshot(project.getProjectProperties(), files);
+    }
+
+    /**
+     * Capture at most the given number of entries from the start of the first
+     * source file, without going through the other files.
+     */
+    static ReviewSnapshot takeFirst(IProject project, int maxEntries) {
+        List<FileInfo> projectFiles = project.getProjectFiles();
+        List<FileSnapshot> files = new ArrayList<>(1);
+        if (!projectFiles.isEmpty()) {
+            FileInfo fileInfo = projectFiles.get(0);
+            List<SourceTextEntry> entries = fileInfo.entries;
+            files.add(take(project, fileInfo.filePath,
+                    entries.subList(0, Math.min(maxEntries, entries.size()))));
+        }
+        return new ReviewSnapshot(project.getProjectProperties(), files);
+    }
+
+    private static FileSnapshot take(IProject project, String filePath, List<SourceTextEntry> fileEntries) {
+        int size = fileEntries.size();
+        SourceTextEntry[] entries = fileEntries.toArray(new SourceTextEntry[size]);
+        TMXEntry[] translations = new TMXEntry[size];
+        for (int i = 0; i < size; i++) {
+            translations[i] = project.getTranslationInfo(entries[i]);
+        }
+        return new FileSnapshot(filePath, entries, translations);
+    }
+
+    public String getProjectName() {
+        return projectName;
+    }
+
+    public Language getSourceLanguage() {
+        return sourceLanguage;
+    }
+
+    public Language getTargetLanguage() {
+        return targetLanguage;
+    }
+
+    public List<FileSnapshot> getFiles() {
+        return files;
+    }
+
+    /** Total number of entries in all the files of the snapshot. */
+    public int getEntryCount() {
+        return entryCount;
+    }
+
+    /** The entries of a source file along with their translations. */
+    public static final class FileSnapshot {
+        private final String filePath;
+        private final SourceTextEntry[] entries;
+        private final TMXEntry[] translations;
+        // Only set when read back from a shard, without the translation infos
+        private final String[] translationTexts;
+        private final String[] notes;
+
+        FileSnapshot(String filePath, SourceTextEntry[] entries, TMXEntry[] translations) {
+            this.filePath = filePath;
+            this.entries = entries;
+            this.translations = translations;
+            this.translationTexts = null;
+            this.notes = null;
+        }
+
+        /**
+         * A file read back from the shard of an export: a worker process can't
+         * create translation infos, only their texts are kept.
+         */
+        FileSnapshot(String filePath, SourceTextEntry[] entries, String[] translationTexts, String[] notes) {
+            this.filePath = filePath;
+            this.entries = entries;
+            this.translations = new TMXEntry[entries.length];
+            this.translationTexts = translationTexts;
+            this.notes = notes;
+        }
+
+        public String getFilePath() {
+            return filePath;
+        }
+
+        public int size() {
+            return entries.length;
+        }
+
+        public SourceTextEntry getEntry(int index) {
+            return entries[index];
+        }
+
+        /**
+         * May be <code>null</code> if the entry has no translation info, or if
+         * the file was read back from the shard of an export.
+         */
+        public TMXEntry getTranslation(int index) {
+            return translations[index];
+        }
+
+        /** The translated text, <code>null</code> if the entry isn't translated. */
+        String getTranslationText(int index) {
+            if (translationTexts != null) {
+                return translationTexts[index];
+            }
+            TMXEntry en = translations[index];
+            return en != null ? en.translation : null;
+        }
+
+        /** The note of the entry, <code>null</code> if none. */
+        String getNote(int index) {
+            if (notes != null) {
+                return notes[index];
+            }
+            TMXEntry en = translations[index];
+            return en != null ? en.note : null;
+        }
+    }
+}
@@ -0,0 +1,116 @@
+/**************************************************************************
+ OmegaT Plugin - ODT Review
+
+ Copyright (C) 2023 Briac Pilpré - briacp@gmail.com
+ Home page: https://github.com/briacp/plugin-odt-review
+
+ This program is free software: you can redistribute it and/or modify
+ it under the terms of the GNU General Public License as published by
+ the Free Software Foundation, either version 3 of the License, or
+ (at your option) any later version.
+
+ This program is distributed in the hope that it will be useful,
+ but WITHOUT ANY WARRANTY; without even the implied warranty of
+ MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ GNU General Public License for more details.
+
+ You should have received a copy of the GNU General Public License
+ along with this program. If not, see <http://www.gnu.org/licenses/>.
+ **************************************************************************/
+
+package net.briac.omegat.plugin.odtreview;
+
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+
+import org.omegat.core.data.ProtectedPart;
+import org.omegat.core.data.SourceTextEntry;
+
+/**
+ * Check the tags and placeholders of a reviewed translation against the
+ * protected parts of its source: a translation whose tags were removed or
+ * duplicated by the reviewer would break the target document, it's rejected.
+ * <p>
+ * Each protected part must be found as many times in the translation as in
+ * the source text, in any order, since the order of the words, and of the
+ * tags around them, may change in the translation.
+ */
+final class ReviewTags {
+
+    private ReviewTags() {
+        /* empty */
+    }
+
+    /**
+     * @return <code>null</code> if the translation has the same tags as the
+     *         source
+     */
+    static Rejection check(SourceTextEntry entry, String translation) {
+        ProtectedPart[] parts = entry.getProtectedParts();
+        if (parts.length == 0 || translation.isEmpty()) {
+            // An empty translation is left to the translator
+            return null;
+        }
+        // The same tag may be protected several times, e.g. a placeholder
+        Map<String, Integer> expected = new LinkedHashMap<>();
+        for (ProtectedPart part : parts) {
+            String text = part.getTextInSourceSegment();
+            if (text != null && !text.isEmpty() && !expected.containsKey(text)) {
+                expected.put(text, count(entry.getSrcText(), text));
+            }
+        }
+
+        List<String> missing = null;
+        List<String> extra = null;
+        for (Map.Entry<String, Integer> tag : expected.entrySet()) {
+            int found = count(translation, tag.getKey());
+            for (int i = found; i < tag.getValue(); i++) {
+                missing = add(missing, tag.getKey());
+            }
+            for (int i = tag.getValue(); i < found; i++) {
+                extra = add(extra, tag.getKey());
+            }
+        }
+        if (missing == null && extra == null) {
+            return null;
+        }
+        return new Rejection(entry.entryNum(), missing == null ? Collections.emptyList() : missing,
+                extra == null ? Collections.emptyList() : extra);
+    }
+
+    private static List<String> add(List<String> list, String tag) {
+        List<String> result = list == null ? new ArrayList<>() : list;
+        result.add(tag);
+        return result;
+    }
+
+    private static int count(String text, String tag) {
+        int count = 0;
+        for (int i = text.indexOf(tag); i >= 0; i = text.indexOf(tag, i + tag.length())) {
+            count++;
+        }
+        return count;
+    }
+
+    /** A reviewed translation which was not imported. */
+    static final class Rejection {
+        final int entryNum;
+        final List<String> missingTags;
+        final List<String> extraTags;
+
+        Rejection(int entryNum, List<String> missingTags, List<String> extraTags) {
+            this.entryNum = entryNum;
+            this.missingTags = missingTags;
+            this.extraTags = extraTags;
+        }
+
+        @Override
+        public String toString() {
+            return String.format(ODTReviewPlugin.res.getString("odt.import.rejected.row"), entryNum,
+                    missingTags, extraTags);
+        }
+    }
+}
@@ -0,0 +1,120 @@
+/**************************************************************************
+ OmegaT Plugin - ODT Review
+
+ Copyright (C) 2023 Briac Pilpré - briacp@gmail.com
+ Home page: https://github.com/briacp/plugin-odt-review
+
+ This program is free software: you can redistribute it and/or modify
+ it under the terms of the GNU General Public License as published by
+ the Free Software Foundation, either version 3 of the License, or
+ (at your option) any later version.
+
+ This program is distributed in the hope that it will be useful,
+ but WITHOUT ANY WARRANTY; without even the implied warranty of
+ MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ GNU General Public License for more details.
+
+ You should have received a copy of the GNU General Public License
+ along with this program. If not, see <http://www.gnu.org/licenses/>.
+ **************************************************************************/
+
+package net.briac.omegat.plugin.odtreview;
+
+import java.io.ByteArrayInputStream;
+import java.io.ByteArrayOutputStream;
+import java.util.logging.Level;
+import java.util.logging.Logger;
+
+import org.omegat.core.data.IProject;
+
+/**
+ * Load and exercise the export and import code in the background once a
+ * project is loaded, so that the first review export doesn't pay for loading
+ * the ODF toolkit, the XML parsers and the document template on the Swing
+ * thread.
+ * <p>
+ * The warm-up runs on a daemon thread of the lowest priority, a few seconds
+ * after the project is loaded. It renders the first segments of the first
+ * source file in memory, without the extra columns nor the trace, and parses
+ * them back: the project is never modified and nothing is written to disk.
+ */
+final class ReviewWarmUp implements Runnable {
+
+    /** <code>-Dodtreview.warmUp=false</code> disables the warm-up. */
+    static final String PROPERTY_WARM_UP = "odtreview.warmUp";
+    static final String PROPERTY_WARM_UP_DELAY = "odtreview.warmUp.delayMs";
+
+    private static final long DEFAULT_DELAY_MS = 5_000L;
+
+    /** Number of entries rendered, and of times they are rendered. */
+    private static final int WARM_UP_ENTRIES = 200;
+    private static final int WARM_UP_ROUNDS = 5;
+
+    private static final Logger LOGGER = Logger.getLogger(ReviewWarmUp.class.getName());
+
+    private final ODTReviewPlugin plugin;
+    private final ReviewSnapshot snapshot;
+    private final long delayMillis;
+
+    ReviewWarmUp(IProject project, long delayMillis) {
+        this.plugin = new ODTReviewPlugin(project);
+        // Starting worker processes would only slow the warm-up down, and the
+        // column providers and the trace belong to the real exports
+        plugin.setExportWorkers(0);
+        plugin.setInstrumented(false);
+        // Called on the thread which loaded the project: don't go through all
+        // the entries
+        this.snapshot = ReviewSnapshot.takeFirst(project, WARM_UP_ENTRIES);
+        this.delayMillis = delayMillis;
+    }
+
+    /**
+     * Start warming up for a project which was just loaded, unless it's
+     * disabled. Must be called from the thread which loaded the project.
+     */
+    static void start(IProject project) {
+        if (!Boolean.parseBoolean(System.getProperty(PROPERTY_WARM_UP, Boolean.TRUE.toString()))) {
+            return;
+        }
+        Thread thread = new Thread(new ReviewWarmUp(project,
+                Long.getLong(PROPERTY_WARM_UP_DELAY, DEFAULT_DELAY_MS)), "odt-review-warm-up");
+        thread.setDaemon(true);
+        thread.setPriority(Thread.MIN_PRIORITY);
+        thread.start();
+    }
+
+    @Override
+    public void run() {
+        try {
+            Thread.sleep(delayMillis);
+        } catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+            return;
+        }
+        long start = System.nanoTime();
+        for (ReviewFormat format : ReviewFormat.values()) {
+            try {
+                warmUp(format);
+            } catch (Exception e) {
+                // The export will just be slower the first time
+                LOGGER.log(Level.FINE, e, () -> String.format("Review %s warm-up failed", format));
+            }
+        }
+        LOGGER.log(Level.FINE, () -> String.format("Review export warmed up in %d ms",
+                (System.nanoTime() - start) / 1_000_000));
+    }
+
+    private void warmUp(ReviewFormat format) throws Exception {
+        if (format == ReviewFormat.ODT) {
+            // The skeleton of the text documents is kept for the next export
+            plugin.warmSkeleton(snapshot);
+        }
+        for (int round = 0; round < WARM_UP_ROUNDS; round++) {
+            ByteArrayOutputStream out = new ByteArrayOutputStream();
+            plugin.render(out, format, snapshot, progress -> {
+                /* empty */
+            });
+            plugin.readRows(new ByteArrayInputStream(out.toByteArray()), format);
+        }
+    }
+}
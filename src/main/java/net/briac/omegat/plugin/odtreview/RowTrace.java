@@ -0,0 +1,201 @@
+/**************************************************************************
+ OmegaT Plugin - ODT Review
+
+ Copyright (C) 2023 Briac Pilpré - briacp@gmail.com
+ Home page: https://github.com/briacp/plugin-odt-review
+
+ This program is free software: you can redistribute it and/or modify
+ it under the terms of the GNU General Public License as published by
+ the Free Software Foundation, either version 3 of the License, or
+ (at your option) any later version.
+
+ This program is distributed in the hope that it will be useful,
+ but WITHOUT ANY WARRANTY; without even the implied warranty of
+ MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ GNU General Public License for more details.
+
+ You should have received a copy of the GNU General Public License
+ along with this program. If not, see <http://www.gnu.org/licenses/>.
+ **************************************************************************/
+
+package net.briac.omegat.plugin.odtreview;
+
+import java.io.BufferedWriter;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.io.OutputStreamWriter;
+import java.io.Writer;
+import java.nio.charset.StandardCharsets;
+import java.util.concurrent.ArrayBlockingQueue;
+import java.util.concurrent.BlockingQueue;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.logging.Level;
+import java.util.logging.Logger;
+
+/**
+ * Sampled trace of the rows of an export or an import, to diagnose slow
+ * review files in production.
+ * <p>
+ * The trace is disabled unless one of these system properties is set:
+ * <ul>
+ * <li><code>odtreview.trace.every</code>: trace one row out of N;
+ * <li><code>odtreview.trace.slowerThanMs</code>: trace the rows which took
+ * longer than this;
+ * <li><code>odtreview.trace.file</code>: append the trace to this file
+ * instead of the log.
+ * </ul>
+ * Disabled, a row costs a field check. Enabled, the sampled rows are queued
+ * and written by a background thread; if it can't keep up the rows are
+ * dropped, and counted, instead of slowing down the export or the import.
+ */
+final class RowTrace implements AutoCloseable {
+
+    static final String PROPERTY_EVERY = "odtreview.trace.every";
+    static final String PROPERTY_SLOWER_THAN = "odtreview.trace.slowerThanMs";
+    static final String PROPERTY_FILE = "odtreview.trace.file";
+
+    /** Outcome of the exported rows. */
+    static final String ROW_EXPORTED = "exported";
+
+    private static final Logger LOGGER = Logger.getLogger(RowTrace.class.getName());
+
+    /** Traces nothing, whatever the system properties. */
+    static final RowTrace DISABLED = new RowTrace();
+    private static final int QUEUE_CAPACITY = 8192;
+    private static final Sample END = new Sample(0, 0, 0, null);
+
+    private final boolean enabled;
+    private final String operation;
+    private final long every;
+    private final boolean timed;
+    private final long slowerThanNanos;
+    private final String file;
+    private final BlockingQueue<Sample> queue;
+    private final AtomicLong dropped = new AtomicLong();
+    private final Thread writer;
+
+    private RowTrace() {
+        enabled = false;
+        operation = null;
+        every = 0;
+        timed = false;
+        slowerThanNanos = Long.MAX_VALUE;
+        file = null;
+        queue = null;
+        writer = null;
+    }
+
+    private RowTrace(String operation, long every, long slowerThanMs, String file) {
+        this.enabled = true;
+        this.operation = operation;
+        this.every = every;
+        this.timed = slowerThanMs >= 0;
+        this.slowerThanNanos = timed ? TimeUnit.MILLISECONDS.toNanos(slowerThanMs) : Long.MAX_VALUE;
+        this.file = file;
+        this.queue = new ArrayBlockingQueue<>(QUEUE_CAPACITY);
+        this.writer = new Thread(this::writeSamples, "odt-review-trace");
+        writer.setDaemon(true);
+        writer.start();
+    }
+
+    /** Start tracing an export or an import, if enabled by the system properties. */
+    static RowTrace start(String operation) {
+        long every = Long.getLong(PROPERTY_EVERY, 0L);
+        long slowerThanMs = Long.getLong(PROPERTY_SLOWER_THAN, -1L);
+        if (every <= 0 && slowerThanMs < 0) {
+            return DISABLED;
+        }
+        return new RowTrace(operation, every, slowerThanMs, System.getProperty(PROPERTY_FILE));
+    }
+
+    boolean isEnabled() {
+        return enabled;
+    }
+
+    /**
+     * The time a row starts to be processed, only measured when slow rows are
+     * traced.
+     */
+    long startRow() {
+        return timed ? System.nanoTime() : 0L;
+    }
+
+    /**
+     * @param index
+     *            position of the row in the export or import
+     * @param start
+     *            value of {@link #startRow()} for this row
+     * @param outcome
+     *            what was done with the row, a constant
+     */
+    void row(int index, int entryNum, long start, String outcome) {
+        if (!enabled) {
+            return;
+        }
+        long elapsed = timed ? System.nanoTime() - start : -1L;
+        if ((every > 0 && index % every == 0) || elapsed >= slowerThanNanos) {
+            if (!queue.offer(new Sample(index, entryNum, elapsed, outcome))) {
+                dropped.incrementAndGet();
+            }
+        }
+    }
+
+    @Override
+    public void close() {
+        if (!enabled) {
+            return;
+        }
+        try {
+            // The writer thread is gone if the file couldn't be written
+            while (!queue.offer(END, 100, TimeUnit.MILLISECONDS) && writer.isAlive()) {
+                /* retry */
+            }
+            writer.join();
+        } catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+        }
+        if (dropped.get() > 0) {
+            LOGGER.warning(() -> String.format("%s trace: %d rows dropped", operation, dropped.get()));
+        }
+    }
+
+    private void writeSamples() {
+        try (Writer out = file == null ? null
+                : new BufferedWriter(new OutputStreamWriter(new FileOutputStream(file, true),
+                        StandardCharsets.UTF_8))) {
+            StringBuilder line = new StringBuilder();
+            for (Sample sample = queue.take(); sample != END; sample = queue.take()) {
+                line.setLength(0);
+                line.append(operation).append("\trow ").append(sample.index).append("\t#")
+                        .append(sample.entryNum).append('\t').append(sample.outcome);
+                if (sample.elapsedNanos >= 0) {
+                    line.append('\t').append(TimeUnit.NANOSECONDS.toMicros(sample.elapsedNanos)).append("us");
+                }
+                if (out == null) {
+                    LOGGER.info(line.toString());
+                } else {
+                    out.append(line).append(System.lineSeparator());
+                }
+            }
+        } catch (IOException e) {
+            LOGGER.log(Level.WARNING, "Cannot write the row trace to " + file, e);
+        } catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+        }
+    }
+
+    private static final class Sample {
+        private final int index;
+        private final int entryNum;
+        private final long elapsedNanos;
+        private final String outcome;
+
+        Sample(int index, int entryNum, long elapsedNanos, String outcome) {
+            this.index = index;
+            this.entryNum = entryNum;
+            this.elapsedNanos = elapsedNanos;
+            this.outcome = outcome;
+        }
+    }
+}
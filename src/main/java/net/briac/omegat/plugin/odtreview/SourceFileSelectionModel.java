@@ -21,43 +21,102 @@
 package net.briac.omegat.plugin.odtreview;
 
 import java.util.ArrayList;
-import java.util.HashMap;
+import java.util.BitSet;
+import java.util.Collections;
 import java.util.List;
-import java.util.Map;
-import java.util.Map.Entry;
-import java.util.stream.Collectors;
-
-import javax.swing.table.DefaultTableModel;
-
-public class SourceFileSelectionModel extends DefaultTableModel {
+import java.util.Locale;
+import java.util.function.Predicate;
+import java.util.regex.Pattern;
+
+import javax.swing.table.AbstractTableModel;
+
+/**
+ * Table model of the source files to include in a review.
+ * <p>
+ * The model doesn't hold any row object: cells are computed from the file list
+ * and the current filter, so very large projects can be displayed without
+ * delay. The selection is a bitset indexed by the position of the file in the
+ * list, which is the position of the file in the project.
+ */
+public class SourceFileSelectionModel extends AbstractTableModel {
     private static final long serialVersionUID = 5248318346086309743L;
 
     private static final String[] COLUMN_NAMES = new String[] { "Selected", "Source file" };
     private static final Class<?>[] COLUMN_TYPES = new Class[] { Boolean.class, Object.class };
     private static final boolean[] COLUMN_EDITABLES = new boolean[] { true, false };
 
-    private Map<String, Boolean> fileSelection = new HashMap<>();
-    private List<String> files = new ArrayList<>();
+    private BitSet fileSelection = new BitSet();
+    private List<String> files = Collections.emptyList();
+
+    /** Index in {@link #files} of each visible row. */
+    private int[] rows = new int[0];
+    private String filter = "";
+
+    public SourceFileSelectionModel() {
+        super();
+    }
 
     public SourceFileSelectionModel(List<String> files) {
-        super(COLUMN_NAMES, 0);
+        setFiles(files);
+    }
+
+    /** Replace the listed files. All the files are selected by default. */
+    public void setFiles(List<String> files) {
         this.files = files;
-        files.forEach(file -> {
-            fileSelection.put(file, Boolean.TRUE);
-            addRow(new Object[] { Boolean.TRUE, file });
-        });
+        fileSelection = new BitSet(files.size());
+        fileSelection.set(0, files.size());
+        rows = filterRows(allRows(), matcher(filter));
+        fireTableDataChanged();
+    }
+
+    /**
+     * Only display the files matching the filter. A filter containing
+     * <code>*</code> or <code>?</code> is a glob pattern, otherwise it's a
+     * case-insensitive substring.
+     */
+    public void setFilter(String newFilter) {
+        String previous = filter;
+        filter = newFilter == null ? "" : newFilter;
+        if (filter.equals(previous)) {
+            return;
+        }
+
+        // When the user keeps typing a substring, the new matches are a subset
+        // of the displayed ones.
+        boolean narrowing = !isGlob(filter) && !isGlob(previous)
+                && filter.toLowerCase(Locale.ENGLISH).contains(previous.toLowerCase(Locale.ENGLISH));
+        rows = filterRows(narrowing ? rows : allRows(), matcher(filter));
         fireTableDataChanged();
     }
 
+    public String getFilter() {
+        return filter;
+    }
+
+    @Override
+    public int getRowCount() {
+        return rows.length;
+    }
+
+    @Override
+    public int getColumnCount() {
+        return COLUMN_NAMES.length;
+    }
+
+    @Override
+    public String getColumnName(int column) {
+        return COLUMN_NAMES[column];
+    }
+
     @Override
     public Object getValueAt(int row, int col) {
-        return col == 1 ? files.get(row) : fileSelection.get(files.get(row));
+        int index = rows[row];
+        return col == 1 ? files.get(index) : fileSelection.get(index);
     }
 
     @Override
     public void setValueAt(Object value, int row, int col) {
-        String file = files.get(row);
-        fileSelection.put(file, !fileSelection.get(file));
+        fileSelection.flip(rows[row]);
         fireTableCellUpdated(row, col);
     }
 
@@ -71,9 +130,98 @@ public class SourceFileSelectionModel extends DefaultTableModel {
         return COLUMN_EDITABLES[column];
     }
 
+    /** Select or deselect all the displayed files. */
+    public void setVisibleSelected(boolean selected) {
+        for (int index : rows) {
+            fileSelection.set(index, selected);
+        }
+        fireSelectionChanged();
+    }
+
+    /** Invert the selection of the displayed files. */
+    public void invertVisibleSelection() {
+        for (int index : rows) {
+            fileSelection.flip(index);
+        }
+        fireSelectionChanged();
+    }
+
+    /** Positions of the selected files in the project. */
+    public BitSet getSelection() {
+        return (BitSet) fileSelection.clone();
+    }
+
+    /** The selected files, in project order. */
     public List<String> getSelectedSourceFiles() {
-        return fileSelection.entrySet().stream().filter(Entry::getValue).map(Entry::getKey)
-                .collect(Collectors.toList());
+        List<String> selected = new ArrayList<>(fileSelection.cardinality());
+        for (int index = fileSelection.nextSetBit(0); index >= 0; index = fileSelection
+                .nextSetBit(index + 1)) {
+            selected.add(files.get(index));
+        }
+        return selected;
+    }
+
+    private void fireSelectionChanged() {
+        if (rows.length > 0) {
+            fireTableRowsUpdated(0, rows.length - 1);
+        }
     }
 
-}
\ No newline at end of file
+    private int[] allRows() {
+        int[] all = new int[files.size()];
+        for (int i = 0; i < all.length; i++) {
+            all[i] = i;
+        }
+        return all;
+    }
+
+    private int[] filterRows(int[] candidates, Predicate<String> matcher) {
+        if (filter.isEmpty()) {
+            return candidates;
+        }
+        int[] matching = new int[candidates.length];
+        int count = 0;
+        for (int index : candidates) {
+            if (matcher.test(files.get(index))) {
+                matching[count++] = index;
+            }
+        }
+        int[] result = new int[count];
+        System.arraycopy(matching, 0, result, 0, count);
+        return result;
+    }
+
+    static boolean isGlob(String filter) {
+        return filter.indexOf('*') >= 0 || filter.indexOf('?') >= 0;
+    }
+
+    static Predicate<String> matcher(String filter) {
+        if (isGlob(filter)) {
+            Pattern pattern = globToPattern(filter);
+            return file -> pattern.matcher(file).matches();
+        }
+        String lowerFilter = filter.toLowerCase(Locale.ENGLISH);
+        return file -> file.toLowerCase(Locale.ENGLISH).contains(lowerFilter);
+    }
+
+    /** Convert a glob (<code>*</code> and <code>?</code>) to a regex. */
+    static Pattern globToPattern(String glob) {
+        StringBuilder sb = new StringBuilder();
+        StringBuilder literal = new StringBuilder();
+        for (char c : glob.toCharArray()) {
+            if (c == '*' || c == '?') {
+                if (literal.length() > 0) {
+                    sb.append(Pattern.quote(literal.toString()));
+                    literal.setLength(0);
+                }
+                sb.append(c == '*' ? ".*" : ".");
+            } else {
+                literal.append(c);
+            }
+        }
+        if (literal.length() > 0) {
+            sb.append(Pattern.quote(literal.toString()));
+        }
+        return Pattern.compile(sb.toString(), Pattern.CASE_INSENSITIVE | Pattern.UNICODE_CASE);
+    }
+}
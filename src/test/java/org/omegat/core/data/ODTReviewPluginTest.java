@@ -20,268 +20,587 @@
 
 package org.omegat.core.data;
 
+import static org.junit.Assert.assertArrayEquals;
 import static org.junit.Assert.assertEquals;
 import static org.junit.Assert.assertTrue;
 
+import java.io.BufferedReader;
+import java.io.ByteArrayInputStream;
+import java.io.ByteArrayOutputStream;
 import java.io.File;
+import java.io.InputStream;
+import java.io.InputStreamReader;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.time.Clock;
+import java.time.Duration;
+import java.time.Instant;
+import java.time.ZoneOffset;
 import java.util.ArrayList;
-import java.util.Collections;
-import java.util.HashMap;
+import java.util.Arrays;
+import java.util.BitSet;
 import java.util.List;
-import java.util.Locale;
-import java.util.Map;
+import java.util.concurrent.CopyOnWriteArrayList;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.stream.Collectors;
+import java.util.zip.ZipEntry;
+import java.util.zip.ZipFile;
+import java.util.zip.ZipInputStream;
+import java.util.zip.ZipOutputStream;
 
 import org.junit.Ignore;
+import org.junit.Rule;
 import org.junit.Test;
-import org.omegat.core.data.IProject.FileInfo;
-import org.omegat.core.data.TMXEntry.ExternalLinked;
-import org.omegat.core.statistics.StatisticsInfo;
-import org.omegat.tokenizer.ITokenizer;
-import org.omegat.util.Language;
-
-import com.devskiller.jfairy.Fairy;
+import org.junit.rules.TemporaryFolder;
 
 import net.briac.omegat.plugin.odtreview.ODTReviewPlugin;
+import net.briac.omegat.plugin.odtreview.ReviewColumnProvider;
+import net.briac.omegat.plugin.odtreview.ReviewFormat;
+import net.briac.omegat.plugin.odtreview.ReviewHistory;
+import net.briac.omegat.plugin.odtreview.ReviewInbox;
+import net.briac.omegat.plugin.odtreview.ReviewSnapshot;
 
 public class ODTReviewPluginTest {
 
-    private static final Fairy FAIRY = Fairy.create(Locale.ENGLISH);
-    private static final Fairy FAIRY_TARGET = Fairy.create(Locale.FRENCH);
+    private static final long SEED = 42L;
 
-    private static List<String> sourceFiles = new ArrayList<>();
+    @Rule
+    public TemporaryFolder folder = new TemporaryFolder();
 
     public static void main(String[] args) throws Exception {
         IProject project = fakeProject();
-        new ODTReviewPlugin(project).exportODT(new File("review.odt"), sourceFiles);
+        new ODTReviewPlugin(project).exportODT(new File("review.odt"), sourceFiles(project));
         // new ODTReviewPlugin(project).importODT(new File("review.odt"));
     }
 
     @Test
     public void testExport() throws Exception {
-        File outputFile = new File("test_review.odt");
-        new ODTReviewPlugin(fakeProject()).exportODT(outputFile, sourceFiles);
+        File outputFile = new File(folder.getRoot(), "review.odt");
+        IProject project = fakeProject();
+        new ODTReviewPlugin(project).exportODT(outputFile, sourceFiles(project));
         assertTrue(outputFile.exists());
     }
 
     @Test
     public void testImport() throws Exception {
-        File inputFile = new File("test_review.odt");
-        assertTrue(inputFile.exists());
-        new ODTReviewPlugin(fakeProject()).importODT(inputFile);
-    }
-
-    private static IProject fakeProject() throws Exception {
-        List<FileInfo> projectFiles = new ArrayList<>();
-        List<SourceTextEntry> allEntriesList = new ArrayList<>();
-        Map<SourceTextEntry, TMXEntry> allEntries = new HashMap<>();
-
-        sourceFiles.clear();
-
-        ProjectProperties projectProperties = new ProjectProperties(
-                new File(FAIRY.textProducer().latinWord(2)));
-        projectProperties.setSourceLanguage("en-US");
-        projectProperties.setTargetLanguage("fr-FR");
-
-        int maxFiles = FAIRY.baseProducer().randomBetween(5, 7);
-        int entryId = 0;
-        for (int indexFile = 0; indexFile < maxFiles; indexFile++) {
-
-            FileInfo fileInfo = new FileInfo();
-            fileInfo.filePath = FAIRY.textProducer().latinWord(2).replace(" ", "") + ".docx";
+        TestProject project = fakeProject();
+        WrittenReview review = writeReview(project, ReviewFormat.ODT);
+        assertTrue(review.file.exists());
 
-            int maxEntries = FAIRY.baseProducer().randomBetween(10, 30);
-
-            for (int indexEntry = 0; indexEntry < maxEntries; indexEntry++) {
-                String sourceText = FAIRY.textProducer().paragraph(1);
-                String sourceTranslation = FAIRY_TARGET.textProducer().paragraph(1);
-
-                EntryKey key = new EntryKey(fileInfo.filePath, sourceText, null, null, null, null);
-
-                String comment = FAIRY.baseProducer().randomBetween(1, 100) > 75
-                        ? FAIRY.textProducer().latinSentence(1)
-                        : null;
-                String[] props = comment == null ? null : new String[] { SegmentProperties.COMMENT, comment };
-                SourceTextEntry entry = new SourceTextEntry(key, entryId++, props, sourceTranslation,
-                        Collections.emptyList(), false);
-
-                PrepareTMXEntry pte = new PrepareTMXEntry();
-                pte.source = sourceText;
-                pte.translation = sourceTranslation;
-                allEntries.put(entry, new TMXEntry(pte, false, null));
-                allEntriesList.add(entry);
+        ODTReviewPlugin plugin = new ODTReviewPlugin(project);
+        assertTrue(plugin.importReview(review.file));
+        review.assertImported(plugin);
+    }
 
-                fileInfo.entries.add(entry);
-            }
-            projectFiles.add(fileInfo);
-            sourceFiles.add(fileInfo.filePath);
+    @Test
+    public void testStreamRoundTrip() throws Exception {
+        for (ReviewFormat format : ReviewFormat.values()) {
+            TestProject project = fakeProject();
+            WrittenReview review = writeReview(project, format);
+
+            ODTReviewPlugin plugin = new ODTReviewPlugin(project);
+            try (InputStream in = new ByteArrayInputStream(Files.readAllBytes(review.file.toPath()))) {
+                assertTrue(plugin.importReview(in, format));
+            }
+            review.assertImported(plugin);
+
+            // Nothing changes when the project is exported and imported back
+            ByteArrayOutputStream out = new ByteArrayOutputStream();
+            plugin.exportReview(out, format, sourceFiles(project));
+            assertTrue(plugin.importReview(new ByteArrayInputStream(out.toByteArray()), format));
+            assertEquals(0, plugin.getUpdatedTranslations());
+            assertEquals(0, plugin.getUpdatedComments());
         }
+    }
 
-        return new IProject() {
-
-            @Override
-            public TMXEntry getTranslationInfo(SourceTextEntry ste) {
-                return allEntries.get(ste);
-            }
+    @Test
+    public void testDriftedEntryNumbers() throws Exception {
+        for (ReviewFormat format : ReviewFormat.values()) {
+            TestProject project = fakeProject();
+            WrittenReview review = writeReview(project, format);
+
+            // A source file was added before the others after the export, so
+            // all the entry numbers have changed
+            TestProject updated = new TestProject("synthetic-" + SEED, "en-US", "fr-FR");
+            IProject.FileInfo added = updated.addFile("added/first.properties");
+            for (int i = 0; i < 7; i++) {
+                updated.addEntry(added, "New segment " + i, null, null);
+            }
+            for (IProject.FileInfo fileInfo : project.getProjectFiles()) {
+                IProject.FileInfo copy = updated.addFile(fileInfo.filePath);
+                for (SourceTextEntry ste : fileInfo.entries) {
+                    TMXEntry en = project.getTranslationInfo(ste);
+                    updated.addEntry(copy, ste.getSrcText(), en.translation, en.note);
+                }
+            }
+
+            ODTReviewPlugin plugin = new ODTReviewPlugin(updated);
+            assertTrue(plugin.importReview(review.file));
+            review.assertImported(plugin);
+            assertEquals(project.getAllEntries().size(), plugin.getReanchoredRows());
+            assertTrue(plugin.getAmbiguousRows().isEmpty());
+        }
+    }
 
-            @Override
-            public ProjectProperties getProjectProperties() {
-                return projectProperties;
-            }
+    @Test
+    public void testAmbiguousTargets() throws Exception {
+        TestProject exported = new TestProject("ambiguous", "en-US", "fr-FR");
+        IProject.FileInfo exportedFile = exported.addFile("a.txt");
+        SourceTextEntry hello = exported.addEntry(exportedFile, "Hello", "Bonjour", null);
+        exported.addEntry(exportedFile, "Foo", "Foo fr", null);
+        exported.addEntry(exportedFile, "Hello", "Bonjour", null);
+        SourceTextEntry beta = exported.addEntry(exportedFile, "Beta", "Beta fr", null);
+        review(exported, hello, "Bonjour revu", null);
+        review(exported, beta, "Beta revu", null);
+        ByteArrayOutputStream out = new ByteArrayOutputStream();
+        new ODTReviewPlugin(exported).exportReview(out, ReviewFormat.ODS, sourceFiles(exported));
+
+        // The third segment was changed, and "Beta" moved to another file
+        TestProject project = new TestProject("ambiguous", "en-US", "fr-FR");
+        IProject.FileInfo file = project.addFile("a.txt");
+        SourceTextEntry projectHello = project.addEntry(file, "Hello", "Bonjour", null);
+        project.addEntry(file, "Foo", "Foo fr", null);
+        project.addEntry(file, "Bar", "Bar fr", null);
+        SourceTextEntry projectBeta = project.addEntry(project.addFile("b.txt"), "Beta", "Beta fr", null);
+
+        // Both "Hello" rows match the first segment, "Beta" is not looked up
+        // in the other files
+        ODTReviewPlugin plugin = new ODTReviewPlugin(project);
+        assertTrue(plugin.importReview(new ByteArrayInputStream(out.toByteArray()), ReviewFormat.ODS));
+        assertEquals(Arrays.asList(1, 3), plugin.getAmbiguousRows());
+        assertEquals(0, plugin.getUpdatedTranslations());
+        assertEquals(0, plugin.getReanchoredRows());
+        assertEquals("Bonjour", project.getTranslationInfo(projectHello).translation);
+        assertEquals("Beta fr", project.getTranslationInfo(projectBeta).translation);
+    }
 
+    @Test
+    public void testExtraColumns() throws Exception {
+        TestProject project = fakeProject();
+        AtomicInteger lengthCalls = new AtomicInteger();
+        ReviewColumnProvider length = new ReviewColumnProvider() {
             @Override
-            public List<FileInfo> getProjectFiles() {
-                return projectFiles;
+            public String getHeader() {
+                return "Length";
             }
 
             @Override
-            public void teamSyncPrepare() throws Exception {
-                /* empty */
+            public String getValue(SourceTextEntry entry, TMXEntry translation) {
+                lengthCalls.incrementAndGet();
+                return Integer.toString(entry.getSrcText().length());
             }
 
             @Override
-            public void teamSync() {
-                /* empty */
+            public boolean isCachedBySource() {
+                return true;
             }
-
+        };
+        ReviewColumnProvider stalled = new ReviewColumnProvider() {
             @Override
-            public void setTranslation(SourceTextEntry entry, PrepareTMXEntry trans,
-                    boolean defaultTranslation, ExternalLinked externalLinked,
-                    AllTranslations previousTranslations) throws OptimisticLockingFail {
-                /* empty */
+            public String getHeader() {
+                return "Stalled";
             }
 
             @Override
-            public void setTranslation(SourceTextEntry entry, PrepareTMXEntry trans,
-                    boolean defaultTranslation, ExternalLinked externalLinked) {
-                /* empty */
+            public String getValue(SourceTextEntry entry, TMXEntry translation) {
+                try {
+                    Thread.sleep(60_000L);
+                } catch (InterruptedException e) {
+                    Thread.currentThread().interrupt();
+                }
+                return null;
             }
 
             @Override
-            public void setSourceFilesOrder(List<String> filesList) {
-                /* empty */
+            public long getTimeoutMillis() {
+                return 200L;
             }
+        };
 
-            @Override
-            public void setNote(SourceTextEntry entry, TMXEntry oldTrans, String note) {
-                /* empty */
-            }
+        ODTReviewPlugin.registerColumnProvider(length);
+        ODTReviewPlugin.registerColumnProvider(stalled);
+        try {
+            ODTReviewPlugin plugin = new ODTReviewPlugin(project);
+            ByteArrayOutputStream out = new ByteArrayOutputStream();
+            plugin.exportReview(out, ReviewFormat.ODS, sourceFiles(project));
+
+            long distinctSources = project.getAllEntries().stream().map(SourceTextEntry::getSrcText)
+                    .distinct().count();
+            assertEquals(distinctSources, lengthCalls.get());
+
+            // The extra columns are ignored by the import
+            assertTrue(plugin.importReview(new ByteArrayInputStream(out.toByteArray()), ReviewFormat.ODS));
+            assertEquals(0, plugin.getUpdatedTranslations());
+            assertEquals(0, plugin.getUpdatedComments());
+        } finally {
+            ODTReviewPlugin.unregisterColumnProvider(length);
+            ODTReviewPlugin.unregisterColumnProvider(stalled);
+        }
+    }
 
-            @Override
-            public void saveProjectProperties() throws Exception {
-                /* empty */
-            }
+    @Test
+    public void testSingleTableLayout() throws Exception {
+        for (ReviewFormat format : ReviewFormat.values()) {
+            // Many small files are exported in a single table
+            TestProject project = new SyntheticProjectGenerator(SEED).segments(120).files(60).generate();
+            WrittenReview review = writeReview(project, format);
+
+            if (format == ReviewFormat.ODS) {
+                // The reviewer sheet and the review sheet
+                try (ZipFile ods = new ZipFile(review.file);
+                        InputStream in = ods.getInputStream(ods.getEntry("content.xml"))) {
+                    String content = new BufferedReader(new InputStreamReader(in, StandardCharsets.UTF_8))
+                            .lines().collect(Collectors.joining("\n"));
+                    assertEquals(2, content.split("<table:table ", -1).length - 1);
+                }
+            }
+
+            ODTReviewPlugin plugin = new ODTReviewPlugin(project);
+            assertTrue(plugin.importReview(review.file));
+            review.assertImported(plugin);
+        }
+    }
 
-            @Override
-            public void saveProject(boolean doTeamSync) {
-                /* empty */
+    @Test
+    public void testEntryRangeExport() throws Exception {
+        TestProject project = fakeProject();
+        ReviewSnapshot snapshot = ReviewSnapshot.take(project, 10, 29);
+        assertEquals(20, snapshot.getEntryCount());
+
+        // The second text document starts from the skeleton of the first one
+        ODTReviewPlugin plugin = new ODTReviewPlugin(project);
+        for (int i = 0; i < 2; i++) {
+            for (ReviewFormat format : ReviewFormat.values()) {
+                ByteArrayOutputStream out = new ByteArrayOutputStream();
+                plugin.writeReview(out, format, snapshot, progress -> {
+                    /* empty */
+                });
+                assertTrue(plugin.importReview(new ByteArrayInputStream(out.toByteArray()), format));
+                assertEquals(0, plugin.getUpdatedTranslations());
+                assertEquals(0, plugin.getUpdatedComments());
             }
+        }
+    }
 
-            @Override
-            public void iterateByMultipleTranslations(MultipleTranslationsIterator it) {
-                /* empty */
+    @Test
+    public void testReproducibleExport() throws Exception {
+        TestProject project = fakeProject();
+        Clock first = Clock.fixed(Instant.parse("2024-03-01T10:15:30Z"), ZoneOffset.UTC);
+        Clock second = Clock.offset(first, Duration.ofDays(1).plusSeconds(7));
+        for (ReviewFormat format : ReviewFormat.values()) {
+            for (boolean reproducible : new boolean[] { false, true }) {
+                ODTReviewPlugin plugin = new ODTReviewPlugin(project);
+                plugin.setReproducible(reproducible);
+                byte[][] packages = new byte[2][];
+                Clock[] clocks = { first, second };
+                for (int i = 0; i < clocks.length; i++) {
+                    plugin.setClock(clocks[i]);
+                    ByteArrayOutputStream out = new ByteArrayOutputStream();
+                    plugin.exportReview(out, format, sourceFiles(project));
+                    packages[i] = out.toByteArray();
+                }
+                // The dates are only left out of reproducible exports
+                assertEquals(reproducible, Arrays.equals(packages[0], packages[1]));
             }
+        }
+    }
 
-            @Override
-            public void iterateByDefaultTranslations(DefaultTranslationsIterator it) {
-                /* empty */
+    @Test
+    public void testProtectedSpreadsheet() throws Exception {
+        TestProject project = fakeProject();
+        ByteArrayOutputStream out = new ByteArrayOutputStream();
+        new ODTReviewPlugin(project).exportReview(out, ReviewFormat.ODS, sourceFiles(project));
+
+        String content = null;
+        try (ZipInputStream zip = new ZipInputStream(new ByteArrayInputStream(out.toByteArray()))) {
+            for (ZipEntry entry = zip.getNextEntry(); entry != null; entry = zip.getNextEntry()) {
+                if ("content.xml".equals(entry.getName())) {
+                    content = new BufferedReader(new InputStreamReader(zip, StandardCharsets.UTF_8)).lines()
+                            .collect(Collectors.joining("\n"));
+                }
             }
+        }
+        // Every sheet is protected, only the target and note cells are not
+        int sheets = project.getProjectFiles().size() + 1;
+        assertEquals(sheets, content.split("table:protected=\"true\"", -1).length - 1);
+        assertEquals(2, content.split("style:cell-protect=\"none\"", -1).length - 1);
+    }
 
-            @Override
-            public boolean isTeamSyncPrepared() {
-                return false;
-            }
+    @Test
+    public void testParallelDeflate() throws Exception {
+        // Large enough for the content to be deflated in several blocks
+        TestProject project = new SyntheticProjectGenerator(SEED).segments(3000).files(6).generate();
+        ODTReviewPlugin plugin = new ODTReviewPlugin(project);
+        plugin.setReproducible(true);
+
+        for (ReviewFormat format : ReviewFormat.values()) {
+            byte[][] packages = new byte[2][];
+            int[] threads = { 1, 4 };
+            for (int i = 0; i < threads.length; i++) {
+                plugin.setDeflateThreads(threads[i]);
+                ByteArrayOutputStream out = new ByteArrayOutputStream();
+                plugin.exportReview(out, format, sourceFiles(project));
+                packages[i] = out.toByteArray();
+            }
+            // The blocks don't depend on the number of threads
+            assertArrayEquals(packages[0], packages[1]);
+
+            assertTrue(plugin.importReview(new ByteArrayInputStream(packages[1]), format));
+            assertEquals(0, plugin.getUpdatedTranslations());
+            assertEquals(0, plugin.getUpdatedComments());
+        }
+    }
 
-            @Override
-            public boolean isRemoteProject() {
-                return false;
-            }
+    @Test
+    public void testTagValidation() throws Exception {
+        TestProject project = new TestProject("tags", "en-US", "fr-FR");
+        IProject.FileInfo file = project.addFile("tags.html");
+        SourceTextEntry[] entries = new SourceTextEntry[4];
+        for (int i = 0; i < entries.length; i++) {
+            entries[i] = project.addEntry(file, "Click <b0>here</b0> " + i + "<x1/>",
+                    "Cliquez <b0>ici</b0> <x1/>", null, tags("<b0>", "</b0>", "<x1/>"));
+        }
 
-            @Override
-            public boolean isProjectModified() {
-                return false;
-            }
+        // The review is exported from a copy of the project
+        TestProject reviewed = project.copy();
+        review(reviewed, entries[0], "Cliquez <x1/> <b0>là</b0>", null);
+        review(reviewed, entries[1], "Cliquez là <x1/>", null);
+        review(reviewed, entries[2], "Cliquez <b0>là</b0> <x1/><x1/>", "Check the tags");
+        review(reviewed, entries[3], "", null);
+        ByteArrayOutputStream out = new ByteArrayOutputStream();
+        new ODTReviewPlugin(reviewed).exportReview(out, ReviewFormat.ODS, sourceFiles(reviewed));
+
+        ODTReviewPlugin plugin = new ODTReviewPlugin(project);
+        assertTrue(plugin.importReview(new ByteArrayInputStream(out.toByteArray()), ReviewFormat.ODS));
+        // The tags of an empty translation are not checked
+        assertEquals(2, plugin.getUpdatedTranslations());
+        assertEquals(1, plugin.getUpdatedComments());
+        assertEquals(Arrays.asList(2, 3), plugin.getRejectedRows());
+        assertEquals("Cliquez <b0>ici</b0> <x1/>", project.getTranslationInfo(entries[1]).translation);
+        assertEquals("Cliquez <b0>ici</b0> <x1/>", project.getTranslationInfo(entries[2]).translation);
+    }
 
-            @Override
-            public boolean isProjectLoaded() {
-                return false;
-            }
+    @Test
+    public void testReviewHistory() throws Exception {
+        Path projectDir = folder.getRoot().toPath();
+        Files.createDirectories(projectDir.resolve("omegat"));
+        TestProject project = new TestProject(projectDir.toString(), "en-US", "fr-FR");
+        IProject.FileInfo file = project.addFile("history.txt");
+        SourceTextEntry[] entries = new SourceTextEntry[10];
+        for (int i = 0; i < entries.length; i++) {
+            entries[i] = project.addEntry(file, "Segment " + i, "Segment " + i + " fr", null);
+        }
+        TestProject reviewed = project.copy();
+        review(reviewed, entries[0], "Segment 0 revu", null);
+        review(reviewed, entries[1], "Segment 1 revu", null);
+        review(reviewed, entries[2], "Segment 2 fr", "Check this");
+        ByteArrayOutputStream out = new ByteArrayOutputStream();
+        new ODTReviewPlugin(reviewed).exportReview(out, ReviewFormat.ODS, sourceFiles(reviewed));
+
+        // The second import of the same file changes nothing
+        ODTReviewPlugin plugin = new ODTReviewPlugin(project);
+        for (int i = 0; i < 2; i++) {
+            assertTrue(plugin.importReview(new ByteArrayInputStream(out.toByteArray()), ReviewFormat.ODS));
+        }
 
-            @Override
-            public boolean isOrphaned(EntryKey entry) {
-                return false;
-            }
+        ReviewHistory history = ReviewHistory.of(project);
+        List<ReviewHistory.Round> rounds = history.getRounds();
+        assertEquals(2, rounds.size());
+        assertEquals(3, rounds.get(0).size());
+        assertEquals(0, rounds.get(1).size());
+        assertArrayEquals(rounds.get(0).getFileHash(), rounds.get(1).getFileHash());
+        assertTrue(history.contains(rounds.get(0).getFileHash()));
+
+        BitSet translated = history.getEntries(null, 2, ReviewHistory.TRANSLATION);
+        assertEquals(BitSet.valueOf(new long[] { 0b110 }), translated);
+        int changed = ReviewHistory.TRANSLATION | ReviewHistory.NOTE;
+        assertTrue(history.getEntries(null, 1, changed).isEmpty());
+        assertEquals(3, history.getEntries("", 2, changed).cardinality());
+        assertEquals(2, ReviewSnapshot.take(project, translated::get).getEntryCount());
+    }
 
-            @Override
-            public boolean isOrphaned(String source) {
-                return false;
-            }
+    @Test
+    public void testReviewHistoryDamagedTail() throws Exception {
+        Path projectDir = folder.getRoot().toPath();
+        Files.createDirectories(projectDir.resolve("omegat"));
+        TestProject project = new TestProject(projectDir.toString(), "en-US", "fr-FR");
+        IProject.FileInfo file = project.addFile("history.txt");
+        SourceTextEntry entry = project.addEntry(file, "Segment", "Segment fr", null);
+        TestProject reviewed = project.copy();
+        review(reviewed, entry, "Segment revu", null);
+        ByteArrayOutputStream out = new ByteArrayOutputStream();
+        new ODTReviewPlugin(reviewed).exportReview(out, ReviewFormat.ODS, sourceFiles(reviewed));
+        assertTrue(new ODTReviewPlugin(project).importReview(new ByteArrayInputStream(out.toByteArray()),
+                ReviewFormat.ODS));
+
+        // A round cut by a crash, with a huge entry count
+        Path historyFile = projectDir.resolve("omegat").resolve("odt-review-history.dat");
+        byte[] round = Files.readAllBytes(historyFile);
+        byte[] damaged = Arrays.copyOf(round, round.length + 20);
+        Arrays.fill(damaged, round.length, damaged.length, (byte) 0x7F);
+        Files.write(historyFile, damaged);
+        assertEquals(1, ReviewHistory.of(project).getRounds().size());
+
+        // The damaged tail is truncated by the next round
+        assertTrue(new ODTReviewPlugin(project).importReview(new ByteArrayInputStream(out.toByteArray()),
+                ReviewFormat.ODS));
+        assertEquals(2, ReviewHistory.of(project).getRounds().size());
+
+        // A corrupted round and the rounds after it are ignored
+        byte[] written = Files.readAllBytes(historyFile);
+        written[round.length + 12] ^= 1;
+        Files.write(historyFile, written);
+        assertEquals(1, ReviewHistory.of(project).getRounds().size());
+    }
 
-            @Override
-            public Map<String, ExternalTMX> getTransMemories() {
-                return Collections.emptyMap();
-            }
+    @Test
+    public void testTrackedChanges() throws Exception {
+        TestProject project = new TestProject("tracked", "en-US", "fr-FR");
+        IProject.FileInfo file = project.addFile("tracked.txt");
+        SourceTextEntry[] entries = new SourceTextEntry[4];
+        for (int i = 0; i < entries.length; i++) {
+            entries[i] = project.addEntry(file, "Segment " + i, "Segment " + i + " fr", null);
+        }
 
-            @Override
-            public ITokenizer getTargetTokenizer() {
-                return null;
-            }
+        // The translation of #2 was changed with Track Changes on, and the
+        // one of #3 with Track Changes off
+        String row = "<table:table-row><table:table-cell><text:p>%d</text:p></table:table-cell>"
+                + "<table:table-cell><text:p>Segment %d</text:p></table:table-cell>"
+                + "<table:table-cell><text:p>%s</text:p></table:table-cell>"
+                + "<table:table-cell/></table:table-row>";
+        String content = "<?xml version=\"1.0\" encoding=\"UTF-8\"?>"
+                + "<office:document-content xmlns:office=\"urn:oasis:names:tc:opendocument:xmlns:office:1.0\""
+                + " xmlns:text=\"urn:oasis:names:tc:opendocument:xmlns:text:1.0\""
+                + " xmlns:table=\"urn:oasis:names:tc:opendocument:xmlns:table:1.0\""
+                + " xmlns:dc=\"http://purl.org/dc/elements/1.1/\" office:version=\"1.2\">"
+                + "<office:body><office:text><text:tracked-changes text:track-changes=\"true\">"
+                + "<text:changed-region text:id=\"ct1\"><text:insertion><office:change-info>"
+                + "<dc:creator>Reviewer</dc:creator></office:change-info></text:insertion>"
+                + "</text:changed-region>"
+                + "<text:changed-region text:id=\"ct2\"><text:deletion><office:change-info>"
+                + "<dc:creator>Reviewer</dc:creator></office:change-info><text:p>fr</text:p></text:deletion>"
+                + "</text:changed-region></text:tracked-changes>"
+                + "<table:table table:name=\"omt-reviewer\"><table:table-row>"
+                + "<table:table-cell><text:p>Reviewer</text:p></table:table-cell>"
+                + "<table:table-cell><text:p>Jo</text:p></table:table-cell>"
+                + "</table:table-row></table:table>"
+                + "<table:table table:name=\"tracked.txt\"><table:table-row><table:table-cell><text:p>#"
+                + "</text:p></table:table-cell></table:table-row>"
+                + String.format(row, 1, 0, "Segment 0 fr")
+                + String.format(row, 2, 1,
+                        "Segment 1 <text:change-start text:change-id=\"ct1\"/>revu<text:change-end "
+                                + "text:change-id=\"ct1\"/><text:change text:change-id=\"ct2\"/>")
+                + String.format(row, 3, 2, "Segment 2 revu")
+                + String.format(row, 4, 3, "Segment 3 fr")
+                + "</table:table></office:text></office:body></office:document-content>";
+        String meta = "<?xml version=\"1.0\" encoding=\"UTF-8\"?>"
+                + "<office:document-meta xmlns:office=\"urn:oasis:names:tc:opendocument:xmlns:office:1.0\""
+                + " xmlns:meta=\"urn:oasis:names:tc:opendocument:xmlns:meta:1.0\" office:version=\"1.2\">"
+                + "<office:meta><meta:user-defined meta:name=\"omt-projectName\">tracked</meta:user-defined>"
+                + "<meta:user-defined meta:name=\"omt-sourceLanguage\">en-US</meta:user-defined>"
+                + "<meta:user-defined meta:name=\"omt-targetLanguage\">fr-FR</meta:user-defined>"
+                + "</office:meta></office:document-meta>";
+        ByteArrayOutputStream odt = new ByteArrayOutputStream();
+        try (ZipOutputStream zip = new ZipOutputStream(odt)) {
+            zip.putNextEntry(new ZipEntry("meta.xml"));
+            zip.write(meta.getBytes(StandardCharsets.UTF_8));
+            zip.putNextEntry(new ZipEntry("content.xml"));
+            zip.write(content.getBytes(StandardCharsets.UTF_8));
+        }
 
-            @Override
-            public String getTargetPathForSourceFile(String sourceFile) {
-                return null;
-            }
+        ODTReviewPlugin plugin = new ODTReviewPlugin(project);
+        plugin.setTrackedChangesOnly(true);
+        assertTrue(plugin.importReview(new ByteArrayInputStream(odt.toByteArray()), ReviewFormat.ODT));
+        assertEquals(1, plugin.getUpdatedTranslations());
+        assertEquals("Segment 1 revu", project.getTranslationInfo(entries[1]).translation);
+        assertEquals("Segment 2 fr", project.getTranslationInfo(entries[2]).translation);
+    }
 
-            @Override
-            public StatisticsInfo getStatistics() {
-                return null;
-            }
+    private static List<ProtectedPart> tags(String... texts) {
+        List<ProtectedPart> parts = new ArrayList<>();
+        for (String text : texts) {
+            ProtectedPart part = new ProtectedPart();
+            part.setTextInSourceSegment(text);
+            parts.add(part);
+        }
+        return parts;
+    }
 
-            @Override
-            public ITokenizer getSourceTokenizer() {
-                return null;
-            }
+    private static void review(TestProject project, SourceTextEntry entry, String translation, String note) {
+        PrepareTMXEntry pte = new PrepareTMXEntry();
+        pte.source = entry.getSrcText();
+        pte.translation = translation;
+        pte.note = note;
+        project.setTranslation(entry, pte, true, null);
+    }
 
-            @Override
-            public List<String> getSourceFilesOrder() {
-                return null;
+    @Test
+    public void testInbox() throws Exception {
+        TestProject project = fakeProject();
+        Path inbox = folder.newFolder("inbox").toPath();
+        WrittenReview review = writeReview(project, ReviewFormat.ODS);
+
+        List<ReviewInbox.Summary> summaries = new CopyOnWriteArrayList<>();
+        try (ReviewInbox watcher = new ReviewInbox(inbox, project, 100L, Runnable::run, summaries::add)) {
+            watcher.start();
+            Files.move(review.file.toPath(), inbox.resolve("returned.ods"));
+            Files.write(inbox.resolve("broken.ods"), "not a zip".getBytes(StandardCharsets.UTF_8));
+
+            // The files are moved before the summary of their batch is sent
+            long deadline = System.currentTimeMillis() + 10_000L;
+            while ((Files.exists(inbox.resolve("returned.ods")) || Files.exists(inbox.resolve("broken.ods"))
+                    || summaries.stream().mapToInt(ReviewInbox.Summary::getImported).sum() == 0)
+                    && System.currentTimeMillis() < deadline) {
+                Thread.sleep(50L);
             }
+        }
 
-            @Override
-            public Map<Language, ProjectTMX> getOtherTargetLanguageTMs() {
-                return null;
-            }
+        assertTrue(Files.exists(inbox.resolve("done").resolve("returned.ods")));
+        assertTrue(Files.exists(inbox.resolve("failed").resolve("broken.ods")));
+        assertTrue(Files.exists(inbox.resolve("summary.txt")));
+        assertEquals(1, summaries.stream().mapToInt(ReviewInbox.Summary::getImported).sum());
+        assertEquals(review.updatedTranslations,
+                summaries.stream().mapToInt(ReviewInbox.Summary::getUpdatedTranslations).sum());
+        assertEquals(review.updatedComments,
+                summaries.stream().mapToInt(ReviewInbox.Summary::getUpdatedComments).sum());
+    }
 
-            @Override
-            public AllTranslations getAllTranslations(SourceTextEntry ste) {
-                return null;
-            }
+    private static TestProject fakeProject() throws Exception {
+        return new SyntheticProjectGenerator(SEED).segments(120).files(6).generate();
+    }
 
-            @Override
-            public List<SourceTextEntry> getAllEntries() {
-                return allEntriesList;
-            }
+    /**
+     * Write a review of the project in the temporary folder, with 20% of the
+     * translations and 10% of the notes changed.
+     */
+    private WrittenReview writeReview(TestProject project, ReviewFormat format) throws Exception {
+        File file = new File(folder.getRoot(), "review" + format.getExtension());
+        int[] expected = SyntheticProjectGenerator.writeReview(project, file, 0.2, 0.1, SEED);
+        return new WrittenReview(file, expected[0], expected[1]);
+    }
 
-            @Override
-            public void compileProjectAndCommit(String sourcePattern, boolean doPostProcessing,
-                    boolean commitTargetFiles) throws Exception {
-                /* empty */
-            }
+    /** A review file, and the changes its import should apply. */
+    private static final class WrittenReview {
+        final File file;
+        final int updatedTranslations;
+        final int updatedComments;
 
-            @Override
-            public void compileProject(String sourcePattern) throws Exception {
-                /* empty */
-            }
+        WrittenReview(File file, int updatedTranslations, int updatedComments) {
+            this.file = file;
+            this.updatedTranslations = updatedTranslations;
+            this.updatedComments = updatedComments;
+        }
 
-            @Override
-            public void commitSourceFiles() throws Exception {
-                /* empty */
-            }
+        void assertImported(ODTReviewPlugin plugin) {
+            assertEquals(updatedTranslations, plugin.getUpdatedTranslations());
+            assertEquals(updatedComments, plugin.getUpdatedComments());
+        }
+    }
 
-            @Override
-            public void closeProject() {
-                /* empty */
-            }
-        };
+    private static List<String> sourceFiles(IProject project) {
+        return project.getProjectFiles().stream().map(fileInfo -> fileInfo.filePath)
+                .collect(Collectors.toList());
     }
 
     @Test
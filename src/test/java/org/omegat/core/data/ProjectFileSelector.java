@@ -23,6 +23,7 @@ package org.omegat.core.data;
 import java.io.File;
 import java.util.Arrays;
 import java.util.List;
+import java.util.stream.Collectors;
 
 import javax.swing.JDialog;
 import javax.swing.JFileChooser;
@@ -43,7 +44,12 @@ public class ProjectFileSelector {
             List<String> s = Arrays.asList("foo.txt", "bar.pdf", "baz.doc",
                     "azaezaezaE/ezafsdf/rzegvsqcvxw/vcxvzerzer/fdqsdf.txt", "aze.fd", "fdfs", "fsfdfsd",
                     "fsd sqdf", "mlkmlkmlk", "poipoipio");
-            ExportOdtFileChooser efc = new ExportOdtFileChooser(new File("Foo.odt"), s, "f");
+            List<IProject.FileInfo> files = s.stream().map(path -> {
+                IProject.FileInfo fileInfo = new IProject.FileInfo();
+                fileInfo.filePath = path;
+                return fileInfo;
+            }).collect(Collectors.toList());
+            ExportOdtFileChooser efc = new ExportOdtFileChooser(new File("Foo.odt"), () -> files, "f");
 
             int efcResult = efc.showSaveDialog(dialog);
             if (efcResult != JFileChooser.APPROVE_OPTION) {
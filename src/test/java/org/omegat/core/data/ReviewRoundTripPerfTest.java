@@ -0,0 +1,285 @@
+/**************************************************************************
+ OmegaT Plugin - ODT Review
+
+ Copyright (C) 2023 Briac Pilpré - briacp@gmail.com
+ Home page: https://github.com/briacp/plugin-odt-review
+
+ This program is free software: you can redistribute it and/or modify
+ it under the terms of the GNU General Public License as published by
+ the Free Software Foundation, either version 3 of the License, or
+ (at your option) any later version.
+
+ This program is distributed in the hope that it will be useful,
+ but WITHOUT ANY WARRANTY; without even the implied warranty of
+ MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ GNU General Public License for more details.
+
+ You should have received a copy of the GNU General Public License
+ along with this program. If not, see <http://www.gnu.org/licenses/>.
+ **************************************************************************/
+
+package org.omegat.core.data;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertTrue;
+
+import java.io.File;
+import java.io.FileInputStream;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.OutputStream;
+import java.io.OutputStreamWriter;
+import java.io.PrintWriter;
+import java.lang.management.ManagementFactory;
+import java.lang.management.MemoryPoolMXBean;
+import java.lang.management.MemoryType;
+import java.nio.charset.StandardCharsets;
+import java.text.SimpleDateFormat;
+import java.util.ArrayList;
+import java.util.BitSet;
+import java.util.Date;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.Properties;
+
+import org.junit.Rule;
+import org.junit.Test;
+import org.junit.experimental.categories.Category;
+import org.junit.rules.TemporaryFolder;
+
+import net.briac.omegat.plugin.odtreview.ODTReviewPlugin;
+import net.briac.omegat.plugin.odtreview.ReviewHistory;
+import net.briac.omegat.plugin.odtreview.ReviewSnapshot;
+
+/**
+ * Export review files of generated projects of increasing size, then import
+ * a review of each project with edited translations and added notes, and
+ * check the wall time, peak heap and file size against the budgets and the
+ * baseline of the previous runs.
+ * <p>
+ * Run with <code>gradlew perfTest</code>, the settings are given as system
+ * properties by the Gradle task:
+ * <ul>
+ * <li><code>perf.sizes</code>: comma separated numbers of segments
+ * <li><code>perf.formats</code>: <code>ods</code> and/or <code>odt</code>
+ * <li><code>perf.odt.maxSegments</code>: larger projects are only exported as
+ * ODS, the ODT document is built in memory
+ * <li><code>perf.budgets</code>: properties file of hard limits
+ * <li><code>perf.baseline</code>: properties file of the reference results,
+ * committed under <code>config/perf</code>, only written with
+ * <code>perf.updateBaseline</code>
+ * <li><code>perf.localBaseline</code>: properties file of the results of the
+ * first run on this machine, used when there's no committed baseline
+ * <li><code>perf.updateBaseline</code>: replace the committed baseline by the
+ * results of this run, if it passes
+ * <li><code>perf.tolerance</code>: how much a budget or the baseline can be
+ * exceeded, 0.25 is 25%
+ * <li><code>perf.results</code>: CSV file the results are appended to
+ * </ul>
+ * The budget and baseline keys are <code>format.segments.metric</code>, e.g.
+ * <code>ods.100000.heapMb</code>.
+ */
+@Category(PerformanceTest.class)
+public class ReviewRoundTripPerfTest {
+
+    private static final String[] METRICS = { "exportMs", "importMs", "heapMb", "sizeKb" };
+
+    /**
+     * Differences below these values are ignored, the smallest projects take
+     * a few milliseconds and their timings are mostly noise.
+     */
+    private static final long[] METRIC_SLACK = { 250, 250, 32, 0 };
+
+    private static final int SEGMENTS_PER_FILE = 500;
+    private static final long SEED = 20230401L;
+
+    /** Proportions of translations edited and of notes added by the review. */
+    private static final double EDIT_RATE = 0.2;
+    private static final double NOTE_RATE = 0.1;
+
+    @Rule
+    public TemporaryFolder folder = new TemporaryFolder();
+
+    @Test
+    public void testRoundTrips() throws Exception {
+        String[] sizes = System.getProperty("perf.sizes", "1000,10000,100000,500000").split(",");
+        String[] formats = System.getProperty("perf.formats", "ods,odt").split(",");
+        int odtMaxSegments = Integer.getInteger("perf.odt.maxSegments", 100000);
+        double tolerance = Double.parseDouble(System.getProperty("perf.tolerance", "0.25"));
+
+        File baselineFile = new File(System.getProperty("perf.baseline", "config/perf/baseline.properties"));
+        File localBaselineFile = new File(
+                System.getProperty("perf.localBaseline", "build/perf/baseline.properties"));
+        Properties budgets = load(
+                new File(System.getProperty("perf.budgets", "config/perf/budgets.properties")));
+        Properties baseline = load(baselineFile.isFile() ? baselineFile : localBaselineFile);
+
+        Map<String, long[]> results = new LinkedHashMap<>();
+        for (String size : sizes) {
+            int segments = Integer.parseInt(size.trim());
+            for (String format : formats) {
+                format = format.trim();
+                if ("odt".equals(format) && segments > odtMaxSegments) {
+                    continue;
+                }
+                // The import changes the project, each format gets its own
+                File projectDir = folder.newFolder(format + "-" + segments);
+                new File(projectDir, "omegat").mkdir();
+                TestProject project = new SyntheticProjectGenerator(SEED).segments(segments)
+                        .files(Math.max(1, segments / SEGMENTS_PER_FILE)).projectDir(projectDir).generate();
+                results.put(format + "." + segments, roundTrip(project, format));
+            }
+        }
+
+        List<String> failures = new ArrayList<>();
+        for (Map.Entry<String, long[]> result : results.entrySet()) {
+            for (int i = 0; i < METRICS.length; i++) {
+                String key = result.getKey() + "." + METRICS[i];
+                long value = result.getValue()[i];
+                long slack = METRIC_SLACK[i];
+                check(failures, key, value, budgets.getProperty(key), "budget", tolerance, slack);
+                check(failures, key, value, baseline.getProperty(key), "baseline", tolerance, slack);
+            }
+        }
+
+        writeResults(new File(System.getProperty("perf.results", "build/perf/results.csv")), results,
+                failures.isEmpty());
+        if (failures.isEmpty()) {
+            // The timings depend on the machine: the committed baseline is
+            // only replaced on request
+            if (Boolean.getBoolean("perf.updateBaseline")) {
+                writeBaseline(baselineFile, results);
+            } else if (baseline.isEmpty()) {
+                writeBaseline(localBaselineFile, results);
+            }
+        }
+
+        assertTrue(String.join("\n", failures), failures.isEmpty());
+    }
+
+    /**
+     * Export all the project in a review file, then import a review of the
+     * project: its changes are applied and recorded in the review history.
+     *
+     * @return the value of each metric
+     */
+    private long[] roundTrip(TestProject project, String format) throws Exception {
+        File output = new File(folder.getRoot(), "export." + format);
+        File review = new File(folder.getRoot(), "review." + format);
+        try {
+            resetPeakHeap();
+            long start = System.nanoTime();
+            BitSet allFiles = new BitSet();
+            allFiles.set(0, project.getProjectFiles().size());
+            ReviewSnapshot snapshot = ReviewSnapshot.take(project, allFiles);
+            new ODTReviewPlugin(project).writeReview(output, snapshot, progress -> {
+                /* empty */
+            });
+            long exportTime = System.nanoTime() - start;
+            long exportHeap = peakHeap();
+
+            // The reviewed copy of the project is left out of the import heap
+            int[] expected = SyntheticProjectGenerator.writeReview(project, review, EDIT_RATE, NOTE_RATE,
+                    SEED);
+            resetPeakHeap();
+            start = System.nanoTime();
+            ODTReviewPlugin plugin = new ODTReviewPlugin(project);
+            assertTrue(plugin.importReview(review));
+            long importTime = System.nanoTime() - start;
+
+            assertEquals(expected[0], plugin.getUpdatedTranslations());
+            assertEquals(expected[1], plugin.getUpdatedComments());
+            assertEquals(1, ReviewHistory.of(project).getRounds().size());
+
+            return new long[] { exportTime / 1_000_000, importTime / 1_000_000,
+                    Math.max(exportHeap, peakHeap()) / (1024 * 1024), output.length() / 1024 };
+        } finally {
+            output.delete();
+            review.delete();
+        }
+    }
+
+    private static void check(List<String> failures, String key, long value, String limit, String kind,
+            double tolerance, long slack) {
+        if (limit == null) {
+            return;
+        }
+        long max = Long.parseLong(limit.trim());
+        if (value > max * (1 + tolerance) && value - max > slack) {
+            failures.add(String.format("%s: %d exceeds the %s %d by more than %.0f%%", key, value, kind, max,
+                    tolerance * 100));
+        }
+    }
+
+    /** Collect the garbage of the previous run, and restart the peak usage. */
+    private static void resetPeakHeap() {
+        System.gc();
+        for (MemoryPoolMXBean pool : ManagementFactory.getMemoryPoolMXBeans()) {
+            if (pool.getType() == MemoryType.HEAP) {
+                pool.resetPeakUsage();
+            }
+        }
+    }
+
+    /**
+     * Sum of the peak usage of each heap pool. The pools don't peak at the
+     * same time, so this is an upper bound.
+     */
+    private static long peakHeap() {
+        long peak = 0;
+        for (MemoryPoolMXBean pool : ManagementFactory.getMemoryPoolMXBeans()) {
+            if (pool.getType() == MemoryType.HEAP) {
+                peak += pool.getPeakUsage().getUsed();
+            }
+        }
+        return peak;
+    }
+
+    private static Properties load(File file) throws IOException {
+        Properties props = new Properties();
+        if (file.isFile()) {
+            try (InputStream in = new FileInputStream(file)) {
+                props.load(in);
+            }
+        }
+        return props;
+    }
+
+    private static void writeBaseline(File file, Map<String, long[]> results) throws IOException {
+        Properties props = load(file);
+        for (Map.Entry<String, long[]> result : results.entrySet()) {
+            for (int i = 0; i < METRICS.length; i++) {
+                props.setProperty(result.getKey() + "." + METRICS[i], Long.toString(result.getValue()[i]));
+            }
+        }
+        file.getAbsoluteFile().getParentFile().mkdirs();
+        try (OutputStream out = new FileOutputStream(file)) {
+            props.store(out, "Review round trip baseline, -Xmx" + Runtime.getRuntime().maxMemory() / 1048576
+                    + "m");
+        }
+    }
+
+    private static void writeResults(File file, Map<String, long[]> results, boolean passed)
+            throws IOException {
+        file.getAbsoluteFile().getParentFile().mkdirs();
+        boolean isNew = !file.exists();
+        String date = new SimpleDateFormat("yyyy-MM-dd HH:mm:ss").format(new Date());
+        try (PrintWriter out = new PrintWriter(
+                new OutputStreamWriter(new FileOutputStream(file, true), StandardCharsets.UTF_8))) {
+            if (isNew) {
+                out.println("date,format,segments," + String.join(",", METRICS) + ",maxHeapMb,passed");
+            }
+            for (Map.Entry<String, long[]> result : results.entrySet()) {
+                StringBuilder sb = new StringBuilder(date);
+                sb.append(',').append(result.getKey().replace('.', ','));
+                for (long value : result.getValue()) {
+                    sb.append(',').append(value);
+                }
+                sb.append(',').append(Runtime.getRuntime().maxMemory() / 1048576).append(',').append(passed);
+                out.println(sb);
+            }
+        }
+    }
+}
@@ -0,0 +1,115 @@
+/**************************************************************************
+ OmegaT Plugin - ODT Review
+
+ Copyright (C) 2023 Briac Pilpré - briacp@gmail.com
+ Home page: https://github.com/briacp/plugin-odt-review
+
+ This program is free software: you can redistribute it and/or modify
+ it under the terms of the GNU General Public License as published by
+ the Free Software Foundation, either version 3 of the License, or
+ (at your option) any later version.
+
+ This program is distributed in the hope that it will be useful,
+ but WITHOUT ANY WARRANTY; without even the implied warranty of
+ MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ GNU General Public License for more details.
+
+ You should have received a copy of the GNU General Public License
+ along with this program. If not, see <http://www.gnu.org/licenses/>.
+ **************************************************************************/
+
+package org.omegat.core.data;
+
+import static org.junit.Assert.assertArrayEquals;
+import static org.junit.Assert.assertEquals;
+
+import java.io.ByteArrayOutputStream;
+import java.io.File;
+import java.nio.file.Files;
+import java.util.ArrayList;
+import java.util.BitSet;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+
+import org.junit.Rule;
+import org.junit.Test;
+import org.junit.experimental.categories.Category;
+import org.junit.rules.TemporaryFolder;
+
+import net.briac.omegat.plugin.odtreview.ODTReviewPlugin;
+import net.briac.omegat.plugin.odtreview.ReviewFormat;
+import net.briac.omegat.plugin.odtreview.ReviewLayout;
+import net.briac.omegat.plugin.odtreview.ReviewSnapshot;
+
+/**
+ * Export a project large enough to be rendered on worker processes, which
+ * must give the same files as an export rendered in the test JVM. Each export
+ * starts several JVMs, so the test is run by <code>gradlew perfTest</code>.
+ */
+@Category(PerformanceTest.class)
+public class ReviewShardsPerfTest {
+
+    /** The smallest export rendered on workers by default. */
+    private static final int SEGMENTS = 20_000;
+    private static final int FILES = 40;
+    private static final long SEED = 42L;
+
+    @Rule
+    public TemporaryFolder folder = new TemporaryFolder();
+
+    @Test
+    public void testShardedExport() throws Exception {
+        TestProject project = new SyntheticProjectGenerator(SEED).segments(SEGMENTS).files(FILES).generate();
+        ODTReviewPlugin plugin = new ODTReviewPlugin(project);
+        plugin.setReproducible(true);
+
+        // The sheets, or the rows of the single table, are rendered by the
+        // workers and copied in the same package
+        for (ReviewLayout layout : ReviewLayout.values()) {
+            plugin.setLayout(layout);
+            byte[][] packages = new byte[2][];
+            int[] workers = { 0, 4 };
+            for (int i = 0; i < workers.length; i++) {
+                plugin.setExportWorkers(workers[i]);
+                ByteArrayOutputStream out = new ByteArrayOutputStream();
+                plugin.exportReview(out, ReviewFormat.ODS, sourceFiles(project));
+                packages[i] = out.toByteArray();
+            }
+            assertArrayEquals(packages[0], packages[1]);
+        }
+        plugin.setLayout(null);
+
+        // Each volume of a split export is rendered by a worker
+        File directory = folder.newFolder("volumes");
+        Map<File, ReviewSnapshot> volumes = new LinkedHashMap<>();
+        for (int part = 0; part < 3; part++) {
+            BitSet files = new BitSet();
+            files.set(part * FILES / 3, (part + 1) * FILES / 3);
+            volumes.put(new File(directory, "review_" + (part + 1) + ".ods"),
+                    ReviewSnapshot.take(project, files));
+        }
+        plugin.setExportWorkers(2);
+        plugin.writeReviews(volumes, progress -> {
+            /* empty */
+        });
+        assertEquals(volumes.size(), directory.list().length);
+
+        plugin.setExportWorkers(0);
+        for (Map.Entry<File, ReviewSnapshot> volume : volumes.entrySet()) {
+            ByteArrayOutputStream out = new ByteArrayOutputStream();
+            plugin.writeReview(out, ReviewFormat.ODS, volume.getValue(), progress -> {
+                /* empty */
+            });
+            assertArrayEquals(out.toByteArray(), Files.readAllBytes(volume.getKey().toPath()));
+        }
+    }
+
+    private static List<String> sourceFiles(IProject project) {
+        List<String> files = new ArrayList<>();
+        for (IProject.FileInfo fileInfo : project.getProjectFiles()) {
+            files.add(fileInfo.filePath);
+        }
+        return files;
+    }
+}
@@ -0,0 +1,156 @@
+/**************************************************************************
+ OmegaT Plugin - ODT Review
+
+ Copyright (C) 2008 Briac Pilpré - briacp@gmail.com
+ Home page: https://github.com/briacp/plugin-odt-review
+
+ This program is free software: you can redistribute it and/or modify
+ it under the terms of the GNU General Public License as published by
+ the Free Software Foundation, either version 3 of the License, or
+ (at your option) any later version.
+
+ This program is distributed in the hope that it will be useful,
+ but WITHOUT ANY WARRANTY; without even the implied warranty of
+ MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ GNU General Public License for more details.
+
+ You should have received a copy of the GNU General Public License
+ along with this program. If not, see <http://www.gnu.org/licenses/>.
+ **************************************************************************/
+
+package org.omegat.core.data;
+
+import static org.junit.Assert.assertEquals;
+
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.BitSet;
+import java.util.List;
+
+import org.junit.Test;
+
+import net.briac.omegat.plugin.odtreview.SourceFileSelectionModel;
+
+public class SourceFileSelectionModelTest {
+
+    // In project order, which is not the alphabetical order
+    private static final List<String> FILES = Arrays.asList("web/index.html", "docs/Readme.txt",
+            "web/about.HTML", "docs/guide.odt", "web/img/logo.svg");
+
+    @Test
+    public void testProjectOrder() {
+        SourceFileSelectionModel model = new SourceFileSelectionModel(FILES);
+        assertEquals(FILES, displayedFiles(model));
+        assertEquals(FILES, model.getSelectedSourceFiles());
+
+        model.setValueAt(Boolean.FALSE, 1, 0);
+        model.setValueAt(Boolean.FALSE, 3, 0);
+        assertEquals(Arrays.asList("web/index.html", "web/about.HTML", "web/img/logo.svg"),
+                model.getSelectedSourceFiles());
+        assertEquals(bits(0, 2, 4), model.getSelection());
+    }
+
+    @Test
+    public void testSubstringFilter() {
+        SourceFileSelectionModel model = new SourceFileSelectionModel(FILES);
+        // Case-insensitive, anywhere in the path
+        model.setFilter("HTML");
+        assertEquals(Arrays.asList("web/index.html", "web/about.HTML"), displayedFiles(model));
+
+        // Typing more narrows the displayed files, deleting widens them
+        model.setFilter("HTML");
+        model.setFilter("about.html");
+        assertEquals(Arrays.asList("web/about.HTML"), displayedFiles(model));
+        model.setFilter("web");
+        assertEquals(Arrays.asList("web/index.html", "web/about.HTML", "web/img/logo.svg"),
+                displayedFiles(model));
+        model.setFilter("");
+        assertEquals(FILES, displayedFiles(model));
+    }
+
+    @Test
+    public void testGlobFilter() {
+        SourceFileSelectionModel model = new SourceFileSelectionModel(FILES);
+        // A glob matches the whole path
+        model.setFilter("*.html");
+        assertEquals(Arrays.asList("web/index.html", "web/about.HTML"), displayedFiles(model));
+        model.setFilter("web/*");
+        assertEquals(Arrays.asList("web/index.html", "web/about.HTML", "web/img/logo.svg"),
+                displayedFiles(model));
+        model.setFilter("docs/?????.odt");
+        assertEquals(Arrays.asList("docs/guide.odt"), displayedFiles(model));
+        // Not a substring once it's a glob
+        model.setFilter("docs*");
+        assertEquals(Arrays.asList("docs/Readme.txt", "docs/guide.odt"), displayedFiles(model));
+        model.setFilter("*guide");
+        assertEquals(0, model.getRowCount());
+        // Regular expression characters are literal
+        model.setFilter("web/*.*");
+        assertEquals(Arrays.asList("web/index.html", "web/about.HTML", "web/img/logo.svg"),
+                displayedFiles(model));
+    }
+
+    @Test
+    public void testHiddenRowsKeepTheirSelection() {
+        SourceFileSelectionModel model = new SourceFileSelectionModel(FILES);
+        model.setFilter("docs/");
+        model.setVisibleSelected(false);
+        assertEquals(bits(0, 2, 4), model.getSelection());
+
+        model.setFilter("*.svg");
+        model.setVisibleSelected(false);
+        assertEquals(bits(0, 2), model.getSelection());
+
+        // The hidden files are still exported
+        model.setFilter("about");
+        assertEquals(Arrays.asList("web/index.html", "web/about.HTML"), model.getSelectedSourceFiles());
+
+        model.setFilter("");
+        model.setVisibleSelected(true);
+        assertEquals(FILES, model.getSelectedSourceFiles());
+    }
+
+    @Test
+    public void testInvertVisibleSelection() {
+        SourceFileSelectionModel model = new SourceFileSelectionModel(FILES);
+        model.setValueAt(Boolean.FALSE, 0, 0);
+        model.setFilter("web/");
+        model.invertVisibleSelection();
+        // Only the displayed files are inverted
+        assertEquals(bits(0, 1, 3), model.getSelection());
+        assertEquals(Boolean.TRUE, model.getValueAt(0, 0));
+        assertEquals(Boolean.FALSE, model.getValueAt(1, 0));
+
+        model.setFilter("");
+        model.invertVisibleSelection();
+        assertEquals(bits(2, 4), model.getSelection());
+    }
+
+    @Test
+    public void testSetFilesSelectsAll() {
+        SourceFileSelectionModel model = new SourceFileSelectionModel(FILES);
+        model.setFilter("*.odt");
+        model.setVisibleSelected(false);
+
+        // The filter is kept for the new files
+        model.setFiles(Arrays.asList("a.odt", "b.txt", "c.odt"));
+        assertEquals(Arrays.asList("a.odt", "c.odt"), displayedFiles(model));
+        assertEquals(bits(0, 1, 2), model.getSelection());
+    }
+
+    private static List<String> displayedFiles(SourceFileSelectionModel model) {
+        List<String> files = new ArrayList<>();
+        for (int row = 0; row < model.getRowCount(); row++) {
+            files.add((String) model.getValueAt(row, 1));
+        }
+        return files;
+    }
+
+    private static BitSet bits(int... indexes) {
+        BitSet bits = new BitSet();
+        for (int index : indexes) {
+            bits.set(index);
+        }
+        return bits;
+    }
+}
@@ -0,0 +1,319 @@
+/**************************************************************************
+ OmegaT Plugin - ODT Review
+
+ Copyright (C) 2023 Briac Pilpré - briacp@gmail.com
+ Home page: https://github.com/briacp/plugin-odt-review
+
+ This program is free software: you can redistribute it and/or modify
+ it under the terms of the GNU General Public License as published by
+ the Free Software Foundation, either version 3 of the License, or
+ (at your option) any later version.
+
+ This program is distributed in the hope that it will be useful,
+ but WITHOUT ANY WARRANTY; without even the implied warranty of
+ MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ GNU General Public License for more details.
+
+ You should have received a copy of the GNU General Public License
+ along with this program. If not, see <http://www.gnu.org/licenses/>.
+ **************************************************************************/
+
+package org.omegat.core.data;
+
+import java.io.File;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.BitSet;
+import java.util.List;
+import java.util.Random;
+
+import org.omegat.core.data.IProject.FileInfo;
+
+import net.briac.omegat.plugin.odtreview.ODTReviewPlugin;
+import net.briac.omegat.plugin.odtreview.ReviewSnapshot;
+
+/**
+ * Generate large projects for tests and benchmarks. The same seed and
+ * settings always give the same project, without any random text library.
+ * <p>
+ * The distributions try to look like a real project: a few big files and
+ * many small ones, segment lengths around a dozen words with a long tail,
+ * words picked with a Zipf law, some tags, repeated segments, notes, empty
+ * translations and untranslated segments.
+ */
+public final class SyntheticProjectGenerator {
+
+    private static final int VOCABULARY_SIZE = 5000;
+    private static final String[] SYLLABLES = { "ka", "lo", "mi", "ne", "ta", "ri", "so", "pa", "du", "ve",
+            "an", "el", "or", "us", "in", "be", "co", "ge", "hu", "ja", "qui", "tra", "ste", "pro" };
+    private static final String[] EXTENSIONS = { ".html", ".docx", ".odt", ".xml", ".properties", ".po" };
+    private static final int MAX_WORDS = 120;
+
+    private final long seed;
+    private int segments = 10000;
+    private int files = 20;
+    private double meanWords = 12;
+    private double duplicateRate = 0.1;
+    private double noteRate = 0.05;
+    private double emptyTranslationRate = 0.01;
+    private double untranslatedRate = 0.1;
+    private double tagRate = 0.15;
+    private File projectDir;
+
+    public SyntheticProjectGenerator(long seed) {
+        this.seed = seed;
+    }
+
+    public SyntheticProjectGenerator segments(int segments) {
+        this.segments = segments;
+        return this;
+    }
+
+    /** Number of files, capped to the number of segments. */
+    public SyntheticProjectGenerator files(int files) {
+        this.files = files;
+        return this;
+    }
+
+    /** Median number of words per segment. */
+    public SyntheticProjectGenerator meanWords(double meanWords) {
+        this.meanWords = meanWords;
+        return this;
+    }
+
+    /** Proportion of segments repeating the source of a previous one. */
+    public SyntheticProjectGenerator duplicateRate(double duplicateRate) {
+        this.duplicateRate = duplicateRate;
+        return this;
+    }
+
+    public SyntheticProjectGenerator noteRate(double noteRate) {
+        this.noteRate = noteRate;
+        return this;
+    }
+
+    /** Proportion of segments translated with an empty string. */
+    public SyntheticProjectGenerator emptyTranslationRate(double emptyTranslationRate) {
+        this.emptyTranslationRate = emptyTranslationRate;
+        return this;
+    }
+
+    public SyntheticProjectGenerator untranslatedRate(double untranslatedRate) {
+        this.untranslatedRate = untranslatedRate;
+        return this;
+    }
+
+    /** Proportion of segments containing OmegaT tags. */
+    public SyntheticProjectGenerator tagRate(double tagRate) {
+        this.tagRate = tagRate;
+        return this;
+    }
+
+    /**
+     * Folder of the project, e.g. to keep the review history of the imports
+     * in its <code>omegat</code> sub-folder. By default the project has no
+     * folder.
+     */
+    public SyntheticProjectGenerator projectDir(File projectDir) {
+        this.projectDir = projectDir;
+        return this;
+    }
+
+    public TestProject generate() throws Exception {
+        Random random = new Random(seed);
+        Vocabulary source = new Vocabulary(random);
+        Vocabulary target = new Vocabulary(random);
+        TestProject project = new TestProject(projectDir != null ? projectDir.getPath() : "synthetic-" + seed,
+                "en-US", "fr-FR");
+
+        int[] fileSizes = fileSizes(random);
+        List<String[]> previous = new ArrayList<>();
+        int segmentIndex = 0;
+        for (int fileIndex = 0; fileIndex < fileSizes.length; fileIndex++) {
+            FileInfo fileInfo = project.addFile(filePath(random, fileIndex));
+            for (int i = 0; i < fileSizes[fileIndex]; i++, segmentIndex++) {
+                String[] pair;
+                if (!previous.isEmpty() && random.nextDouble() < duplicateRate) {
+                    pair = previous.get(random.nextInt(previous.size()));
+                } else {
+                    pair = segment(random, source, target, segmentIndex);
+                    // Keep a bounded sample of the previous segments
+                    if (previous.size() < VOCABULARY_SIZE) {
+                        previous.add(pair);
+                    } else {
+                        previous.set(random.nextInt(VOCABULARY_SIZE), pair);
+                    }
+                }
+
+                String translation = pair[1];
+                double draw = random.nextDouble();
+                if (draw < untranslatedRate) {
+                    translation = null;
+                } else if (draw < untranslatedRate + emptyTranslationRate) {
+                    translation = "";
+                }
+                String note = random.nextDouble() < noteRate ? "Note: " + words(random, source, 6) : null;
+                project.addEntry(fileInfo, pair[0], translation, note);
+            }
+        }
+        return project;
+    }
+
+    /**
+     * Write a review file of all the project, as if a reviewer had changed
+     * some translations and added some notes. Importing it in the project
+     * updates exactly the returned numbers of translations and notes.
+     *
+     * @param output
+     *            an <code>.odt</code> or <code>.ods</code> file
+     * @param editRate
+     *            proportion of translations changed by the reviewer
+     * @param noteRate
+     *            proportion of segments the reviewer added a note to
+     * @return the number of changed translations and of added notes
+     */
+    public static int[] writeReview(TestProject project, File output, double editRate, double noteRate,
+            long seed) throws Exception {
+        Random random = new Random(seed);
+        TestProject reviewed = project.copy();
+        int translations = 0;
+        int notes = 0;
+        for (SourceTextEntry ste : project.getAllEntries()) {
+            TMXEntry en = project.getTranslationInfo(ste);
+            boolean edit = random.nextDouble() < editRate;
+            boolean addNote = random.nextDouble() < noteRate;
+            if (!edit && !addNote) {
+                continue;
+            }
+            PrepareTMXEntry pte = new PrepareTMXEntry(en);
+            pte.source = ste.getSrcText();
+            if (edit) {
+                pte.translation = "[rev] " + (en.translation == null ? ste.getSrcText() : en.translation);
+                translations++;
+            }
+            if (addNote) {
+                pte.note = "Reviewer remark #" + ste.entryNum();
+                notes++;
+            }
+            reviewed.setTranslation(ste, pte, true, null);
+        }
+
+        BitSet allFiles = new BitSet();
+        allFiles.set(0, reviewed.getProjectFiles().size());
+        ReviewSnapshot snapshot = ReviewSnapshot.take(reviewed, allFiles);
+        new ODTReviewPlugin(reviewed).writeReview(output, snapshot, progress -> {
+            /* empty */
+        });
+        return new int[] { translations, notes };
+    }
+
+    /**
+     * Split the segments in files with exponentially distributed sizes: a
+     * few big files and many small ones.
+     */
+    private int[] fileSizes(Random random) {
+        int count = Math.max(1, Math.min(files, segments));
+        double[] weights = new double[count];
+        double total = 0;
+        for (int i = 0; i < count; i++) {
+            weights[i] = -Math.log(1 - random.nextDouble());
+            total += weights[i];
+        }
+        // Each file gets at least one segment
+        int[] sizes = new int[count];
+        Arrays.fill(sizes, 1);
+        int remaining = segments - count;
+        int assigned = 0;
+        for (int i = 0; i < count; i++) {
+            int extra = (int) (remaining * weights[i] / total);
+            sizes[i] += extra;
+            assigned += extra;
+        }
+        for (int i = 0; assigned < remaining; i = (i + 1) % count, assigned++) {
+            sizes[i]++;
+        }
+        return sizes;
+    }
+
+    private static String filePath(Random random, int fileIndex) {
+        return String.format("part%02d/%s%05d%s", random.nextInt(20), random.nextBoolean() ? "doc" : "page",
+                fileIndex, EXTENSIONS[random.nextInt(EXTENSIONS.length)]);
+    }
+
+    /** A source text and its translation, with the same tags and numbers. */
+    private String[] segment(Random random, Vocabulary source, Vocabulary target, int segmentIndex) {
+        // Log-normal number of words, with a long tail of long segments
+        int wordCount = (int) Math.round(Math.exp(Math.log(meanWords) + 0.6 * random.nextGaussian()));
+        wordCount = Math.max(1, Math.min(MAX_WORDS, wordCount));
+
+        StringBuilder src = new StringBuilder(wordCount * 7);
+        StringBuilder tgt = new StringBuilder(wordCount * 8);
+        int tagPosition = random.nextDouble() < tagRate ? random.nextInt(wordCount) : -1;
+        for (int i = 0; i < wordCount; i++) {
+            if (i > 0) {
+                src.append(' ');
+                tgt.append(' ');
+            }
+            if (i == tagPosition) {
+                src.append("<b0>");
+                tgt.append("<b0>");
+            }
+            int word = source.next(random);
+            src.append(source.word(word));
+            tgt.append(target.word(word));
+            if (i == tagPosition) {
+                src.append("</b0>");
+                tgt.append("</b0>");
+            }
+        }
+        if (random.nextInt(8) == 0) {
+            src.append(' ').append(segmentIndex);
+            tgt.append(' ').append(segmentIndex);
+        }
+        src.setCharAt(0, Character.toUpperCase(src.charAt(0)));
+        tgt.setCharAt(0, Character.toUpperCase(tgt.charAt(0)));
+        char end = random.nextInt(6) == 0 ? ':' : '.';
+        return new String[] { src.append(end).toString(), tgt.append(end).toString() };
+    }
+
+    private static String words(Random random, Vocabulary vocabulary, int count) {
+        StringBuilder sb = new StringBuilder();
+        for (int i = 0; i < count; i++) {
+            sb.append(i > 0 ? " " : "").append(vocabulary.word(vocabulary.next(random)));
+        }
+        return sb.toString();
+    }
+
+    /** Pseudo words made of syllables, picked with a Zipf distribution. */
+    private static final class Vocabulary {
+        private final String[] words = new String[VOCABULARY_SIZE];
+        private final double[] cumulative = new double[VOCABULARY_SIZE];
+
+        Vocabulary(Random random) {
+            double total = 0;
+            for (int i = 0; i < VOCABULARY_SIZE; i++) {
+                // Frequent words are short
+                int syllables = 1 + Math.min(4, i / 500 + random.nextInt(2));
+                StringBuilder sb = new StringBuilder();
+                for (int s = 0; s < syllables; s++) {
+                    sb.append(SYLLABLES[random.nextInt(SYLLABLES.length)]);
+                }
+                words[i] = sb.toString();
+                total += 1.0 / (i + 1);
+                cumulative[i] = total;
+            }
+            for (int i = 0; i < VOCABULARY_SIZE; i++) {
+                cumulative[i] /= total;
+            }
+        }
+
+        int next(Random random) {
+            int index = Arrays.binarySearch(cumulative, random.nextDouble());
+            return Math.min(VOCABULARY_SIZE - 1, index >= 0 ? index : -index - 1);
+        }
+
+        String word(int index) {
+            return words[index];
+        }
+    }
+}
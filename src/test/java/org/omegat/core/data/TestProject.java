@@ -0,0 +1,285 @@
+/**************************************************************************
+ OmegaT Plugin - ODT Review
+
+ Copyright (C) 2023 Briac Pilpré - briacp@gmail.com
+ Home page: https://github.com/briacp/plugin-odt-review
+
+ This program is free software: you can redistribute it and/or modify
+ it under the terms of the GNU General Public License as published by
+ the Free Software Foundation, either version 3 of the License, or
+ (at your option) any later version.
+
+ This program is distributed in the hope that it will be useful,
+ but WITHOUT ANY WARRANTY; without even the implied warranty of
+ MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ GNU General Public License for more details.
+
+ You should have received a copy of the GNU General Public License
+ along with this program. If not, see <http://www.gnu.org/licenses/>.
+ **************************************************************************/
+
+package org.omegat.core.data;
+
+import java.io.File;
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+
+import org.omegat.core.data.TMXEntry.ExternalLinked;
+import org.omegat.core.statistics.StatisticsInfo;
+import org.omegat.tokenizer.ITokenizer;
+import org.omegat.util.Language;
+
+/**
+ * A project held in memory, whose translations can be updated by an import.
+ * <p>
+ * Like the real project, untranslated entries get an empty translation info,
+ * with no translation.
+ */
+public class TestProject implements IProject {
+
+    private static final TMXEntry EMPTY_TRANSLATION;
+
+    static {
+        PrepareTMXEntry empty = new PrepareTMXEntry();
+        empty.source = "";
+        EMPTY_TRANSLATION = new TMXEntry(empty, true, null);
+    }
+
+    private final ProjectProperties projectProperties;
+    private final List<FileInfo> projectFiles = new ArrayList<>();
+    private final List<SourceTextEntry> allEntries = new ArrayList<>();
+    private final Map<SourceTextEntry, TMXEntry> translations = new HashMap<>();
+
+    public TestProject(String projectName, String sourceLanguage, String targetLanguage) throws Exception {
+        projectProperties = new ProjectProperties(new File(projectName));
+        projectProperties.setSourceLanguage(sourceLanguage);
+        projectProperties.setTargetLanguage(targetLanguage);
+    }
+
+    private TestProject(TestProject other) {
+        projectProperties = other.projectProperties;
+        projectFiles.addAll(other.projectFiles);
+        allEntries.addAll(other.allEntries);
+        translations.putAll(other.translations);
+    }
+
+    /**
+     * A project sharing the same files and entries, whose translations can be
+     * changed independently.
+     */
+    public TestProject copy() {
+        return new TestProject(this);
+    }
+
+    public FileInfo addFile(String filePath) {
+        FileInfo fileInfo = new FileInfo();
+        fileInfo.filePath = filePath;
+        projectFiles.add(fileInfo);
+        return fileInfo;
+    }
+
+    /**
+     * Add an entry at the end of a file.
+     *
+     * @param translation
+     *            <code>null</code> for an untranslated entry
+     */
+    public SourceTextEntry addEntry(FileInfo fileInfo, String sourceText, String translation, String note) {
+        return addEntry(fileInfo, sourceText, translation, note, Collections.emptyList());
+    }
+
+    /**
+     * Add an entry with tags at the end of a file.
+     *
+     * @param protectedParts
+     *            the tags of the source text
+     */
+    public SourceTextEntry addEntry(FileInfo fileInfo, String sourceText, String translation, String note,
+            List<ProtectedPart> protectedParts) {
+        EntryKey key = new EntryKey(fileInfo.filePath, sourceText, null, null, null, null);
+        SourceTextEntry entry = new SourceTextEntry(key, allEntries.size() + 1, null, null, protectedParts,
+                false);
+        fileInfo.entries.add(entry);
+        allEntries.add(entry);
+
+        if (translation != null || note != null) {
+            PrepareTMXEntry pte = new PrepareTMXEntry();
+            pte.source = sourceText;
+            pte.translation = translation;
+            pte.note = note;
+            translations.put(entry, new TMXEntry(pte, true, null));
+        }
+        return entry;
+    }
+
+    @Override
+    public TMXEntry getTranslationInfo(SourceTextEntry ste) {
+        return translations.getOrDefault(ste, EMPTY_TRANSLATION);
+    }
+
+    @Override
+    public ProjectProperties getProjectProperties() {
+        return projectProperties;
+    }
+
+    @Override
+    public List<FileInfo> getProjectFiles() {
+        return projectFiles;
+    }
+
+    @Override
+    public List<SourceTextEntry> getAllEntries() {
+        return allEntries;
+    }
+
+    @Override
+    public void setTranslation(SourceTextEntry entry, PrepareTMXEntry trans, boolean defaultTranslation,
+            ExternalLinked externalLinked, AllTranslations previousTranslations)
+            throws OptimisticLockingFail {
+        setTranslation(entry, trans, defaultTranslation, externalLinked);
+    }
+
+    @Override
+    public void setTranslation(SourceTextEntry entry, PrepareTMXEntry trans, boolean defaultTranslation,
+            ExternalLinked externalLinked) {
+        translations.put(entry, new TMXEntry(trans, defaultTranslation, externalLinked));
+    }
+
+    @Override
+    public void setNote(SourceTextEntry entry, TMXEntry oldTrans, String note) {
+        PrepareTMXEntry pte = new PrepareTMXEntry(oldTrans);
+        pte.note = note;
+        translations.put(entry, new TMXEntry(pte, oldTrans.defaultTranslation, oldTrans.linked));
+    }
+
+    @Override
+    public void iterateByDefaultTranslations(DefaultTranslationsIterator it) {
+        for (Map.Entry<SourceTextEntry, TMXEntry> en : translations.entrySet()) {
+            it.iterate(en.getKey().getSrcText(), en.getValue());
+        }
+    }
+
+    @Override
+    public void iterateByMultipleTranslations(MultipleTranslationsIterator it) {
+        /* empty */
+    }
+
+    @Override
+    public boolean isProjectLoaded() {
+        return true;
+    }
+
+    @Override
+    public void teamSyncPrepare() throws Exception {
+        /* empty */
+    }
+
+    @Override
+    public void teamSync() {
+        /* empty */
+    }
+
+    @Override
+    public void setSourceFilesOrder(List<String> filesList) {
+        /* empty */
+    }
+
+    @Override
+    public void saveProjectProperties() throws Exception {
+        /* empty */
+    }
+
+    @Override
+    public void saveProject(boolean doTeamSync) {
+        /* empty */
+    }
+
+    @Override
+    public boolean isTeamSyncPrepared() {
+        return false;
+    }
+
+    @Override
+    public boolean isRemoteProject() {
+        return false;
+    }
+
+    @Override
+    public boolean isProjectModified() {
+        return false;
+    }
+
+    @Override
+    public boolean isOrphaned(EntryKey entry) {
+        return false;
+    }
+
+    @Override
+    public boolean isOrphaned(String source) {
+        return false;
+    }
+
+    @Override
+    public Map<String, ExternalTMX> getTransMemories() {
+        return Collections.emptyMap();
+    }
+
+    @Override
+    public ITokenizer getTargetTokenizer() {
+        return null;
+    }
+
+    @Override
+    public String getTargetPathForSourceFile(String sourceFile) {
+        return null;
+    }
+
+    @Override
+    public StatisticsInfo getStatistics() {
+        return null;
+    }
+
+    @Override
+    public ITokenizer getSourceTokenizer() {
+        return null;
+    }
+
+    @Override
+    public List<String> getSourceFilesOrder() {
+        return null;
+    }
+
+    @Override
+    public Map<Language, ProjectTMX> getOtherTargetLanguageTMs() {
+        return null;
+    }
+
+    @Override
+    public AllTranslations getAllTranslations(SourceTextEntry ste) {
+        return null;
+    }
+
+    @Override
+    public void compileProjectAndCommit(String sourcePattern, boolean doPostProcessing,
+            boolean commitTargetFiles) throws Exception {
+        /* empty */
+    }
+
+    @Override
+    public void compileProject(String sourcePattern) throws Exception {
+        /* empty */
+    }
+
+    @Override
+    public void commitSourceFiles() throws Exception {
+        /* empty */
+    }
+
+    @Override
+    public void closeProject() {
+        /* empty */
+    }
+}